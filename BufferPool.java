@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ダイレクト ByteBuffer のプール。
+ * 接続ごとに確保・解放を繰り返すとネイティブメモリの確保コストが高いため、使い回します。
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+	BufferPool(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * バッファを取り出します。空なら新しく確保します。
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer b = free.poll();
+		if (b == null) b = ByteBuffer.allocateDirect(bufferSize);
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * バッファをプールへ戻します。
+	 */
+	void release(ByteBuffer b) {
+		if (b != null && b.capacity() == bufferSize) free.offer(b);
+	}
+
+	int bufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,257 @@
+import game.LineTokenizer;
+import game.StreamCompression;
+import game.WireCodec;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * サーバーから見た1クライアント分の接続。
+ * 送信は接続ごとの送信キューへ積むだけで、実際の書き込みはエンジン（ブロッキング / NIO）ごとの書き込み担当が行います。
+ * そのため、送信者が他人のソケットの詰まりで待たされることはありません。
+ */
+abstract class ClientConnection {
+	/** クライアント番号。セッションを再開した接続は元の番号を引き継ぎます (MyServer2#resume) */
+	volatile int number;
+	volatile String name;
+	/** ロビーにいることを表す roomId */
+	static final int LOBBY = Integer.MIN_VALUE;
+	/** JOIN で申し込んだルームの番号 (受信担当スレッドが書き、行の振り分けに使う) */
+	volatile int roomId = LOBBY;
+	/** 参加中のルーム (ロビーにいる間は null)。ルームの担当シャードが書きます */
+	volatile Room room;
+	private static final AtomicReferenceFieldUpdater<ClientConnection, Room> ROOM =
+			AtomicReferenceFieldUpdater.newUpdater(ClientConnection.class, Room.class, "room");
+	/** 自分の送ったコマンドを自分にも返すか (HELLO noecho を送らない旧クライアントは true) */
+	volatile boolean echoSelf = true;
+	/** 送信待ちの行 */
+	final OutboundQueue outbound = new OutboundQueue();
+	volatile boolean closed = false;
+	/** PING に PONG を返すクライアントか (HELLO ping で有効) */
+	volatile boolean heartbeat = false;
+	/** 応答を待っている PING を送った時刻 (ms, Liveness.now、待っていなければ 0) */
+	volatile long pingSentAt = 0;
+	/** 直近の PING から PONG までの往復時間 (ms, 未計測なら -1) */
+	volatile long rttMillis = -1;
+	/** 最後に何かを受信した時刻 (ms, 単調増加) */
+	volatile long lastReceived = Liveness.now();
+	/** MOVE / SHOT / BULLET_HIT をバイナリで送るか (HELLO wire1 で有効) */
+	volatile boolean binaryWire = false;
+	/** バイナリ形式の MOVE を差分にする (書き込み担当スレッド専用) */
+	private final WireCodec.DeltaEncoder moveDelta = new WireCodec.DeltaEncoder();
+	/** クライアントが差分の基準を失った (RESYNC) */
+	volatile boolean resyncRequested = false;
+	/** 送信キュー上の「ここから圧縮する」目印 (HELLO deflate の WELCOME の直後に積みます) */
+	static final SharedBuffer COMPRESS_FROM_HERE = SharedBuffer.wrap(ByteBuffer.allocate(0));
+	/** HELLO deflate を受け付けた */
+	volatile boolean compressionRequested = false;
+	/** 送信の圧縮器 (目印を取り出してから有効、書き込み担当スレッド専用) */
+	StreamCompression.Compressor compressor;
+	/** まとめて書いた複数行の前に "BATCH 行数" を付けるか (HELLO batch で有効) */
+	volatile boolean batchFraming = false;
+	// 関心領域のセルと MOVE の通し番号 (参加中のルームの担当シャード専用、InterestGrid)
+	int cellX = -1, cellY = -1;
+	int moveCount = 0;
+	/** ルームを観戦している (roomId が観戦先、ゲームコマンドは受け付けない) */
+	volatile boolean watching = false;
+	/** マッチングの待ち行列に並んでいる (受信担当スレッドが書く、Matchmaker) */
+	volatile boolean queued = false;
+	/** 再接続用のセッション (HELLO resume を送っていない、または --resume-grace=0 なら null) */
+	volatile Session session;
+	/** BYE で自分から抜けた、または送りすぎで切断した (切断しても再接続を待たない) */
+	volatile boolean quitting = false;
+	/** コマンドごとの受信の上限 */
+	final RateLimit limits = new RateLimit();
+	/** TickFlusher に登録済みか */
+	final AtomicBoolean flushPending = new AtomicBoolean(false);
+
+	// UDP 副チャネル (UdpRelay)
+	volatile long udpToken = 0;
+	volatile SocketAddress udpAddress;
+	/** UDP ON を受け取ってから MOVE を UDP で送受信する */
+	volatile boolean udpActive = false;
+	/** 上りで受け取った最新の通番 (UdpRelay の受信スレッド専用) */
+	long udpRecvSeq = 0;
+	final AtomicLong udpSendSeq = new AtomicLong();
+	/** 受信した行の解析用 (受信担当スレッド専用) */
+	final LineTokenizer tokens = new LineTokenizer();
+	// 取り出してまだ書き終えていない行が作られた時刻 (書き込み担当スレッド専用、配信遅延の計測用)
+	private long[] pendingStamps = new long[64];
+	private int pendingCount = 0;
+
+	ClientConnection(int number) {
+		this.number = number;
+		this.name = "Player" + number;
+	}
+
+	/**
+	 * 参加中のルームが r のときだけロビーへ戻します (r の担当シャードから呼びます)。
+	 * 先に別のシャードで次のルームへ入っていれば、そちらを消さずに残します。
+	 */
+	final void clearRoom(Room r) {
+		ROOM.compareAndSet(this, r, null);
+	}
+
+	/** 1行を送信キューへ積みます（改行はこちらで付加します）。 */
+	final void send(String line) {
+		send(line, 0, OutboundQueue.KIND_EVENT);
+	}
+
+	/**
+	 * 1行を送信キューへ積みます。
+	 * @param sender 送信元のクライアント番号 (状態の上書き単位)
+	 * @param kind   OutboundQueue.KIND_*
+	 */
+	final void send(String line, int sender, int kind) {
+		OutboundMessage msg = new OutboundMessage(line);
+		send(msg, sender, kind);
+		msg.release();
+	}
+
+	/**
+	 * 配信中のメッセージを送信キューへ積みます。変換済みのバッファがあればそれを共有します。
+	 * @param sender 送信元のクライアント番号 (状態の上書き単位)
+	 * @param kind   OutboundQueue.KIND_*
+	 */
+	final void send(OutboundMessage msg, int sender, int kind) {
+		if (closed) return;
+		if (kind == OutboundQueue.KIND_MOVE && udpActive) {
+			UdpRelay.send(this, msg.line, sender);
+			ServerMetrics.recordOutbound(msg.counters(), msg.line.length() + 1);
+			return;
+		}
+		SharedBuffer b = msg.bufferFor(this);
+		ServerMetrics.recordOutbound(msg.counters(), b.length());
+		if (kind == OutboundQueue.KIND_EVENT) outbound.offer(b);
+		else outbound.offerState(sender, kind, b);
+		if (TickFlusher.enabled()) TickFlusher.schedule(this);
+		else signalWriter();
+	}
+
+	/**
+	 * 他の接続と共有するバッファをそのまま送信キューへ積みます (観戦用のかたまりなど)。
+	 * 参照はこちらで1つ増やすので、呼び出し元の参照はそのまま残ります。
+	 */
+	final void sendShared(SharedBuffer b) {
+		if (closed) return;
+		outbound.offer(b.retain());
+		if (TickFlusher.enabled()) TickFlusher.schedule(this);
+		else signalWriter();
+	}
+
+	/**
+	 * 送信キューから次の1件を取り出します (書き込み担当スレッド専用)。
+	 * バイナリ形式の MOVE は、ここで前回書き出した分との差分に置き換えます。
+	 * 上書きで捨てられた MOVE は符号化器を通らないので、基準は常に実際に書き出したものになります。
+	 * @return 空なら null。書き終えたら release してください
+	 */
+	final SharedBuffer pollOutbound() {
+		if (resyncRequested) {
+			resyncRequested = false;
+			moveDelta.reset();
+		}
+		SharedBuffer b;
+		while ((b = outbound.poll()) != null) {
+			if (b == COMPRESS_FROM_HERE) {
+				// 目印そのものも返し、書き込み担当に圧縮の開始位置を知らせる
+				compressor = new StreamCompression.Compressor();
+				return b;
+			}
+			if (binaryWire) {
+				ByteBuffer frame = b.view();
+				ByteBuffer delta = moveDelta.apply(frame);
+				if (delta != frame) {
+					// 差分に置き換えた (または送らない) ので共有バッファはもう使わない
+					long stamp = b.stamp;
+					b.release();
+					if (delta == null) continue;
+					// delta は符号化器の作業用バッファなので、プールのバッファへ写す
+					b = SharedBuffer.of(delta);
+					b.stamp = stamp;
+				}
+			}
+			if (b.stamp != 0) {
+				if (pendingCount == pendingStamps.length) pendingStamps = Arrays.copyOf(pendingStamps, pendingCount * 2);
+				pendingStamps[pendingCount++] = b.stamp;
+			}
+			return b;
+		}
+		return null;
+	}
+
+	/**
+	 * これまでに取り出した行をすべて書き終えたところで、配信遅延を記録します (書き込み担当スレッド専用)。
+	 */
+	final void recordDelivered() {
+		long now = System.nanoTime();
+		for (int i = 0; i < pendingCount; i++) ServerMetrics.relayLatency.record(now - pendingStamps[i]);
+		pendingCount = 0;
+	}
+
+	/**
+	 * 以降に積まれる送信分を圧縮するよう、送信キューへ目印を積みます。
+	 */
+	final void startCompression() {
+		compressionRequested = true;
+		outbound.offer(COMPRESS_FROM_HERE);
+		signalWriter();
+	}
+
+	/**
+	 * 圧縮を記録付きで行います (書き込み担当スレッド専用)。
+	 */
+	final ByteBuffer compress(ByteBuffer[] bufs, int from, int to, int messages) {
+		long t0 = System.nanoTime();
+		int in = 0;
+		for (int i = from; i < to; i++) in += bufs[i].remaining();
+		ByteBuffer z = compressor.compress(bufs, from, to);
+		ServerStats.recordCompression(in, z.remaining(), System.nanoTime() - t0, messages);
+		return z;
+	}
+
+	/**
+	 * 圧縮器のネイティブのメモリを解放します (書き込み担当スレッドが切断時に呼びます)。
+	 */
+	final void releaseCompressor() {
+		if (compressor != null) compressor.end();
+		compressor = null;
+	}
+
+	/**
+	 * 取り出せるだけ配列の from 以降へ取り出します (書き込み担当スレッド専用)。
+	 * views には書き込み用の複製、owners には書き終えたら release する元のバッファが入ります。
+	 * @return 取り出した件数
+	 */
+	final int drainOutbound(ByteBuffer[] views, SharedBuffer[] owners, int from) {
+		int n = from;
+		SharedBuffer b;
+		while (n < views.length && (b = pollOutbound()) != null) {
+			owners[n] = b;
+			views[n++] = b.view();
+		}
+		return n - from;
+	}
+
+	/**
+	 * まとめて書く行の前に付ける "BATCH n" 行を作ります。
+	 * @return 付けない場合は null
+	 */
+	final byte[] batchHeader(int messages) {
+		if (!batchFraming || messages < 2) return null;
+		return ("BATCH " + messages + "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/** 書き込み担当へ送信キューに追加があったことを知らせます。 */
+	abstract void signalWriter();
+
+	/**
+	 * 応答のない接続を強制的に切断します。どのスレッドから呼んでもかまいません。
+	 * 後始末 (LEAVE 通知や番号の解放) は各エンジンの切断処理で行われます。
+	 */
+	abstract void terminate();
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * クラスタの中継ノードとして、ロビー ({@link ClusterRouter}) へ負荷を報告します (--cluster=ロビーのホスト:ポート)。
+ * つないだら "NODE 公開ホスト 公開ポート [共有の秘密]" を送り、その後は1秒ごとに
+ * "LOAD ルーム数 接続数 接続数の上限 CPU使用率(‰)" を送ります。接続が切れたらつなぎ直します。
+ */
+class ClusterNode {
+	/** 報告の間隔 (つなぎ直す間隔も同じ) */
+	private static final long REPORT_MILLIS = 1000;
+	private static final int CONNECT_TIMEOUT_MS = 1000;
+
+	/**
+	 * 報告を始めます。
+	 * @param router ロビーの報告用のアドレス (ホスト:ポート)
+	 * @param advertiseHost クライアントがこのノードへつなぐときのホスト
+	 * @param advertisePort クライアントがこのノードへつなぐときのポート
+	 * @param secret ロビーと共有する秘密 (--cluster-secret、null か空なら送らない)
+	 */
+	static void start(String router, String advertiseHost, int advertisePort, String secret) {
+		int colon = router.lastIndexOf(':');
+		if (colon < 0) throw new IllegalArgumentException("--cluster=host:port");
+		String host = router.substring(0, colon);
+		int port = Integer.parseInt(router.substring(colon + 1));
+		String hello = "NODE " + advertiseHost + " " + advertisePort + (secret == null || secret.isEmpty() ? "" : " " + secret);
+		Thread t = new Thread(() -> run(host, port, hello), "cluster-node");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static void run(String host, int port, String hello) {
+		while (true) {
+			try (Socket s = new Socket()) {
+				s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+				s.setTcpNoDelay(true);
+				Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+				out.write(hello + "\n");
+				while (true) {
+					out.write("LOAD " + MyServer2.roomCount() + " " + MyServer2.liveCount() + " " + MyServer2.capacity()
+							+ " " + cpuPermille() + "\n");
+					out.flush();
+					Thread.sleep(REPORT_MILLIS);
+				}
+			} catch (IOException e) {
+				// ロビーが止まっている: 間を置いてつなぎ直す
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				Thread.sleep(REPORT_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * このプロセスの CPU 使用率 (マシン全体に対する ‰) を返します。取れない環境ではシステムの負荷平均から求めます。
+	 */
+	private static int cpuPermille() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+			if (load >= 0) return (int) Math.round(load * 1000);
+		}
+		double average = os.getSystemLoadAverage();
+		if (average < 0) return 0;
+		return (int) Math.min(1000, Math.round(average / os.getAvailableProcessors() * 1000));
+	}
+}
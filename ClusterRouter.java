@@ -0,0 +1,244 @@
+import game.LineTokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * クラスタ構成のロビー (--cluster-port を指定して起動したサーバー)。
+ * ロビーはルームを持たず、接続の受け付けとマッチングだけを行います。ルームは中継ノード
+ * (--cluster=ロビーのホスト:ポート を指定して起動した別のサーバー) のどれかに割り当て、
+ * "REDIRECT ホスト ポート [つないだ後に送る行]" でクライアントをそのノードへつなぎ直させます。
+ * <p>
+ * ノードは --cluster-port へつないで "NODE 公開ホスト 公開ポート [共有の秘密]" を送り、その後は1秒ごとに
+ * "LOAD ルーム数 接続数 接続数の上限 CPU使用率(‰)" を送ります ({@link ClusterNode})。
+ * 新しいルームは、接続数の割合 (直近の報告にそれ以降につなぎ直させた人数を足したもの) と CPU 使用率の和が
+ * 最も小さいノードへ割り当てます。報告が途絶えたノードや報告の接続が切れたノードには割り当てません。
+ * 処理能力を増やすには、別のポートでノードを起動するだけです。
+ * <p>
+ * ノードの報告を受け付けたノードへプレイヤーを送るので、報告のポートは既定ではループバックだけで待ち受け
+ * (--cluster-bind)、--cluster-secret を指定したら NODE の行の秘密が一致するノードだけを受け付けます。
+ * ループバック以外で待ち受けるときは秘密を必須にします。
+ */
+class ClusterRouter {
+	/** 報告がこの時間途絶えたノードには新しいルームを割り当てない */
+	private static final long STALE_NANOS = 3_000_000_000L;
+	/** 報告の接続でこの時間何も届かなければ切れたとみなす */
+	private static final int READ_TIMEOUT_MS = 10_000;
+	/** 覚えておくルームの割り当ての数 (使われていないものから忘れる) */
+	private static final int ROOM_MEMORY = 65536;
+
+	/** 中継ノード */
+	static final class Node {
+		final String host;
+		final int port;
+		// 直近の報告 (そのノードの報告を読むスレッドが書く)
+		volatile int rooms, connections, capacity, cpuPermille;
+		volatile long reportedAt;
+		/** 直近の報告の後につなぎ直させた人数 (次の報告に含まれるまでの見込み) */
+		final AtomicInteger pending = new AtomicInteger();
+		volatile boolean alive = true;
+
+		Node(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		void report(int rooms, int connections, int capacity, int cpuPermille) {
+			this.rooms = rooms;
+			this.connections = connections;
+			this.capacity = Math.max(1, capacity);
+			this.cpuPermille = cpuPermille;
+			pending.set(0);
+			reportedAt = System.nanoTime();
+		}
+
+		String address() {
+			return host + ":" + port;
+		}
+	}
+
+	private static final CopyOnWriteArrayList<Node> nodes = new CopyOnWriteArrayList<>();
+	// ルーム番号 → 担当ノード (自身のロックの中で読み書きする)
+	private static final LinkedHashMap<Integer, Node> roomNodes = new LinkedHashMap<Integer, Node>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Node> eldest) {
+			return size() > ROOM_MEMORY;
+		}
+	};
+	private static volatile boolean enabled = false;
+	/** ノードが NODE の行で送る秘密 (UTF-8、空なら確かめない) */
+	private static byte[] secret = new byte[0];
+
+	/** つなぎ直させた数 */
+	static final LongAdder redirects = new LongAdder();
+	/** 割り当てられるノードがなく CLUSTER_FULL を返した数 */
+	static final LongAdder rejected = new LongAdder();
+
+	/**
+	 * ノードからの報告を port で受け付け、ロビーとして動き始めます。
+	 * @param bind   待ち受けるアドレス (null ならループバック)
+	 * @param secret ノードと共有する秘密 (null か空なら確かめない。ループバック以外で待ち受けるときは必須)
+	 */
+	static void start(String bind, int port, String secret) throws IOException {
+		InetAddress address = (bind == null) ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+		boolean open = secret == null || secret.isEmpty();
+		if (open && !address.isLoopbackAddress()) {
+			throw new IllegalArgumentException("--cluster-secret is required when --cluster-bind is not a loopback address");
+		}
+		ClusterRouter.secret = open ? new byte[0] : secret.getBytes(StandardCharsets.UTF_8);
+		ServerSocket server = new ServerSocket(port, 50, address);
+		enabled = true;
+		Thread t = new Thread(() -> acceptNodes(server), "cluster-router");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * 報告が届いているノードの一覧を返します (監視用)。
+	 */
+	static Iterable<Node> nodes() {
+		return nodes;
+	}
+
+	/**
+	 * 新しいルームを割り当てられるノードの数を返します。
+	 */
+	static int availableNodes() {
+		long now = System.nanoTime();
+		int n = 0;
+		for (Node node : nodes) if (available(node, now)) n++;
+		return n;
+	}
+
+	private static void acceptNodes(ServerSocket server) {
+		while (true) {
+			Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException e) {
+				ServerLog.error("cluster-router", e);
+				return;
+			}
+			Thread t = new Thread(() -> readReports(s), "cluster-node-report");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	// 1つのノードの報告を、接続が切れるまで読む
+	private static void readReports(Socket s) {
+		Node node = null;
+		LineTokenizer t = new LineTokenizer();
+		try (Socket socket = s;
+		     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+			socket.setSoTimeout(READ_TIMEOUT_MS);
+			String line;
+			while ((line = in.readLine()) != null) {
+				t.reset(line);
+				if (node == null && t.equalsAt(0, "NODE")) {
+					if (!secretMatches(t.count() > 3 ? t.stringAt(3) : "")) {
+						ServerLog.warn(ServerLog.Event.NODE_REJECTED, 0, String.valueOf(socket.getRemoteSocketAddress()));
+						return;
+					}
+					node = new Node(t.stringAt(1), t.intAt(2));
+					nodes.add(node);
+					ServerLog.info(ServerLog.Event.NODE_UP, 0, node.address());
+				} else if (node != null && t.equalsAt(0, "LOAD")) {
+					node.report(t.intAt(1), t.intAt(2), t.intAt(3), t.intAt(4));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// 切断・無応答・不正な報告はどれもノードを外す
+		}
+		if (node != null) {
+			node.alive = false;
+			nodes.remove(node);
+			ServerLog.warn(ServerLog.Event.NODE_DOWN, 0, node.address());
+		}
+	}
+
+	// 比べる時間が一致した長さで変わらないように MessageDigest.isEqual で比べる
+	private static boolean secretMatches(String s) {
+		return secret.length == 0 || MessageDigest.isEqual(secret, s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean available(Node n, long now) {
+		return n.alive && now - n.reportedAt <= STALE_NANOS && n.connections + n.pending.get() < n.capacity;
+	}
+
+	// 新しいルームを割り当てるノードを選ぶ (なければ null)
+	private static Node leastLoaded() {
+		long now = System.nanoTime();
+		Node best = null;
+		double bestLoad = Double.MAX_VALUE;
+		for (Node n : nodes) {
+			if (!available(n, now)) continue;
+			double load = (double) (n.connections + n.pending.get()) / n.capacity + n.cpuPermille / 1000.0;
+			if (load < bestLoad) {
+				best = n;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * ルームの担当ノードを返します。まだ割り当てていないルームと、担当ノードが外れたルームは負荷の低いノードへ割り当てます。
+	 * @return 割り当てられるノードがなければ null
+	 */
+	private static Node nodeFor(int room) {
+		synchronized (roomNodes) {
+			Node n = roomNodes.get(room);
+			if (n == null || !n.alive) {
+				n = leastLoaded();
+				if (n == null) return null;
+				roomNodes.put(room, n);
+			}
+			n.pending.incrementAndGet();
+			return n;
+		}
+	}
+
+	/**
+	 * クライアントをルームの担当ノードへつなぎ直させます: REDIRECT ホスト ポート [then]
+	 * 割り当てられるノードがなければ CLUSTER_FULL を送ります。
+	 * @param then つなぎ直した後にクライアントがノードへ送る行 (null なら送らない)
+	 */
+	static void redirect(ClientConnection c, int room, String then) {
+		Node n = nodeFor(room);
+		if (n == null) {
+			rejected.increment();
+			c.send("CLUSTER_FULL");
+			return;
+		}
+		redirects.increment();
+		ServerLog.log(ServerLog.Level.INFO, ServerLog.Event.REDIRECT, c.number, room, n.address());
+		c.send("REDIRECT " + n.host + " " + n.port + (then == null ? "" : " " + then));
+	}
+
+	/**
+	 * マッチングで組になった2人を、新しいルームの担当ノードへそろってつなぎ直させます (Matchmaker のスレッドから呼びます)。
+	 * ノードでは番号が振り直されるので、ホストは番号の小さい方になります。
+	 */
+	static void placeMatch(ClientConnection host, ClientConnection guest, int room) {
+		redirect(host, room, "JOIN " + room);
+		redirect(guest, room, "JOIN " + room);
+	}
+}
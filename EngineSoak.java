@@ -0,0 +1,416 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 受信スレッドのエンジン (プラットフォームスレッドの blocking と仮想スレッドの virtual) の耐久比較。
+ * エンジンごとにサーバーを別プロセス (この JVM と同じ java) で起動し、ループバックで N 接続 (既定 10000) を張って、
+ * サーバーのヒープ使用量・生きているスレッド数 (--stats の表示から) と、配信の遅延を測ります。
+ * 配信の遅延は、全員がつながった後に1接続を追加し、その ENTER が N 接続すべてに届くまでの時間です (--probes 回の中央値と最大)。
+ * <pre>
+ * java EngineSoak [--clients=10000] [--engines=blocking,virtual] [--port=10100] [--probes=10] [--ramp=32] [--timeout=600]
+ * </pre>
+ * 次のことも確かめ、満たさなければ終了コード 1 で終わります。
+ * <ul>
+ * <li>全員がつながり、追加した接続の ENTER が全員に届くこと</li>
+ * <li>仮想スレッドが使えない JVM (Java 20 以前) では、virtual を指定しても blocking で動くこと
+ * (起動時の表示、{@link HandlerThreads#start} が通常のスレッドを返すこと、接続数以上のスレッドが生きていること)</li>
+ * <li>仮想スレッドが使える JVM では、virtual のときに生きているスレッドが接続数より十分少ないこと</li>
+ * </ul>
+ * クライアント側は1つのセレクターで全接続を受け持つので、この JVM のスレッドは増えません。
+ * 大きな N ではファイル記述子とスレッド数の上限 (ulimit -n / -u) に注意してください。
+ * つなぐたびに全員へ ENTER を配るので、全員がつながるまでの時間は N の2乗で増えます (--timeout はこの待ち時間の上限です)。
+ */
+class EngineSoak {
+	private static final Pattern STATS = Pattern.compile("threads=(\\d+) heap=(\\d+)MB");
+	private static final String ENGINE_VIRTUAL = "Engine: virtual threads";
+	private static final String ENGINE_FALLBACK = "Engine: blocking (virtual threads need Java 21+)";
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		ServerOptions options = ServerOptions.parse(args);
+		int clients = options.getInt("clients", 10000, 1);
+		int port = options.getInt("port", 10100);
+		int probes = options.getInt("probes", 10, 1);
+		int ramp = options.getInt("ramp", 32, 1);
+		long timeoutNanos = TimeUnit.SECONDS.toNanos(options.getInt("timeout", 600, 1));
+		boolean virtualAvailable = HandlerThreads.virtualThreadsAvailable();
+
+		System.out.println("java=" + System.getProperty("java.version") + " virtual threads="
+				+ (virtualAvailable ? "available" : "unavailable") + " clients=" + clients);
+		checkHandlerThreads(virtualAvailable);
+
+		for (String engine : options.get("engines", "blocking,virtual").split(",")) {
+			engine = engine.trim();
+			Result r = run(engine, clients, port++, probes, ramp, timeoutNanos);
+			if (r == null) continue;
+			System.out.printf("engine=%s (%s) clients=%d connect=%.1fs threads=%d heap=%dMB broadcast p50=%.1fms max=%.1fms%n",
+					engine, r.banner.substring("Engine: ".length()), r.connected, r.connectNanos / 1e9,
+					r.threads, r.heapMb, r.broadcastP50 / 1e6, r.broadcastMax / 1e6);
+			if (engine.equals("virtual")) checkVirtual(r, clients, virtualAvailable);
+		}
+
+		System.out.println("failures=" + failures);
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * 仮想スレッドを指定して起動したスレッドが、使える JVM では仮想スレッド、使えない JVM では通常のスレッドになることを確かめます。
+	 */
+	private static void checkHandlerThreads(boolean virtualAvailable) throws InterruptedException {
+		CountDownLatch ran = new CountDownLatch(1);
+		Thread t = HandlerThreads.start(ran::countDown, "soak-check", true);
+		if (!ran.await(5, TimeUnit.SECONDS)) fail("HandlerThreads.start(virtual) did not run the task");
+		if (isVirtual(t) != virtualAvailable) {
+			fail("HandlerThreads.start(virtual) returned a " + (isVirtual(t) ? "virtual" : "platform") + " thread");
+		}
+	}
+
+	/**
+	 * virtual を指定したサーバーが、使えるかどうかに応じたエンジンで動いたことを確かめます。
+	 */
+	private static void checkVirtual(Result r, int clients, boolean virtualAvailable) {
+		if (virtualAvailable) {
+			if (!r.banner.equals(ENGINE_VIRTUAL)) fail("virtual engine started as \"" + r.banner + "\"");
+			// 受信と書き込みのスレッドが仮想スレッドなら、通常のスレッドは接続数に比例しない
+			if (r.threads >= clients / 2) fail("virtual engine has " + r.threads + " live platform threads");
+		} else {
+			if (!r.banner.equals(ENGINE_FALLBACK)) fail("virtual engine without virtual threads started as \"" + r.banner + "\"");
+			// フォールバックでは1接続に受信と書き込みの2スレッド
+			if (r.threads < clients) fail("fallback engine has only " + r.threads + " live threads for " + clients + " clients");
+		}
+	}
+
+	private static boolean isVirtual(Thread t) {
+		try {
+			Method m = Thread.class.getMethod("isVirtual");
+			return (Boolean) m.invoke(t);
+		} catch (Exception e) {
+			// Java 20 以前: 仮想スレッドなし
+			return false;
+		}
+	}
+
+	private static void fail(String why) {
+		failures++;
+		System.out.println("FAIL " + why);
+	}
+
+	/** 1エンジン分の測定結果 */
+	private static class Result {
+		String banner = "";
+		int connected;
+		long connectNanos;
+		int threads;
+		long heapMb;
+		long broadcastP50;
+		long broadcastMax;
+	}
+
+	/**
+	 * サーバーを起動して測り、止めます。
+	 * @return 起動できなければ null
+	 */
+	private static Result run(String engine, int clients, int port, int probes, int ramp, long timeoutNanos)
+			throws Exception {
+		File log = File.createTempFile("soak-", ".log");
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> cmd = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"), "MyServer2",
+				"--engine=" + engine, "--port=" + port, "--max-clients=" + (clients + probes + 16), "--stats=1",
+				"--log-file=" + log.getPath(), "--resume-grace=0"));
+		Process server = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		Result r = new Result();
+		ServerOutput out = new ServerOutput(server);
+		out.start();
+		Fleet fleet = null;
+		try {
+			if (!waitForPort(port, timeoutNanos)) {
+				fail(engine + ": server did not start");
+				return null;
+			}
+			// 起動時の表示はポートを開く前に出ているが、読み取りが追いつくまで少し待つ
+			for (int i = 0; i < 50 && out.banner.isEmpty(); i++) Thread.sleep(20);
+			r.banner = out.banner;
+
+			long t0 = System.nanoTime();
+			fleet = new Fleet(port, clients, ramp);
+			fleet.start();
+			while (fleet.started < clients && fleet.full == 0 && System.nanoTime() - t0 < timeoutNanos) Thread.sleep(50);
+			r.connected = fleet.started;
+			r.connectNanos = System.nanoTime() - t0;
+			if (r.connected < clients) {
+				fail(engine + ": " + r.connected + "/" + clients + " clients connected (" + fleet.full + " FULL)");
+				return r;
+			}
+
+			// 全員の ENTER が落ち着いてから測る
+			Thread.sleep(2000);
+			long[] latency = new long[probes];
+			int measured = 0;
+			fleet.probing = true;
+			for (int i = 0; i < probes; i++) {
+				long at = probe(port, fleet, timeoutNanos);
+				if (at < 0) {
+					fail(engine + ": probe " + i + " ENTER did not reach all clients");
+					break;
+				}
+				latency[measured++] = at;
+			}
+			fleet.probing = false;
+			Arrays.sort(latency, 0, measured);
+			if (measured > 0) {
+				r.broadcastP50 = latency[measured / 2];
+				r.broadcastMax = latency[measured - 1];
+			}
+
+			// 次の --stats の表示 (全員がつながった状態) を待つ
+			String before = out.stats;
+			long wait = System.nanoTime();
+			while (out.stats == before && System.nanoTime() - wait < TimeUnit.SECONDS.toNanos(5)) Thread.sleep(50);
+			Matcher m = STATS.matcher(out.stats == null ? "" : out.stats);
+			if (m.find()) {
+				r.threads = Integer.parseInt(m.group(1));
+				r.heapMb = Long.parseLong(m.group(2));
+			} else {
+				fail(engine + ": no [stats] line from the server");
+			}
+			return r;
+		} finally {
+			if (fleet != null) fleet.close();
+			server.destroy();
+			if (!server.waitFor(10, TimeUnit.SECONDS)) server.destroyForcibly();
+			log.delete();
+		}
+	}
+
+	private static boolean waitForPort(int port, long timeoutNanos) throws InterruptedException {
+		long t0 = System.nanoTime();
+		while (System.nanoTime() - t0 < timeoutNanos) {
+			try (Socket s = new Socket()) {
+				s.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+				return true;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 1接続を追加し、その ENTER が全員に届くまでの時間を測ります。
+	 * @return 届くまでの時間 (ns)。時間内に届かなければ -1
+	 */
+	private static long probe(int port, Fleet fleet, long timeoutNanos) throws IOException, InterruptedException {
+		// 切断した接続の番号は使い回されるので、前の回の数をリセットしてから測る
+		fleet.reachedAll.clear();
+		fleet.round++;
+		long t0 = System.nanoTime();
+		try (Socket s = new Socket()) {
+			s.connect(new InetSocketAddress("127.0.0.1", port));
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			String line = in.readLine();
+			if (line == null || !line.startsWith("START ")) return -1;
+			int number = Integer.parseInt(line.substring("START ".length()).trim());
+			Long done;
+			while ((done = fleet.reachedAll.get(number)) == null) {
+				if (System.nanoTime() - t0 > timeoutNanos) return -1;
+				Thread.sleep(1);
+			}
+			return done - t0;
+		} finally {
+			// 切断の LEAVE が全員に行き渡るまで待ってから次を測る
+			Thread.sleep(200);
+		}
+	}
+
+	/**
+	 * N 接続を1つのセレクターで受け持つクライアント群。
+	 * 行は先頭の数バイトだけを見て、START (接続できた)・PING (PONG を返す)・ENTER (配信の到着) を数えます。
+	 */
+	private static class Fleet extends Thread {
+		private static final byte[] PONG = "PONG\n".getBytes(StandardCharsets.US_ASCII);
+
+		private final InetSocketAddress address;
+		private final int clients;
+		private final int ramp;
+		private final Selector selector;
+		private final ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+		private final List<SocketChannel> channels = new ArrayList<>();
+		private volatile boolean running = true;
+
+		/** START を受け取った接続の数 */
+		volatile int started;
+		/** FULL で断られた接続の数 */
+		volatile int full;
+		/** true の間は ENTER を番号ごとに数える */
+		volatile boolean probing;
+		/** 測る回の番号 (変わったら ENTER の数をリセットする) */
+		volatile int round;
+		/** ENTER が全員に届いた時刻 (番号 → System.nanoTime) */
+		final ConcurrentHashMap<Integer, Long> reachedAll = new ConcurrentHashMap<>();
+		// ENTER を受け取った接続の数 (このスレッドだけが読み書きする)
+		private final HashMap<Integer, Integer> enters = new HashMap<>();
+		private int countedRound;
+
+		/** 1接続分の受信状態 (行の先頭だけを覚える) */
+		private static class Client {
+			final byte[] head = new byte[24];
+			int length;
+			boolean started;
+		}
+
+		Fleet(int port, int clients, int ramp) throws IOException {
+			super("soak-clients");
+			setDaemon(true);
+			this.address = new InetSocketAddress("127.0.0.1", port);
+			this.clients = clients;
+			this.ramp = ramp;
+			this.selector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					// START 待ちが ramp 件を超えないように少しずつつなぐ。サーバーの accept の待ち行列 (50) があふれると、
+					// こちらではつながったように見えたまま何も届かない接続が残る
+					while (channels.size() < clients && channels.size() - started < ramp) open();
+					selector.select(10);
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						handle(key);
+					}
+				}
+			} catch (IOException e) {
+				if (running) fail("client fleet: " + e);
+			}
+		}
+
+		private void open() throws IOException {
+			SocketChannel ch = SocketChannel.open();
+			ch.configureBlocking(false);
+			channels.add(ch);
+			if (ch.connect(address)) ch.register(selector, SelectionKey.OP_READ, new Client());
+			else ch.register(selector, SelectionKey.OP_CONNECT, new Client());
+		}
+
+		private void handle(SelectionKey key) {
+			SocketChannel ch = (SocketChannel) key.channel();
+			Client c = (Client) key.attachment();
+			try {
+				if (key.isConnectable()) {
+					ch.finishConnect();
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+				readBuf.clear();
+				int n = ch.read(readBuf);
+				if (n < 0) {
+					key.cancel();
+					ch.close();
+					return;
+				}
+				for (int i = 0; i < n; i++) {
+					byte b = readBuf.get(i);
+					if (b == '\n') {
+						onLine(ch, c);
+						c.length = 0;
+					} else {
+						if (c.length < c.head.length) c.head[c.length] = b;
+						c.length++;
+					}
+				}
+			} catch (IOException e) {
+				key.cancel();
+			}
+		}
+
+		private void onLine(SocketChannel ch, Client c) throws IOException {
+			if (!c.started && startsWith(c, "START ")) {
+				c.started = true;
+				started++;
+			} else if (c.length == 4 && startsWith(c, "PING")) {
+				ch.write(ByteBuffer.wrap(PONG));
+			} else if (c.length == 4 && startsWith(c, "FULL")) {
+				full++;
+			} else if (probing && startsWith(c, "ENTER ")) {
+				int number = 0;
+				for (int i = "ENTER ".length(); i < Math.min(c.length, c.head.length); i++) {
+					number = number * 10 + (c.head[i] - '0');
+				}
+				if (countedRound != round) {
+					enters.clear();
+					countedRound = round;
+				}
+				int count = enters.merge(number, 1, Integer::sum);
+				if (count == clients) reachedAll.put(number, System.nanoTime());
+			}
+		}
+
+		private static boolean startsWith(Client c, String prefix) {
+			if (c.length < prefix.length()) return false;
+			for (int i = 0; i < prefix.length(); i++) {
+				if (c.head[i] != prefix.charAt(i)) return false;
+			}
+			return true;
+		}
+
+		void close() throws InterruptedException {
+			running = false;
+			selector.wakeup();
+			join(5000);
+			for (SocketChannel ch : channels) MyServer2.closeQuietly(ch);
+			MyServer2.closeQuietly(selector);
+		}
+	}
+
+	/**
+	 * サーバーの標準出力を読み、起動時のエンジンの表示と直近の [stats] の行を覚えます。
+	 */
+	private static class ServerOutput extends Thread {
+		private final Process server;
+		volatile String banner = "";
+		volatile String stats;
+
+		ServerOutput(Process server) {
+			super("soak-server-output");
+			setDaemon(true);
+			this.server = server;
+		}
+
+		@Override
+		public void run() {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("Engine: ")) banner = line;
+					else if (line.startsWith("[stats] ")) stats = line;
+				}
+			} catch (IOException e) {
+				// サーバーを止めた
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+import java.lang.reflect.Method;
+
+/**
+ * クライアント処理スレッドの起動を受け持つユーティリティ。
+ * Java 21 以降では仮想スレッドで起動できます (ビルドは Java 8 互換のままにするためリフレクションで呼び出します)。
+ */
+class HandlerThreads {
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_START;
+
+	static {
+		Method ofVirtual = null, name = null, start = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+		} catch (Exception e) {
+			// Java 20 以前: 仮想スレッドなし
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_START = start;
+	}
+
+	static boolean virtualThreadsAvailable() {
+		if (OF_VIRTUAL == null) return false;
+		try {
+			// Java 19/20 ではプレビュー機能のため、有効化されていないと例外になる
+			OF_VIRTUAL.invoke(null);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 処理を新しいスレッドで開始します。
+	 * @param virtual true かつ利用可能なら仮想スレッド、それ以外はプラットフォームスレッド
+	 */
+	static Thread start(Runnable task, String name, boolean virtual) {
+		if (virtual && OF_VIRTUAL != null) {
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_START.invoke(builder, task);
+			} catch (Exception e) {
+				// 起動できなければ通常スレッドへフォールバック
+			}
+		}
+		Thread t = new Thread(task, name);
+		t.start();
+		return t;
+	}
+}
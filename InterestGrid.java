@@ -0,0 +1,173 @@
+import game.GameConstants;
+import game.LineTokenizer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 関心領域 (AOI) による配信先の絞り込み。3人以上のルームで、遠くのプレイヤーの更新を減らします。
+ * <p>
+ * マップを GRID_SIZE 四方のセルに分けた一様なグリッドで位置を表し、各プレイヤーの視野は自分のセルを中心とした
+ * 正方形のセル範囲とします。MOVE は送信者が視野に入っているメンバーへは毎回、それ以外へは間引いて送り、
+ * SHOT は弾の通り道が視野を横切るメンバーへだけ送ります。
+ * <p>
+ * 1人あたりの受信量が人数によらずほぼ一定になるよう、混み合ったルームでは視野を狭めて、視野に入る人数の見込みを
+ * {@link #NEAR_TARGET} 人程度に抑えます。遠くへの MOVE の間引き方も人数に応じて変え、1人が受け取る遠くの MOVE の数を
+ * {@link #FAR_MOVES_PER_SEC} 程度に抑えます。
+ * <p>
+ * インスタンスはルームごとに作り、そのルームの視野の広さと直近の SHOT の通り道を持ちます。
+ * 位置 (ClientConnection の cellX / cellY) も含め、ルームの担当シャードのスレッドだけが読み書きします。
+ */
+class InterestGrid {
+	/** これより多い人数のルームで絞り込む */
+	static final int MIN_MEMBERS = 2;
+	/** 視野に入る人数の見込みの上限 (これを超えそうなら視野を狭める) */
+	static final int NEAR_TARGET = 6;
+	/** 1人が1秒間に受け取る、視野の外のプレイヤーの MOVE の目安 */
+	static final int FAR_MOVES_PER_SEC = 120;
+	/** 視野の外への MOVE を最低でも何回に1回にするか (60Hz → 10Hz) */
+	static final int FAR_DIVISOR_MIN = 6;
+	private static final int COLUMNS = GameConstants.MAP_WIDTH / GameConstants.GRID_SIZE;
+	private static final int ROWS = GameConstants.MAP_HEIGHT / GameConstants.GRID_SIZE;
+
+	/** 視野の半径の既定値 (px) */
+	static final int DEFAULT_RADIUS = 240;
+
+	/** 視野の半径の上限 (セル数、0 なら絞り込まない) */
+	static volatile int radiusCells = DEFAULT_RADIUS / GameConstants.GRID_SIZE;
+	/** 絞り込みで送らなかった件数 */
+	static final LongAdder filtered = new LongAdder();
+
+	// このルームでの視野の半径 (セル数、resize で人数に合わせる)
+	private int radius = radiusCells;
+
+	/**
+	 * 視野の半径の上限をピクセルで設定します (0 で絞り込みを無効にします)。
+	 */
+	static void setRadius(int pixels) {
+		radiusCells = Math.max(0, (pixels + GameConstants.GRID_SIZE - 1) / GameConstants.GRID_SIZE);
+	}
+
+	/**
+	 * members 人のルームで絞り込むか。
+	 */
+	static boolean applies(int members) {
+		return radiusCells > 0 && members > MIN_MEMBERS;
+	}
+
+	/**
+	 * ルームの人数に合わせて視野の広さを決め直します (入退室のたびに呼びます)。
+	 * 全員がマップに一様に散らばっているとして、視野に入る人数の見込みが NEAR_TARGET 以下になる最大の半径にします (最小 1セル)。
+	 */
+	void resize(int members) {
+		int cells = COLUMNS * ROWS;
+		int r = radiusCells;
+		while (r > 1 && (long) (2 * r + 1) * (2 * r + 1) * (members - 1) > (long) NEAR_TARGET * cells) r--;
+		radius = r;
+	}
+
+	/**
+	 * ルームへ入ったときに位置を未知に戻します。位置が分かるまでは全員から見えるものとして扱います。
+	 */
+	static void reset(ClientConnection c) {
+		c.cellX = -1;
+		c.cellY = -1;
+		c.moveCount = 0;
+	}
+
+	/**
+	 * MOVE x y ... の位置で c のセルを更新します。
+	 * @return 位置を読み取れたら true
+	 */
+	static boolean move(ClientConnection c, LineTokenizer t) {
+		try {
+			c.cellX = clamp((int) Math.floor((t.doubleAt(1) - GameConstants.MAP_X) / GameConstants.GRID_SIZE), COLUMNS);
+			c.cellY = clamp((int) Math.floor((t.doubleAt(2) - GameConstants.MAP_Y) / GameConstants.GRID_SIZE), ROWS);
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private static int clamp(int cell, int count) {
+		return Math.max(0, Math.min(count - 1, cell));
+	}
+
+	/**
+	 * sender の今回の MOVE を視野の外のメンバーへも送る回か。
+	 */
+	static boolean farTurn(ClientConnection sender, int members) {
+		int divisor = Math.max(FAR_DIVISOR_MIN, ((members - 1) * GameConstants.FPS + FAR_MOVES_PER_SEC - 1) / FAR_MOVES_PER_SEC);
+		return sender.moveCount++ % divisor == 0;
+	}
+
+	/**
+	 * viewer の視野に target のセルが入っているか。どちらかの位置が未知なら入っているものとします。
+	 */
+	boolean sees(ClientConnection viewer, ClientConnection target) {
+		if (viewer.cellX < 0 || target.cellX < 0) return true;
+		int r = radius;
+		return Math.abs(viewer.cellX - target.cellX) <= r && Math.abs(viewer.cellY - target.cellY) <= r;
+	}
+
+	// 直近の SHOT の通り道 (aim で設定、ルームごと・担当シャード専用)
+	private double shotX0, shotY0, shotX1, shotY1;
+
+	/**
+	 * SHOT の弾が消えるまでの通り道を求めます。続けて {@link #crosses} で各メンバーの視野と照らし合わせます。
+	 * 跳ね返る弾は通り道が読めないので絞り込みません。
+	 * @param t SHOT bulletId x y angle speed damage size flags ownerId [extraBounces maxLife]
+	 * @return 通り道で絞り込めるなら true (false なら全員へ送る)
+	 */
+	boolean aim(LineTokenizer t) {
+		try {
+			int flags = t.intAt(8);
+			int extraBounces = (t.count() > 10) ? t.intAt(10) : 0;
+			if ((flags & GameConstants.FLAG_BOUNCE) != 0 || extraBounces > 0) return false;
+			double angle = t.doubleAt(4);
+			int life = (t.count() > 11) ? t.intAt(11) : GameConstants.BULLET_DEFAULT_LIFE;
+			double range = t.doubleAt(5) * life;
+			shotX0 = t.doubleAt(2);
+			shotY0 = t.doubleAt(3);
+			shotX1 = shotX0 + Math.cos(angle) * range;
+			shotY1 = shotY0 + Math.sin(angle) * range;
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 直近に {@link #aim} した弾が viewer の視野を横切るか。位置が未知なら横切るものとします。
+	 */
+	boolean crosses(ClientConnection viewer) {
+		if (viewer.cellX < 0) return true;
+		int r = radius, g = GameConstants.GRID_SIZE;
+		double left = GameConstants.MAP_X + (viewer.cellX - r) * g;
+		double top = GameConstants.MAP_Y + (viewer.cellY - r) * g;
+		double right = GameConstants.MAP_X + (viewer.cellX + r + 1) * g;
+		double bottom = GameConstants.MAP_Y + (viewer.cellY + r + 1) * g;
+		return segmentHitsRect(shotX0, shotY0, shotX1, shotY1, left, top, right, bottom);
+	}
+
+	// 線分と軸に平行な長方形の交差 (線分の媒介変数を x・y それぞれの範囲で切り詰める)
+	private static boolean segmentHitsRect(double x0, double y0, double x1, double y1,
+			double left, double top, double right, double bottom) {
+		double dx = x1 - x0, dy = y1 - y0;
+		double enter = 0, exit = 1;
+		if (dx == 0) {
+			if (x0 < left || x0 > right) return false;
+		} else {
+			double a = (left - x0) / dx, b = (right - x0) / dx;
+			enter = Math.max(enter, Math.min(a, b));
+			exit = Math.min(exit, Math.max(a, b));
+		}
+		if (dy == 0) {
+			if (y0 < top || y0 > bottom) return false;
+		} else {
+			double a = (top - y0) / dy, b = (bottom - y0) / dy;
+			enter = Math.max(enter, Math.min(a, b));
+			exit = Math.min(exit, Math.max(a, b));
+		}
+		return enter <= exit;
+	}
+}
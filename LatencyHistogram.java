@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所要時間の分布 (ナノ秒)。
+ * 2のべき乗ごとの区間をさらに16等分した桁数固定のバケットに数えるので、
+ * 値の大きさによらず誤差は約6%以内で、記録はメモリを確保せずにどのスレッドからでも行えます。
+ */
+class LatencyHistogram {
+	// 2のべき乗の区間1つあたりの分割数 (2^SUB_BITS / 2)
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int HALF = SUB >> 1;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * 1件記録します。負の値は 0 として数えます。
+	 */
+	void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		total.increment();
+		sum.add(nanos);
+		long m;
+		while (nanos > (m = max.get())) {
+			if (max.compareAndSet(m, nanos)) break;
+		}
+	}
+
+	private static int index(long v) {
+		if (v < SUB) return (int) v;
+		int e = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+		return (e << (SUB_BITS - 1)) + (int) (v >>> e);
+	}
+
+	// index のバケットに入る最大の値
+	private static long upperBound(int index) {
+		if (index < SUB) return index;
+		int e = (index >> (SUB_BITS - 1)) - 1;
+		long q = (index & (HALF - 1)) + HALF;
+		return ((q + 1) << e) - 1;
+	}
+
+	long count() {
+		return total.sum();
+	}
+
+	long sumNanos() {
+		return sum.sum();
+	}
+
+	long maxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * 指定した割合の件数がそれ以下に収まる値を返します (バケットの上端なので実際より最大約6%大きい値)。
+	 * @param fraction 0〜1 (0.99 なら99パーセンタイル)
+	 * @return 記録がなければ 0
+	 */
+	long percentile(double fraction) {
+		long n = total.sum();
+		if (n == 0) return 0;
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0) return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * limit ナノ秒以下だった件数を返します (境界をまたぐバケットは含めません)。
+	 */
+	long countAtOrBelow(long limit) {
+		long seen = 0;
+		for (int i = 0; i < BUCKETS && upperBound(i) <= limit; i++) seen += counts.get(i);
+		return seen;
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * 接続の生存確認。
+ * 一定時間何も受信していない接続へ PING を送り、HELLO ping で応答を約束したクライアントが
+ * 何も受信しないまま idle-timeout を過ぎたら強制切断します。PONG の応答は往復時間 (RTT) の計測にも使います。
+ * <p>
+ * ping に対応していない旧クライアントは、対戦相手を待つ間やタイトル画面では何も送らないので、
+ * 同じ期限では切断しません。旧クライアントには別の (ずっと長い) legacy-idle-timeout を使い、既定では切断しません。
+ * 相手が落ちて切断を検知できない接続は、ソケットの TCP キープアライブと、送った PING の再送の失敗で検知します。
+ * 期限の確認は PING を送るかどうか (heartbeat) とは別に行います。
+ */
+class Liveness {
+	private static final TimingWheel timers = new TimingWheel(100, 512);
+	private static long heartbeatMillis = 5000;
+	private static long idleTimeoutMillis = 15000;
+	private static long legacyIdleTimeoutMillis = 0;
+	private static boolean started = false;
+
+	static long now() {
+		return System.nanoTime() / 1_000_000L;
+	}
+
+	/**
+	 * @param heartbeatSec         PING を送るまでの無通信時間 (秒, 0 で送らない)
+	 * @param idleTimeoutSec       HELLO ping を送ったクライアントを切断するまでの無通信時間 (秒, 0 で切断しない)
+	 * @param legacyIdleTimeoutSec HELLO ping を送っていないクライアントを切断するまでの無通信時間 (秒, 0 で切断しない)
+	 */
+	static synchronized void configure(int heartbeatSec, int idleTimeoutSec, int legacyIdleTimeoutSec) {
+		heartbeatMillis = Math.max(0, heartbeatSec) * 1000L;
+		idleTimeoutMillis = idleTimeoutSec <= 0 ? 0 : Math.max(idleTimeoutSec, heartbeatSec) * 1000L;
+		legacyIdleTimeoutMillis = Math.max(0, legacyIdleTimeoutSec) * 1000L;
+		if (enabled() && !started) {
+			timers.start("liveness");
+			started = true;
+		}
+	}
+
+	private static boolean enabled() {
+		return heartbeatMillis > 0 || idleTimeoutMillis > 0 || legacyIdleTimeoutMillis > 0;
+	}
+
+	/**
+	 * 接続の監視を開始します。
+	 */
+	static void watch(ClientConnection c) {
+		if (!enabled()) return;
+		c.lastReceived = now();
+		check(c);
+	}
+
+	private static void check(ClientConnection c) {
+		if (c.closed) return;
+		long idle = now() - c.lastReceived;
+		long limit = c.heartbeat ? idleTimeoutMillis : legacyIdleTimeoutMillis;
+		if (limit > 0 && idle >= limit) {
+			ServerLog.info(ServerLog.Event.TIMEOUT, c.number);
+			c.terminate();
+			return;
+		}
+		if (heartbeatMillis > 0 && idle >= heartbeatMillis) {
+			if (c.pingSentAt == 0) c.pingSentAt = now();
+			c.send("PING");
+		}
+
+		// 次に PING を送る時刻と切断の期限のうち早い方で見直す
+		long next = Long.MAX_VALUE;
+		if (heartbeatMillis > 0) next = idle >= heartbeatMillis ? heartbeatMillis : heartbeatMillis - idle;
+		if (limit > 0) next = Math.min(next, limit - idle);
+		// 後から HELLO ping が届くと期限が変わるので、旧クライアントも idle-timeout ごとには見直す
+		if (idleTimeoutMillis > 0) next = Math.min(next, idleTimeoutMillis);
+		if (next != Long.MAX_VALUE) timers.schedule(next, () -> check(c));
+	}
+
+	/**
+	 * PONG を受け取ったときに、直前の PING からの往復時間を記録します (受信担当スレッドから呼びます)。
+	 */
+	static void onPong(ClientConnection c) {
+		long sent = c.pingSentAt;
+		if (sent == 0) return;
+		c.rttMillis = now() - sent;
+		c.pingSentAt = 0;
+	}
+}
@@ -0,0 +1,247 @@
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * マッチングの待ち行列。QUEUE を送ったプレイヤーを2人ずつ組にして、新しいルームとホストを割り当てます。
+ * <p>
+ * 待っているプレイヤーは、待ち始めた順とレーティング順の2つの木 (TreeSet) で持ちます。
+ * 新しく来たプレイヤーはレーティング順の木で前後の最も近い相手を探し (O(log n))、差が許容範囲内ならその場で組にします。
+ * 許容範囲は待つほど広がるので、組めずに残ったプレイヤーは一定間隔で待ち始めた順に見直します。
+ * 組になった2人には "MATCH ルーム番号 ホストの番号" を送り、クライアントはそのルームへ JOIN します。
+ * ホストは長く待っていた方です。クラスタのロビーでは MATCH の代わりに、ルームの担当ノードへの REDIRECT を送ります
+ * ({@link ClusterRouter})。
+ * 組にする直前に2人とも接続中か確かめ、切断していた方は捨てて、残った方は元の順番のまま待たせ直します。
+ * <p>
+ * 待ち行列は専用の1スレッドだけが操作し、受信スレッドからは上限付きのキューで依頼を渡します。
+ */
+class Matchmaker {
+	/** QUEUE でレーティングを省略したときの値 */
+	static final int DEFAULT_RATING = 1500;
+	/** 待ち始めてすぐに組める、レーティングの差の上限 */
+	static final int BASE_TOLERANCE = 100;
+	/** 1秒待つごとに広げる許容範囲 */
+	static final int TOLERANCE_PER_SEC = 50;
+	/** マッチングで割り当てるルーム番号の始まり (JOIN で番号を指定するルームと重ならないように) */
+	static final int FIRST_ROOM = 1 << 20;
+	/** 組めずに残ったプレイヤーを見直す間隔 */
+	private static final long SWEEP_NANOS = 250_000_000;
+	/** 受け取ったまま処理していない依頼の上限 (満杯なら送り手を待たせる) */
+	private static final int REQUEST_LIMIT = 16384;
+
+	/** 1人分の待ち (seq は待ち始めた順の通し番号) */
+	private static final class Ticket {
+		final ClientConnection conn;
+		final int rating;
+		final long since;
+		final long seq;
+
+		Ticket(ClientConnection conn, int rating, long since, long seq) {
+			this.conn = conn;
+			this.rating = rating;
+			this.since = since;
+			this.seq = seq;
+		}
+	}
+
+	/** 受信スレッドからの依頼 (cancel なら conn の待ちを取り消す) */
+	private static final class Request {
+		final ClientConnection conn;
+		final int rating;
+		final boolean cancel;
+		final long time = System.nanoTime();
+
+		Request(ClientConnection conn, int rating, boolean cancel) {
+			this.conn = conn;
+			this.rating = rating;
+			this.cancel = cancel;
+		}
+	}
+
+	private static final ArrayBlockingQueue<Request> requests = new ArrayBlockingQueue<>(REQUEST_LIMIT);
+
+	// 以下はマッチングのスレッド専用
+	private static final TreeSet<Ticket> byWait = new TreeSet<>(Comparator.comparingLong((Ticket t) -> t.seq));
+	private static final TreeSet<Ticket> byRating = new TreeSet<>(
+			Comparator.comparingInt((Ticket t) -> t.rating).thenComparingLong(t -> t.seq));
+	private static final HashMap<ClientConnection, Ticket> tickets = new HashMap<>();
+	private static long nextSeq = 0;
+	private static int nextRoom = FIRST_ROOM;
+
+	// 監視用 (マッチングのスレッドが書き、他のスレッドは読むだけ)
+	/** 待っている人数 */
+	static volatile int waiting = 0;
+	static volatile long busyNanos = 0;
+	/** 組にした数 */
+	static final LongAdder matches = new LongAdder();
+	/** QUEUE から MATCH までの待ち時間 */
+	static final LatencyHistogram waitTimes = new LatencyHistogram();
+
+	static {
+		Thread t = new Thread(Matchmaker::run, "matchmaker");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * 待ち行列に加えます (受信担当スレッドから呼びます)。既に待っていればレーティングを差し替えて並び直します。
+	 */
+	static void enqueue(ClientConnection c, int rating) {
+		c.queued = true;
+		submit(new Request(c, rating, false));
+	}
+
+	/**
+	 * 待ちを取り消します (受信担当スレッドから呼びます)。組になった後に呼んでも何も起きません。
+	 */
+	static void cancel(ClientConnection c) {
+		if (!c.queued) return;
+		c.queued = false;
+		submit(new Request(c, 0, true));
+	}
+
+	private static void submit(Request r) {
+		try {
+			requests.put(r);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 待ち時間 nanos のプレイヤーと組める、レーティングの差の上限を返します。
+	 */
+	static long tolerance(long nanos) {
+		return BASE_TOLERANCE + nanos / 1_000_000 * TOLERANCE_PER_SEC / 1000;
+	}
+
+	private static void run() {
+		long nextSweep = System.nanoTime() + SWEEP_NANOS;
+		while (true) {
+			Request r;
+			try {
+				r = requests.poll(Math.max(0, nextSweep - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				if (r != null) {
+					if (r.cancel) forget(tickets.get(r.conn));
+					else add(r, start);
+				}
+				if (start >= nextSweep) {
+					sweep(start);
+					nextSweep = start + SWEEP_NANOS;
+				}
+			} catch (RuntimeException e) {
+				ServerLog.error("matchmaker", e);
+			}
+			waiting = tickets.size();
+			busyNanos += System.nanoTime() - start;
+		}
+	}
+
+	// 新しく来たプレイヤーを組めるなら組み、組めなければ待たせる
+	private static void add(Request r, long now) {
+		forget(tickets.get(r.conn));
+		if (r.conn.closed) return;
+		Ticket t = new Ticket(r.conn, r.rating, r.time, nextSeq++);
+		Ticket partner = partnerOf(t, now);
+		if (partner != null) {
+			forget(partner);
+			pair(partner, t, now);
+			return;
+		}
+		addWaiting(t);
+	}
+
+	// 待ち行列に入れる (組になる前に送られていた次の QUEUE の印を pair が消していても付け直す)
+	private static void addWaiting(Ticket t) {
+		t.conn.queued = true;
+		byWait.add(t);
+		byRating.add(t);
+		tickets.put(t.conn, t);
+	}
+
+	// 許容範囲が広がって組めるようになったプレイヤーを、長く待っている順に組む
+	private static void sweep(long now) {
+		Ticket t = byWait.isEmpty() ? null : byWait.first();
+		while (t != null) {
+			// 自分自身を相手に選ばないよう、探す間だけレーティング順の木から外す
+			byRating.remove(t);
+			Ticket partner = partnerOf(t, now);
+			if (partner != null) {
+				byWait.remove(t);
+				tickets.remove(t.conn);
+				forget(partner);
+				pair(t, partner, now);
+			} else {
+				byRating.add(t);
+			}
+			t = byWait.higher(t);
+		}
+	}
+
+	/**
+	 * レーティング順の木で t の前後にいる最も近い相手を探し、許容範囲内ならそれを返します。
+	 * 許容範囲は2人のうち長く待っている方の待ち時間で決めます。
+	 * 取り消しが届く前に切断していた相手は、待ち行列から外して次に近い相手を探します。
+	 */
+	private static Ticket partnerOf(Ticket t, long now) {
+		// 同じレーティングの中では最も長く待っている人が上側の候補になる
+		Ticket probe = new Ticket(null, t.rating, 0, Long.MIN_VALUE);
+		while (true) {
+			Ticket above = byRating.ceiling(probe);
+			Ticket below = byRating.lower(probe);
+			Ticket best;
+			if (above == null) best = below;
+			else if (below == null) best = above;
+			else best = (above.rating - t.rating <= t.rating - below.rating) ? above : below;
+			if (best == null) return null;
+			if (best.conn.closed) {
+				forget(best);
+				continue;
+			}
+			long wait = now - Math.min(t.since, best.since);
+			return (Math.abs((long) best.rating - t.rating) <= tolerance(wait)) ? best : null;
+		}
+	}
+
+	// 待ち行列から外す
+	private static void forget(Ticket t) {
+		if (t == null) return;
+		byWait.remove(t);
+		byRating.remove(t);
+		tickets.remove(t.conn);
+	}
+
+	// 2人に新しいルームを割り当てる (host が長く待っていた方)。クラスタのロビーではルームの担当ノードへつなぎ直させる。
+	// どちらかが切断していたら組まずに、残った方を元の順番のまま待ち行列へ戻す (2人とも待ち行列から外した状態で呼ぶ)
+	private static void pair(Ticket host, Ticket guest, long now) {
+		if (host.conn.closed || guest.conn.closed) {
+			if (!host.conn.closed) addWaiting(host);
+			if (!guest.conn.closed) addWaiting(guest);
+			return;
+		}
+		// もう待っていないので、この後の LOBBY や切断では取り消しを依頼しない
+		// (MATCH を送る前に戻すので、MATCH を受けてから送られた QUEUE の印は消さない)
+		host.conn.queued = false;
+		guest.conn.queued = false;
+		int room = nextRoom++;
+		if (nextRoom < FIRST_ROOM) nextRoom = FIRST_ROOM;
+		if (ClusterRouter.enabled()) {
+			ClusterRouter.placeMatch(host.conn, guest.conn, room);
+		} else {
+			String line = "MATCH " + room + " " + host.conn.number;
+			host.conn.send(line);
+			guest.conn.send(line);
+		}
+		matches.increment();
+		waitTimes.record(now - host.since);
+		waitTimes.record(now - guest.since);
+	}
+}
@@ -0,0 +1,116 @@
+import game.LineTokenizer;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * マッチングの負荷測定。
+ * ソケットの代わりに送信キューを読み捨てる接続を使い、N人 (既定 10000人) が QUEUE を送り、MATCH が届いたらすぐにまた並び直す
+ * (次の対戦相手を探す) のを続けて、1秒あたりに何組作れるかとマッチングのスレッドの稼働率を測ります。
+ * <pre>
+ * java MatchmakerBenchmark [--players=10000] [--rating-spread=400] [--drivers=2] [--seconds=5]
+ * </pre>
+ * レーティングは 1500 ± rating-spread の範囲に散らばります (0 なら全員同じで、来た順に組になります)。
+ * 送り手 (drivers) は受信スレッドの代わりで、受け取った MATCH の読み捨ても行います。
+ */
+class MatchmakerBenchmark {
+	/**
+	 * 送信キューを送り手のスレッドが読み捨てる接続。
+	 */
+	private static class BenchConnection extends ClientConnection {
+		final int rating;
+
+		BenchConnection(int n, int rating) {
+			super(n);
+			this.rating = rating;
+		}
+
+		void signalWriter() {
+		}
+
+		void terminate() {
+		}
+	}
+
+	private static final LongAdder queued = new LongAdder();
+	private static volatile boolean driving;
+
+	public static void main(String[] args) throws InterruptedException {
+		ServerOptions options = ServerOptions.parse(args);
+		int players = options.getInt("players", 10000);
+		int spread = options.getInt("rating-spread", 400);
+		int drivers = options.getInt("drivers", 2);
+		int seconds = options.getInt("seconds", 5);
+
+		BenchConnection[] conns = new BenchConnection[players];
+		for (int i = 0; i < players; i++) {
+			int offset = (spread == 0) ? 0 : scatter(i) % (2 * spread + 1) - spread;
+			conns[i] = new BenchConnection(i + 1, Matchmaker.DEFAULT_RATING + offset);
+		}
+		System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " players=" + players
+				+ " rating=" + Matchmaker.DEFAULT_RATING + "+-" + spread);
+
+		driving = true;
+		Thread[] threads = new Thread[drivers];
+		for (int d = 0; d < drivers; d++) {
+			int first = d;
+			threads[d] = new Thread(() -> drive(conns, first, drivers), "bench-driver-" + d);
+			threads[d].setDaemon(true);
+			threads[d].start();
+		}
+
+		// 最初の待ち行列が落ち着くまで待ってから測る
+		Thread.sleep(1000);
+		long matches0 = Matchmaker.matches.sum(), queued0 = queued.sum(), busy0 = Matchmaker.busyNanos;
+		long t0 = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long elapsed = System.nanoTime() - t0;
+		double matches = (Matchmaker.matches.sum() - matches0) * 1e9 / elapsed;
+		double in = (queued.sum() - queued0) * 1e9 / elapsed;
+		double busy = (double) (Matchmaker.busyNanos - busy0) / elapsed;
+		int waiting = Matchmaker.waiting;
+		driving = false;
+		for (Thread t : threads) t.join();
+
+		System.out.printf("queue=%.0f/s matches=%.0f/s players matched=%.0f/s waiting=%d busy=%.1f%% wait p50=%.1fms p99=%.1fms max=%.1fms%n",
+				in, matches, matches * 2, waiting, busy * 100,
+				Matchmaker.waitTimes.percentile(0.5) / 1e6, Matchmaker.waitTimes.percentile(0.99) / 1e6,
+				Matchmaker.waitTimes.maxNanos() / 1e6);
+	}
+
+	/**
+	 * conns のうち first から drivers 個おきの接続を受け持ち、全員を並ばせてから、MATCH が届いた人を並び直させ続けます。
+	 */
+	private static void drive(BenchConnection[] conns, int first, int drivers) {
+		LineTokenizer tokens = new LineTokenizer();
+		for (int i = first; i < conns.length; i += drivers) {
+			MyServer2.onLine(conns[i], "QUEUE " + conns[i].rating, tokens);
+			queued.increment();
+		}
+		while (driving) {
+			int n = 0;
+			for (int i = first; i < conns.length; i += drivers) {
+				BenchConnection c = conns[i];
+				SharedBuffer b;
+				boolean matched = false;
+				while ((b = c.pollOutbound()) != null) {
+					b.release();
+					matched = true;
+				}
+				if (!matched) continue;
+				c.recordDelivered();
+				MyServer2.onLine(c, "QUEUE " + c.rating, tokens);
+				queued.increment();
+				n++;
+			}
+			if (n == 0) LockSupport.parkNanos(100_000);
+		}
+		for (int i = first; i < conns.length; i += drivers) MyServer2.leaveRoom(conns[i]);
+	}
+
+	// 連番を散らした 0 以上の値 (レーティングが番号順に偏らないように)
+	private static int scatter(int i) {
+		int h = i * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & Integer.MAX_VALUE;
+	}
+}
@@ -1,52 +1,154 @@
+import game.CommandTable;
+import game.LineTokenizer;
+import game.MatchClock;
+import game.StreamCompression;
+import game.WireCodec;
+
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ブロッキングエンジン用の接続。
+ * 書き込み専用スレッドがキューに溜まった行を1つのバッファにまとめ、1回の write で送ります。
+ * 書き込みはこのスレッドだけが行うのでロックは不要で、仮想スレッドのキャリアを固定 (pin) することもありません。
+ */
+class BlockingConnection extends ClientConnection {
+	/** 1回の write でまとめる最大バイト数 */
+	private static final int MAX_WRITE = 64 * 1024;
+	/** chunk の先頭に空けておく BATCH 行用の領域 */
+	private static final int HEADER_ROOM = 16;
+
+	private final Socket socket;
+	private final OutputStream myOut;
+	private volatile Thread writer;
+	private byte[] chunk = new byte[8192];
+
+	BlockingConnection(int n, Socket socket) throws IOException {
+		super(n);
+		this.socket = socket;
+		myOut = socket.getOutputStream();
+	}
 
-class ClientProcThread extends Thread {
+	/**
+	 * 書き込みスレッドを開始します。
+	 */
+	void startWriter(boolean virtual) {
+		writer = HandlerThreads.start(this::writeLoop, "writer-" + number, virtual);
+	}
+
+	void signalWriter() {
+		Thread w = writer;
+		if (w != null) LockSupport.unpark(w);
+	}
+
+	/**
+	 * 以降の送信を受け付けないようにします。
+	 * 書き込みスレッドはキューに残った分 (BYE への返事など) を書き終えてからソケットを閉じます。
+	 */
+	void shutdown() {
+		closed = true;
+		signalWriter();
+	}
+
+	void terminate() {
+		MyServer2.closeQuietly(socket);
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				// 前回までに圧縮が始まっていれば BATCH 行から圧縮する
+				boolean compressAll = compressor != null;
+				int compressFrom = -1;
+				int total = HEADER_ROOM;
+				int messages = 0;
+				SharedBuffer b;
+				while (total < MAX_WRITE && (b = pollOutbound()) != null) {
+					if (b == COMPRESS_FROM_HERE) {
+						compressFrom = total;
+						continue;
+					}
+					int len = b.length();
+					if (chunk.length < total + len) chunk = Arrays.copyOf(chunk, Math.max(total + len, chunk.length * 2));
+					b.view().get(chunk, total, len);
+					// chunk へ写し終えたので共有バッファはもう要らない
+					b.release();
+					total += len;
+					messages++;
+				}
+				if (messages == 0) {
+					if (closed) break;
+					LockSupport.park(this);
+					continue;
+				}
+				// BATCH 行は本文の直前に詰めて置く
+				int start = HEADER_ROOM;
+				byte[] header = batchHeader(messages);
+				if (header != null) {
+					start -= header.length;
+					System.arraycopy(header, 0, chunk, start, header.length);
+				}
+				if (compressAll) compressFrom = start;
+				if (compressFrom < 0) {
+					myOut.write(chunk, start, total - start);
+					ServerStats.recordWrite(total - start, messages);
+				} else {
+					ByteBuffer z = compress(new ByteBuffer[] { ByteBuffer.wrap(chunk, compressFrom, total - compressFrom) }, 0, 1, messages);
+					// 目印より前 (WELCOME まで) はそのまま書く
+					if (compressFrom > start) myOut.write(chunk, start, compressFrom - start);
+					myOut.write(z.array(), 0, z.remaining());
+					ServerStats.recordWrite(compressFrom - start + z.remaining(), messages);
+				}
+				recordDelivered();
+			}
+		} catch (IOException e) {
+			// 切断は受信側のスレッドで検知する
+			closed = true;
+		}
+		outbound.clear();
+		releaseCompressor();
+		MyServer2.closeQuietly(socket);
+	}
+}
+
+class ClientProcThread implements Runnable {
 	private int number;
 	private Socket incoming;
 	private InputStreamReader myIsr;
 	private BufferedReader myIn;
-	private PrintWriter myOut;
-	private String myName;
+	private BlockingConnection myConn;
 
-	public ClientProcThread(int n, Socket i, InputStreamReader isr, BufferedReader in, PrintWriter out) {
+	public ClientProcThread(int n, Socket i, InputStreamReader isr, BufferedReader in, BlockingConnection conn) {
 		number = n;
 		incoming = i;
 		myIsr = isr;
 		myIn = in;
-		myOut = out;
+		myConn = conn;
 	}
 
 	public void run() {
 		try {
-			myOut.println("START " + number);
-			myName = "Player" + number;
-
-			// 1. 他の全員に「自分が来た」と伝える
-			MyServer2.SendAll("ENTER " + number, myName);
+			MyServer2.onConnect(myConn);
 
-			// 2. 自分に「今誰がいるか」を送る
-			String existingUsers = MyServer2.getConnectedUsers();
-			myOut.println("USERS " + existingUsers);
-
-			while (true) {
-				String str = myIn.readLine();
-				if (str != null) {
-					if (str.toUpperCase().equals("BYE")) {
-						myOut.println("Good bye!");
-						break;
-					}
-					MyServer2.SendAll(str + " " + number, myName);
-				}
+			// readLine が null を返したら相手が切断している
+			String str;
+			while ((str = myIn.readLine()) != null) {
+				if (!MyServer2.onLine(myConn, str)) break;
 			}
 		} catch (Exception e) {
-			System.out.println("Disconnect from client No." + number + "(" + myName + ")");
-			MyServer2.SetFlag(number, false);
-			MyServer2.SendAll("LEAVE " + number + " " + number, myName);
+			// 切断 (強制切断を含む)
+		} finally {
+			myConn.shutdown();
+			MyServer2.onDisconnect(myConn);
 		}
 	}
 }
@@ -54,68 +156,666 @@ class ClientProcThread extends Thread {
 class MyServer2 {
 	private static final int PORT = 10000;
 	private static final int MAX_CONNECTION = 100;
+	private static final int ADMISSION_QUEUE = 64;
+
+	private static SlotTable slots = new SlotTable(MAX_CONNECTION);
 
-	private static Socket[] incoming;
-	private static boolean[] flag;
-	private static InputStreamReader[] isr;
-	private static BufferedReader[] in;
-	private static PrintWriter[] out;
-	private static ClientProcThread[] myClientProcThread;
-	private static int member;
+	// 満員時の入場待ち (--admission=queue のときのみ使用)
+	private static boolean queueWhenFull = false;
+	private static int admissionQueueLimit = ADMISSION_QUEUE;
+	private static final ArrayDeque<PendingClient> waiting = new ArrayDeque<>();
+
+	// サーバー権威モード (--authoritative): ルームごとにゲームをシミュレーションする
+	static boolean authoritative = false;
 
 	public static void SendAll(String str, String myName) {
-		for (int i = 1; i <= member; i++) {
-			if (flag[i] == true) {
-				out[i].println(str);
-				out[i].flush();
+		long start = System.nanoTime();
+		OutboundMessage msg = new OutboundMessage(str);
+		for (ClientConnection c : slots.live()) {
+			c.send(msg, 0, OutboundQueue.KIND_EVENT);
+		}
+		msg.release();
+		ServerStats.recordBroadcast(System.nanoTime() - start);
+	}
+
+	public static String getConnectedUsers() {
+		StringBuilder sb = new StringBuilder();
+		for (ClientConnection c : slots.live()) {
+			sb.append(c.number).append(" ");
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * 現在接続中のクライアント数を返します。
+	 */
+	static int liveCount() {
+		return slots.size();
+	}
+
+	/**
+	 * 同時接続数の上限を返します。
+	 */
+	static int capacity() {
+		return slots.capacity();
+	}
+
+	/**
+	 * 全接続の中で最も長い送信キューの長さを返します。
+	 */
+	static int maxQueueDepth() {
+		int max = 0;
+		for (ClientConnection c : slots.live()) {
+			max = Math.max(max, c.outbound.depth());
+		}
+		return max;
+	}
+
+	/**
+	 * 全接続の送信キューの長さの合計を返します。
+	 */
+	static int totalQueueDepth() {
+		int total = 0;
+		for (ClientConnection c : slots.live()) total += c.outbound.depth();
+		return total;
+	}
+
+	/**
+	 * 接続中のクライアントの一覧を返します (呼び出し時点の写し)。
+	 */
+	static ClientConnection[] liveConnections() {
+		return slots.live();
+	}
+
+	static int roomCount() {
+		int n = 0;
+		for (RoomShard s : RoomShard.all()) n += s.roomCount;
+		return n;
+	}
+
+	/**
+	 * ルームに参加中の人数の合計を返します。
+	 */
+	static int roomMemberCount() {
+		int n = 0;
+		for (RoomShard s : RoomShard.all()) n += s.memberCount;
+		return n;
+	}
+
+	/**
+	 * 新しいクライアントの入場を判定します。
+	 * 空きがあれば番号を割り当て、満員なら設定に応じて待たせるか断ります。
+	 */
+	static void requestAdmission(PendingClient p) {
+		int n;
+		synchronized (waiting) {
+			n = slots.allocate();
+			if (n == 0) {
+				if (queueWhenFull && waiting.size() < admissionQueueLimit) {
+					waiting.add(p);
+					ServerLog.info(ServerLog.Event.QUEUED, 0, waiting.size());
+					return;
+				}
 			}
 		}
+		if (n == 0) {
+			ServerLog.info(ServerLog.Event.REJECTED, 0);
+			p.reject();
+		} else {
+			p.admit(n);
+		}
 	}
 
-	public static void SetFlag(int n, boolean value) {
-		flag[n] = value;
+	/**
+	 * 接続を登録し、配信対象に加えます。
+	 */
+	static void register(ClientConnection c) {
+		slots.register(c);
+		ServerMetrics.onRegister(c);
 	}
 
-	public static String getConnectedUsers() {
-		StringBuilder sb = new StringBuilder();
-		for (int i = 1; i < MAX_CONNECTION; i++) {
-			if (flag[i]) {
-				sb.append(i).append(" ");
+	/**
+	 * 接続を配信対象から外して番号を解放します。
+	 * @return 外した場合は true (既に外れていれば false)
+	 */
+	static boolean unregister(ClientConnection c) {
+		if (!slots.detach(c)) return false;
+		// 番号を戻す前に MBean を外す (戻した番号で登録された次の接続の MBean を消さないように)
+		ServerMetrics.onUnregister(c);
+		slots.free(c.number);
+		return true;
+	}
+
+	/**
+	 * 割り当てたが接続処理に失敗した番号を返します。
+	 */
+	static void releaseNumber(int n) {
+		slots.free(n);
+		admitWaiting();
+	}
+
+	/**
+	 * 空きができたので、入場待ちのクライアントを入場させます。
+	 */
+	static void admitWaiting() {
+		PendingClient next = null;
+		int n = 0;
+		synchronized (waiting) {
+			if (!waiting.isEmpty()) {
+				n = slots.allocate();
+				if (n != 0) next = waiting.poll();
 			}
 		}
-		return sb.toString().trim();
+		if (next != null) next.admit(n);
 	}
 
-	public static void main(String[] args) {
-		incoming = new Socket[MAX_CONNECTION];
-		flag = new boolean[MAX_CONNECTION];
-		isr = new InputStreamReader[MAX_CONNECTION];
-		in = new BufferedReader[MAX_CONNECTION];
-		out = new PrintWriter[MAX_CONNECTION];
-		myClientProcThread = new ClientProcThread[MAX_CONNECTION];
+	// ==========================================
+	// プロトコル処理 (エンジン共通)
+	// ==========================================
+
+	/**
+	 * 接続直後の処理。配信対象に加え、ID通知・入室通知・在室者一覧を送ります。
+	 * START が必ず最初に届くよう、配信対象に加える前に送信キューへ積みます。
+	 */
+	static void onConnect(ClientConnection c) {
+		c.send("START " + c.number);
+		if (authoritative) c.send("MODE AUTH");
+		register(c);
+		Liveness.watch(c);
 
-		int n = 1;
-		member = 0;
+		// 1. 他の全員に「自分が来た」と伝える
+		SendAll("ENTER " + c.number, c.name);
+
+		// 2. 自分に「今誰がいるか」を送る
+		c.send("USERS " + getConnectedUsers());
+	}
+
+	/**
+	 * サーバー自身が処理するコマンド。
+	 */
+	private interface ServerCommand {
+		void handle(ClientConnection c, String line, LineTokenizer t);
+	}
+
+	/** サーバーが処理するコマンド名 → 処理 (それ以外はルームへ中継する) */
+	private static final CommandTable<ServerCommand> COMMANDS = new CommandTable<ServerCommand>()
+			.register("HELLO", MyServer2::onHello)
+			// UDP ON: 到達確認が取れたので MOVE を UDP に切り替える / UDP OFF: TCP に戻す
+			.register("UDP", (c, line, t) -> c.udpActive = t.equalsAt(1, "ON") && c.udpAddress != null)
+			.register("JOIN", (c, line, t) -> {
+				try {
+					joinRoom(c, t.intAt(1));
+				} catch (RuntimeException e) {
+					ServerLog.warn(ServerLog.Event.INVALID_COMMAND, c.number, line);
+				}
+			})
+			.register("WATCH", (c, line, t) -> {
+				try {
+					watchRoom(c, t.intAt(1));
+				} catch (RuntimeException e) {
+					ServerLog.warn(ServerLog.Event.INVALID_COMMAND, c.number, line);
+				}
+			})
+			// マッチングの待ち行列に並ぶ: QUEUE [レーティング] → 組になったら MATCH ルーム番号 ホストの番号
+			.register("QUEUE", (c, line, t) -> {
+				try {
+					int rating = (t.count() > 1) ? t.intAt(1) : Matchmaker.DEFAULT_RATING;
+					leaveRoom(c);
+					Matchmaker.enqueue(c, rating);
+				} catch (RuntimeException e) {
+					ServerLog.warn(ServerLog.Event.INVALID_COMMAND, c.number, line);
+				}
+			})
+			.register("LOBBY", (c, line, t) -> leaveRoom(c))
+			// 切断前の番号とルームの席を引き継ぐ: RESUME トークン
+			.register("RESUME", (c, line, t) -> {
+				if (t.count() < 2) {
+					ServerLog.warn(ServerLog.Event.INVALID_COMMAND, c.number, line);
+					return;
+				}
+				resume(c, t.stringAt(1));
+			})
+			// 生存確認の応答 (受信時刻は受信のたびに更新済み。ここでは往復時間を記録する)
+			.register("PONG", (c, line, t) -> Liveness.onPong(c))
+			// MOVE の差分を復元できなかったので、次から全項目で送り直す
+			.register("RESYNC", (c, line, t) -> c.resyncRequested = true)
+			// 時計合わせ: SYNC 送信時刻 → SYNC 送信時刻 受信時刻 (サーバーの時計, µs)
+			.register("SYNC", (c, line, t) -> {
+				long now = MatchClock.nowMicros();
+				try {
+					c.send("SYNC " + t.longAt(1) + " " + now);
+				} catch (NumberFormatException e) {
+					ServerLog.warn(ServerLog.Event.INVALID_COMMAND, c.number, line);
+				}
+			});
+
+	/**
+	 * 受信した1行を処理します。
+	 * ロビー系のコマンドはサーバーで処理し、ゲーム中のコマンドは送信者のルームにだけ配信します。
+	 * @return 受信を続ける場合は true (BYE を受け取ったら false)
+	 */
+	static boolean onLine(ClientConnection c, String str) {
+		return onLine(c, str, c.tokens);
+	}
+
+	/**
+	 * 受信した1行を、呼び出し元のスレッドのトークナイザで処理します (TCP 以外の受信経路用)。
+	 */
+	static boolean onLine(ClientConnection c, String str, LineTokenizer tokens) {
+		c.lastReceived = Liveness.now();
+		if (str.equalsIgnoreCase("BYE")) {
+			c.quitting = true;
+			c.send("Good bye!");
+			return false;
+		}
+
+		LineTokenizer t = tokens.reset(str);
+		ServerMetrics.CommandCounters counters = ServerMetrics.recordInbound(t, str.length());
+		if (!c.limits.allow(t)) {
+			// 上限を超えた分は処理も配信もせずに捨てる。捨てた数が多すぎる接続は切断する
+			counters.rateLimited.increment();
+			if (c.limits.overFloodLimit()) {
+				ServerLog.warn(ServerLog.Event.FLOOD, c.number, c.limits.recentDrops());
+				c.quitting = true;
+				c.terminate();
+			}
+			return true;
+		}
+		ServerCommand command = COMMANDS.get(t);
+		if (command != null) {
+			command.handle(c, str, t);
+			return true;
+		}
+		// ルーム外 (ロビー) からのゲームコマンドは配信先がないので捨てる (観戦者のものも同様)
+		int roomId = c.roomId;
+		if (roomId == ClientConnection.LOBBY || c.watching) return true;
+		// ルームの処理は担当シャードのスレッドで行う
+		RoomShard.forRoom(roomId).deliver(c, roomId, str);
+		return true;
+	}
+
+	/**
+	 * ルーム宛ての1行を処理します (ルームの担当シャードのスレッドで呼ばれます)。
+	 * 受け取るまでの間に退室していた場合は捨てます。
+	 */
+	static void onRoomLine(RoomShard shard, ClientConnection c, int roomId, String str) {
+		Room r = c.room;
+		if (r == null || r.id != roomId || r.shard != shard) return;
+		LineTokenizer t = shard.tokens.reset(str);
+		// サーバー権威モードでは入力などをシミュレーションへ渡す
+		RoomSimulation sim = r.sim;
+		if (sim != null && !sim.accept(c, t)) return;
+		r.send(str + " " + c.number, c, t);
+		// 中継モードでは次のラウンドの開始ティックをサーバーが決める (権威モードではシミュレーションが決める)
+		if (sim == null && t.equalsAt(0, "NEXT_ROUND_READY")) r.announceRoundStart();
+	}
+
+	/**
+	 * 対応機能の通知: HELLO <機能>...
+	 */
+	private static void onHello(ClientConnection c, String line, LineTokenizer t) {
+		StringBuilder accepted = new StringBuilder("WELCOME");
+		for (int i = 1; i < t.count(); i++) {
+			if (t.equalsAt(i, "noecho")) {
+				c.echoSelf = false;
+				accepted.append(" noecho");
+			} else if (t.equalsAt(i, "ping")) {
+				c.heartbeat = true;
+				accepted.append(" ping");
+			} else if (t.equalsAt(i, "batch")) {
+				c.batchFraming = true;
+				accepted.append(" batch");
+			} else if (t.equalsAt(i, WireCodec.FEATURE)) {
+				c.binaryWire = true;
+				accepted.append(" ").append(WireCodec.FEATURE);
+			} else if (t.equalsAt(i, StreamCompression.FEATURE) && !c.compressionRequested) {
+				accepted.append(" ").append(StreamCompression.FEATURE);
+			} else if (t.equalsAt(i, "udp") && UdpRelay.enabled()) {
+				accepted.append(" udp");
+			} else if (t.equalsAt(i, "sync")) {
+				accepted.append(" sync");
+			} else if (t.equalsAt(i, "resume") && Session.enabled() && c.session == null) {
+				accepted.append(" resume");
+			}
+		}
+		c.send(accepted.toString());
+		// WELCOME の直後から圧縮する (クライアントは WELCOME を読んだところで展開に切り替える)
+		if (accepted.indexOf(" " + StreamCompression.FEATURE) >= 0) c.startCompression();
+		if (accepted.indexOf(" udp") >= 0) c.send(UdpRelay.offer(c));
+		// 再接続を待つのは、切断しても RESUME でつなぎ直せるクライアントだけ (他は切断ですぐ LEAVE)
+		if (accepted.indexOf(" resume") >= 0) c.send("SESSION " + Session.issue(c));
+	}
+
+	/**
+	 * 切断時の処理。配信対象から外し、退出を全員に通知します。
+	 * 対戦中のプレイヤーは退出させずに、猶予時間だけ再接続 (RESUME) を待ちます。
+	 */
+	static void onDisconnect(ClientConnection c) {
+		if (suspend(c)) return;
+		if (!unregister(c)) return;
+		depart(c);
+	}
+
+	// 退出を記録・通知し、ルームから外す (番号は呼び出し前に解放しておく)
+	private static void depart(ClientConnection c) {
+		ServerLog.info(ServerLog.Event.DISCONNECT, c.number, c.name);
+		UdpRelay.forget(c);
+		leaveRoom(c);
+		SendAll("LEAVE " + c.number + " " + c.number, c.name);
+		// LEAVE を送り終えてから番号を再利用させる
+		admitWaiting();
+	}
+
+	/**
+	 * 対戦中に切断したプレイヤーを、再接続を待つ間だけ残します。
+	 * 番号とルームの席はそのままにして、ルームのメンバーには LEAVE の代わりに "PAUSE 番号 猶予ms" を送ります。
+	 * @return 残した場合は true (false なら通常の切断処理を続ける)
+	 */
+	private static boolean suspend(ClientConnection c) {
+		Session s = c.session;
+		if (s == null) return false;
+		int roomId = c.roomId;
+		synchronized (s) {
+			if (s.state != Session.State.LIVE) return false;
+			if (c.quitting || c.watching || roomId == ClientConnection.LOBBY || !slots.detach(c)) {
+				s.state = Session.State.CLOSED;
+				s.discard();
+				return false;
+			}
+			s.state = Session.State.SUSPENDED;
+		}
+		ServerMetrics.onUnregister(c);
+		UdpRelay.forget(c);
+		ServerLog.info(ServerLog.Event.SUSPEND, c.number, Session.graceMillis);
+		s.scheduleExpiry(() -> {
+			// 猶予時間内に戻らなかったので、確保したままの番号を返して通常の退出として扱う
+			slots.free(c.number);
+			depart(c);
+		});
+		RoomShard shard = RoomShard.forRoom(roomId);
+		shard.execute(() -> {
+			Room r = shard.room(roomId);
+			if (r == null || !r.members.contains(c)) return;
+			if (r.sim != null) r.sim.pause();
+			r.send("PAUSE " + c.number + " " + Session.graceMillis, c);
+		});
+		return true;
+	}
+
+	/**
+	 * 新しい接続 c に、トークンのセッションの番号とルームの席を引き継がせます (受信担当スレッドから呼びます)。
+	 * 元の接続がまだ切断を検知していなければ、ここで切り離して閉じます。
+	 * 引き継げなければ RESUME_FAILED を送り、c は新しい番号のままロビーに残ります。
+	 */
+	static void resume(ClientConnection c, String token) {
+		Session s = Session.find(token);
+		ClientConnection old = (s == null) ? null : s.conn;
+		if (old == null || old == c) {
+			c.send("RESUME_FAILED");
+			return;
+		}
+		boolean wasLive;
+		synchronized (s) {
+			wasLive = s.state == Session.State.LIVE;
+			if (s.state == Session.State.CLOSED || old.roomId == ClientConnection.LOBBY || old.watching
+					|| (wasLive && !slots.detach(old))) {
+				c.send("RESUME_FAILED");
+				return;
+			}
+			s.state = Session.State.CLOSED;
+		}
+		s.discard();
+		if (wasLive) {
+			ServerMetrics.onUnregister(old);
+			UdpRelay.forget(old);
+			old.terminate();
+		} else {
+			Session.suspendedCount.decrementAndGet();
+		}
+		Session.resumed.increment();
+
+		// 仮の番号を返して元の番号で登録し直す
+		leaveRoom(c);
+		int temporary = c.number;
+		unregister(c);
+		c.number = old.number;
+		c.name = old.name;
+		register(c);
+		ServerLog.info(ServerLog.Event.RESUME, c.number, temporary);
+		SendAll("LEAVE " + temporary + " " + temporary, c.name);
+		admitWaiting();
+
+		int roomId = old.roomId;
+		c.roomId = roomId;
+		RoomShard shard = RoomShard.forRoom(roomId);
+		shard.execute(() -> rejoinRoom(shard, c, old, roomId));
+	}
+
+	/**
+	 * 担当シャードでの席の引き継ぎ。c に対戦の状態をまとめて送り、他のメンバーには RESUMED を送って
+	 * ラウンドを初期位置から始め直します。
+	 */
+	private static void rejoinRoom(RoomShard shard, ClientConnection c, ClientConnection old, int roomId) {
+		Room r = shard.room(roomId);
+		if (r == null || !shard.replaceMember(r, old, c)) {
+			c.roomId = ClientConnection.LOBBY;
+			c.send("RESUME_FAILED");
+			return;
+		}
+		if (r.sim != null) r.sim.replacePlayer(c);
+		r.sendResumeState(c);
+		r.send("RESUMED " + c.number, c);
+		if (r.mapData == null) return;
+		if (r.sim != null) r.sim.restartRound();
+		else r.announceRoundStart();
+	}
+
+	/**
+	 * ルームへ参加させます (受信担当スレッドから呼びます)。
+	 * 実際の入室は担当シャードで行い、以降の行も同じシャードへ渡すので、入室より先に処理されることはありません。
+	 */
+	static void joinRoom(ClientConnection c, int roomId) {
+		if (roomId == ClientConnection.LOBBY) throw new IllegalArgumentException("reserved room id");
+		leaveRoom(c);
+		// クラスタのロビーはルームを持たないので、担当ノードでつなぎ直して JOIN させる
+		if (ClusterRouter.enabled()) {
+			ClusterRouter.redirect(c, roomId, "JOIN " + roomId);
+			return;
+		}
+		c.roomId = roomId;
+		RoomShard shard = RoomShard.forRoom(roomId);
+		shard.execute(() -> enterRoom(shard, c, roomId));
+	}
+
+	/**
+	 * 担当シャードでの入室処理。
+	 * 参加者には既存メンバーの JOIN を送り、既存メンバーには参加者の JOIN を送ります。
+	 */
+	private static void enterRoom(RoomShard shard, ClientConnection c, int roomId) {
+		// 入室までに切断・退室していれば何もしない
+		if (c.closed || c.roomId != roomId || c.watching) return;
+		Room r = shard.openRoom(roomId);
+		if (authoritative && r.sim == null) r.sim = new RoomSimulation(r);
+		for (ClientConnection m : r.members) c.send("JOIN " + roomId + " " + m.number);
+		InterestGrid.reset(c);
+		shard.addMember(r, c);
+		if (r.sim != null) r.sim.addPlayer(c);
+		c.room = r;
+		r.send("JOIN " + roomId + " " + c.number, c);
+		// 中継モードでは2人揃ったところでクライアントが対戦を始めるので、開始ティックを知らせる
+		if (r.sim == null && r.members.size() >= 2) r.announceRoundStart();
+	}
+
+	/**
+	 * ルームを観戦させます (受信担当スレッドから呼びます)。WATCHING の後、遅延させた対戦の様子が届き続けます。
+	 * 観戦用のかたまりは複数行をまとめたものなので、BATCH による区切りは使いません。
+	 */
+	static void watchRoom(ClientConnection c, int roomId) {
+		if (roomId == ClientConnection.LOBBY) throw new IllegalArgumentException("reserved room id");
+		leaveRoom(c);
+		// 観戦のクライアントはつなぎ直すと自分で WATCH を送り直す
+		if (ClusterRouter.enabled()) {
+			ClusterRouter.redirect(c, roomId, null);
+			return;
+		}
+		c.batchFraming = false;
+		c.watching = true;
+		c.roomId = roomId;
+		RoomShard shard = RoomShard.forRoom(roomId);
+		shard.execute(() -> {
+			if (c.closed || c.roomId != roomId || !c.watching) return;
+			Room r = shard.openRoom(roomId);
+			if (r.feed == null) r.feed = new SpectatorFeed(r);
+			r.feed.addWatcher(c);
+		});
+	}
+
+	/**
+	 * 参加中 (観戦中) のルームから抜けます (受信担当スレッドから呼びます)。空になったルームは削除されます。
+	 * マッチングの待ち行列に並んでいれば、それも取り消します。
+	 */
+	static void leaveRoom(ClientConnection c) {
+		Matchmaker.cancel(c);
+		int roomId = c.roomId;
+		if (roomId == ClientConnection.LOBBY) return;
+		c.roomId = ClientConnection.LOBBY;
+		RoomShard shard = RoomShard.forRoom(roomId);
+		if (c.watching) {
+			c.watching = false;
+			shard.execute(() -> {
+				Room r = shard.room(roomId);
+				if (r != null) shard.removeWatcher(r, c);
+			});
+			return;
+		}
+		shard.execute(() -> {
+			// 既に次のルームへ入っていることがあるので、c.room ではなく番号で探す
+			Room r = shard.room(roomId);
+			if (r == null || !r.members.contains(c)) return;
+			c.clearRoom(r);
+			if (r.sim != null) r.sim.removePlayer(c);
+			shard.removeMember(r, c);
+		});
+	}
+
+	public static void main(String[] args) {
+		ServerOptions options = ServerOptions.parse(args);
+		String engine = options.get("engine", "blocking");
+		int port = options.getInt("port", PORT);
+		slots = new SlotTable(options.getInt("max-clients", MAX_CONNECTION));
+		queueWhenFull = options.get("admission", "reject").equals("queue");
+		admissionQueueLimit = options.getInt("admission-queue", ADMISSION_QUEUE);
+		Liveness.configure(options.getInt("heartbeat", 5), options.getInt("idle-timeout", 15),
+				options.getInt("legacy-idle-timeout", 0));
+		authoritative = options.has("authoritative");
+		int batchMillis = options.getInt("batch-ms", 0);
+		if (batchMillis > 0) TickFlusher.start(batchMillis);
+		RoomShard.start(options.getInt("shards", Runtime.getRuntime().availableProcessors()));
+		InterestGrid.setRadius(options.getInt("aoi-radius", InterestGrid.DEFAULT_RADIUS));
+		// クラスタのロビーは対戦を受け持たないので、再接続のセッションも発行しない
+		Session.configure(options.has("cluster-port") ? 0 : options.getInt("resume-grace", 10));
+		RateLimit.configure(options.getInt("rate-limit", 100), options.getInt("flood-drops", 300), options.getInt("flood-window", 10));
+		SpectatorFeed.delayMillis = options.getInt("spectator-delay", SpectatorFeed.delayMillis);
+		SpectatorFeed.rateHz = options.getInt("spectator-hz", SpectatorFeed.rateHz);
+		// 受け付け・切断などの記録はログファイルへ (--log-file= で標準出力のみ)
+		String logFile = options.get("log-file", "server.log");
+		if (!logFile.isEmpty()) {
+			try {
+				ServerLog.openFile(logFile, options.getInt("log-max-kb", 10240) * 1024L, options.getInt("log-files", 5),
+						options.has("log-console"));
+			} catch (IOException e) {
+				System.err.println("Cannot open log file " + logFile + " (" + e + "), logging to stdout");
+			}
+		}
 
 		try {
 			System.out.println("=== Action Game Server (UTF-8) Started ===");
-			ServerSocket server = new ServerSocket(PORT);
-			while (true) {
-				incoming[n] = server.accept();
-				flag[n] = true;
-				System.out.println("Accept client No." + n);
-
-				isr[n] = new InputStreamReader(incoming[n].getInputStream(), "UTF-8");
-				in[n] = new BufferedReader(isr[n]);
-				out[n] = new PrintWriter(new OutputStreamWriter(incoming[n].getOutputStream(), "UTF-8"), true);
-
-				myClientProcThread[n] = new ClientProcThread(n, incoming[n], isr[n], in[n], out[n]);
-				myClientProcThread[n].start();
-				member = n;
-				n++;
+			if (!logFile.isEmpty()) System.out.println("Log: " + logFile);
+			if (options.has("udp")) {
+				UdpRelay.start(port);
+				System.out.println("UDP side channel on port " + port);
+			}
+			if (options.has("cluster-port")) {
+				ClusterRouter.start(options.get("cluster-bind", null), options.getInt("cluster-port", 0), options.get("cluster-secret", null));
+				System.out.println("Cluster lobby: nodes report to port " + options.getInt("cluster-port", 0));
+			} else if (options.has("cluster")) {
+				ClusterNode.start(options.get("cluster", ""), options.get("advertise", "127.0.0.1"), port,
+						options.get("cluster-secret", null));
+				System.out.println("Cluster node: reporting to " + options.get("cluster", ""));
+			}
+			if (options.has("stats")) ServerStats.startReporter(options.getInt("stats", 10, 1));
+			ServerMetrics.start();
+			if (options.has("metrics-port")) {
+				int metricsPort = options.getInt("metrics-port", 0);
+				ServerMetrics.startHttp(metricsPort);
+				System.out.println("Metrics on http://127.0.0.1:" + metricsPort + "/metrics");
+			}
+			System.out.println("Room shards: " + RoomShard.all().length);
+			if (engine.equals("nio")) {
+				int loops = options.getInt("loops", Runtime.getRuntime().availableProcessors());
+				System.out.println("Engine: nio (" + loops + " event loops)");
+				new NioRelayServer(port, loops).run();
+			} else if (engine.equals("virtual")) {
+				boolean ok = HandlerThreads.virtualThreadsAvailable();
+				System.out.println("Engine: " + (ok ? "virtual threads" : "blocking (virtual threads need Java 21+)"));
+				runBlocking(port, ok);
+			} else {
+				System.out.println("Engine: blocking");
+				runBlocking(port, false);
 			}
 		} catch (Exception e) {
-			System.err.println("Error: " + e);
+			ServerLog.error("main", e);
+		}
+	}
+
+	/**
+	 * 1接続につき1スレッドで受信する従来のエンジン。
+	 * @param virtual true なら受信スレッドを仮想スレッドで起動する
+	 */
+	private static void runBlocking(int port, boolean virtual) throws Exception {
+		ServerSocket server = new ServerSocket(port);
+		while (true) {
+			Socket incoming = server.accept();
+			requestAdmission(new PendingClient() {
+				public void admit(int n) {
+					try {
+						startBlockingClient(n, incoming, virtual);
+					} catch (IOException e) {
+						closeQuietly(incoming);
+						releaseNumber(n);
+					}
+				}
+
+				public void reject() {
+					try {
+						incoming.getOutputStream().write("FULL\n".getBytes(StandardCharsets.UTF_8));
+					} catch (IOException e) {
+						// 既に切断されている
+					}
+					closeQuietly(incoming);
+				}
+			});
 		}
 	}
-}
\ No newline at end of file
+
+	private static void startBlockingClient(int n, Socket incoming, boolean virtual) throws IOException {
+		ServerLog.info(ServerLog.Event.ACCEPT, n);
+		// PING に応えない旧クライアントの相手が落ちたときに検知できるように
+		incoming.setKeepAlive(true);
+
+		InputStreamReader isr = new InputStreamReader(incoming.getInputStream(), "UTF-8");
+		BufferedReader in = new BufferedReader(isr);
+
+		BlockingConnection c = new BlockingConnection(n, incoming);
+		c.startWriter(virtual);
+		HandlerThreads.start(new ClientProcThread(n, incoming, isr, in, c), "client-" + n, virtual);
+	}
+
+	static void closeQuietly(java.io.Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// 既に閉じている
+		}
+	}
+}
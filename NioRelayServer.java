@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector を使った NIO 版の中継エンジン。
+ * 少数のイベントループスレッドで全接続を受け持ち、プロトコルはブロッキング版と共通です。
+ */
+class NioRelayServer {
+	/** 受信バッファ1個あたりのサイズ (1行がこれを超えると切断) */
+	static final int BUFFER_SIZE = 8192;
+
+	private final int port;
+	private final NioEventLoop[] loops;
+	private final BufferPool pool = new BufferPool(BUFFER_SIZE);
+
+	NioRelayServer(int port, int loopCount) {
+		this.port = port;
+		this.loops = new NioEventLoop[Math.max(1, loopCount)];
+	}
+
+	/**
+	 * イベントループを起動し、受け付けた接続をラウンドロビンで割り振ります。
+	 */
+	void run() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new NioEventLoop(i, pool);
+			loops[i].start();
+		}
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		int next = 0;
+		while (true) {
+			SocketChannel ch = server.accept();
+			NioEventLoop loop = loops[next];
+			next = (next + 1) % loops.length;
+			MyServer2.requestAdmission(new PendingClient() {
+				public void admit(int n) {
+					ServerLog.info(ServerLog.Event.ACCEPT, n);
+					NioConnection c = new NioConnection(n, ch, loop);
+					loop.execute(c::open);
+				}
+
+				public void reject() {
+					try {
+						ch.write(ByteBuffer.wrap("FULL\n".getBytes(StandardCharsets.UTF_8)));
+					} catch (IOException e) {
+						// 既に切断されている
+					}
+					MyServer2.closeQuietly(ch);
+				}
+			});
+		}
+	}
+}
+
+/**
+ * 1スレッドで複数の接続の読み書きを処理するイベントループ。
+ * 他スレッドからの処理依頼はタスクキュー経由で受け取ります。
+ */
+class NioEventLoop extends Thread {
+	final Selector selector;
+	final BufferPool pool;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	NioEventLoop(int index, BufferPool pool) throws IOException {
+		super("nio-loop-" + index);
+		this.selector = Selector.open();
+		this.pool = pool;
+		setDaemon(true);
+	}
+
+	/**
+	 * ループスレッド上で実行する処理を登録します。
+	 */
+	void execute(Runnable task) {
+		tasks.offer(task);
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) task.run();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					NioConnection c = (NioConnection) key.attachment();
+					if (key.isValid() && key.isReadable()) c.onReadable();
+					if (key.isValid() && key.isWritable()) c.flush();
+				}
+			} catch (Exception e) {
+				ServerLog.error(getName(), e);
+			}
+		}
+	}
+}
+
+/**
+ * NIO エンジン用の接続。
+ * 受信バッファ上で改行を探して行に分割します。
+ * 送信はキューに溜まった行をループスレッドがまとめて取り出し、ギャザリング write で一度に書き出します。
+ */
+class NioConnection extends ClientConnection {
+	/** 1回のギャザリング write でまとめる最大件数 */
+	private static final int MAX_GATHER = 64;
+
+	private final SocketChannel channel;
+	private final NioEventLoop loop;
+	private SelectionKey key;
+	private ByteBuffer readBuf;
+	private byte[] lineBytes = new byte[256];
+	private boolean reading = true;
+	// BYE 受信後、送信キューを書き終えたら閉じる
+	private boolean closeAfterFlush = false;
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	// 書き込み中のバッファ群 (ループスレッド専用)。先頭は BATCH 行用に空けておく
+	private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER + 1];
+	// batch の各要素の元になった共有バッファ (書き終えたら解放する)
+	private final SharedBuffer[] owners = new SharedBuffer[MAX_GATHER + 1];
+	private int batchStart = 0;
+	private int batchEnd = 0;
+	private int batchMessages = 0;
+
+	NioConnection(int n, SocketChannel channel, NioEventLoop loop) {
+		super(n);
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	/**
+	 * ループスレッド上でセレクタへ登録し、接続直後のプロトコル処理を行います。
+	 */
+	void open() {
+		try {
+			channel.configureBlocking(false);
+			// PING に応えない旧クライアントの相手が落ちたときに検知できるように
+			channel.socket().setKeepAlive(true);
+			readBuf = loop.pool.acquire();
+			key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			// 登録前に失敗したので番号だけ返す
+			closed = true;
+			MyServer2.closeQuietly(channel);
+			loop.pool.release(readBuf);
+			MyServer2.releaseNumber(number);
+			return;
+		}
+		MyServer2.onConnect(this);
+	}
+
+	void signalWriter() {
+		if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+	}
+
+	/**
+	 * 送信キューの行をまとめて書き出します (ループスレッド専用)。
+	 * 書ききれなかった場合は OP_WRITE を待って再開します。
+	 */
+	void flush() {
+		flushScheduled.set(false);
+		if (closed || key == null) return;
+		try {
+			while (true) {
+				if (batchStart == batchEnd) {
+					// 前回までに圧縮が始まっていれば BATCH 行から圧縮する
+					boolean compressAll = compressor != null;
+					int n = drainOutbound(batch, owners, 1);
+					int compressFrom = -1;
+					for (int i = 1; i <= n; i++) {
+						if (owners[i] != COMPRESS_FROM_HERE) continue;
+						// 目印を詰めて取り除き、その位置から圧縮する
+						System.arraycopy(batch, i + 1, batch, i, n - i);
+						System.arraycopy(owners, i + 1, owners, i, n - i);
+						batch[n] = null;
+						owners[n--] = null;
+						compressFrom = i;
+						break;
+					}
+					if (n == 0) {
+						if (closeAfterFlush) close();
+						else updateInterest(false);
+						return;
+					}
+					byte[] header = batchHeader(n);
+					if (header != null) batch[0] = ByteBuffer.wrap(header);
+					batchStart = (header != null) ? 0 : 1;
+					batchEnd = 1 + n;
+					batchMessages = n;
+					if (compressAll) compressFrom = batchStart;
+					if (compressFrom >= 0) {
+						ByteBuffer z = compress(batch, compressFrom, batchEnd, n);
+						// 圧縮結果へ写し終えたので元のバッファは解放する
+						for (int i = compressFrom; i < batchEnd; i++) release(i);
+						batch[compressFrom] = z;
+						batchEnd = compressFrom + 1;
+					}
+				}
+				long written = channel.write(batch, batchStart, batchEnd - batchStart);
+				while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+					release(batchStart++);
+				}
+				// 行数はまとまり全体を書き終えたときに数える (圧縮すると1バッファに複数行入るため)
+				ServerStats.recordWrite(written, batchStart == batchEnd ? batchMessages : 0);
+				if (batchStart == batchEnd) recordDelivered();
+				if (batchStart < batchEnd) {
+					// 相手の受信が追いつかないので書き込み可能になるまで待つ
+					updateInterest(true);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private void release(int i) {
+		if (owners[i] != null) owners[i].release();
+		owners[i] = null;
+		batch[i] = null;
+	}
+
+	private void updateInterest(boolean writing) {
+		key.interestOps((reading ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0));
+	}
+
+	/**
+	 * 受信データを読み込み、改行ごとに1行として処理します (ループスレッド専用)。
+	 */
+	void onReadable() {
+		try {
+			int n = channel.read(readBuf);
+			if (n < 0) {
+				close();
+				return;
+			}
+			readBuf.flip();
+			int start = readBuf.position();
+			for (int i = start; i < readBuf.limit(); i++) {
+				if (readBuf.get(i) != '\n') continue;
+				int end = i;
+				if (end > start && readBuf.get(end - 1) == '\r') end--;
+				String line = decode(start, end);
+				start = i + 1;
+				if (!MyServer2.onLine(this, line)) {
+					// BYE: 以降の受信は行わず、返事を書き終えたら閉じる
+					reading = false;
+					closeAfterFlush = true;
+					readBuf.clear();
+					flush();
+					return;
+				}
+			}
+			readBuf.position(start);
+			readBuf.compact();
+			if (!readBuf.hasRemaining()) {
+				ServerLog.warn(ServerLog.Event.LINE_TOO_LONG, number, null);
+				close();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private String decode(int start, int end) {
+		int len = end - start;
+		if (lineBytes.length < len) lineBytes = new byte[Math.max(len, lineBytes.length * 2)];
+		for (int i = 0; i < len; i++) lineBytes[i] = readBuf.get(start + i);
+		return new String(lineBytes, 0, len, StandardCharsets.UTF_8);
+	}
+
+	void terminate() {
+		loop.execute(this::close);
+	}
+
+	/**
+	 * 接続を閉じてバッファをプールへ返し、退出を通知します (ループスレッド専用)。
+	 */
+	void close() {
+		if (closed) return;
+		closed = true;
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// 既に閉じている
+		}
+		loop.pool.release(readBuf);
+		readBuf = null;
+		// 書きかけのまとまりも解放する
+		while (batchStart < batchEnd) release(batchStart++);
+		outbound.clear();
+		releaseCompressor();
+		MyServer2.onDisconnect(this);
+	}
+}
@@ -0,0 +1,62 @@
+import game.WireCodec;
+
+/**
+ * 配信する1メッセージ。
+ * 受信者が何人いても、テキスト (UTF-8) とバイナリ形式への変換はそれぞれ最初に必要になったときの1回だけ行い、
+ * 結果の {@link SharedBuffer} を全員の送信キューで共有します。
+ * <p>
+ * 1回の配信の間だけ使い、配信を終えたら {@link #release()} します (配信は1スレッドで行うので同期は不要です)。
+ */
+class OutboundMessage {
+	final String line;
+	// 配信遅延の計測の起点
+	private final long createdAt = System.nanoTime();
+	private ServerMetrics.CommandCounters counters;
+	private SharedBuffer text;
+	private SharedBuffer binary;
+	// バイナリにできない行だと分かった
+	private boolean textOnly;
+
+	OutboundMessage(String line) {
+		this.line = line;
+	}
+
+	/**
+	 * 受信者の形式に合わせたバッファを、参照を1つ増やして返します。
+	 */
+	SharedBuffer bufferFor(ClientConnection c) {
+		if (c.binaryWire && !textOnly) {
+			if (binary == null) {
+				byte[] frame = WireCodec.encode(line);
+				if (frame == null) {
+					textOnly = true;
+				} else {
+					binary = SharedBuffer.of(frame);
+					binary.stamp = createdAt;
+				}
+			}
+			if (binary != null) return binary.retain();
+		}
+		if (text == null) {
+			text = SharedBuffer.ofLine(line);
+			text.stamp = createdAt;
+		}
+		return text.retain();
+	}
+
+	/**
+	 * 種類ごとの計測値の集計先を返します。
+	 */
+	ServerMetrics.CommandCounters counters() {
+		if (counters == null) counters = ServerMetrics.countersFor(line);
+		return counters;
+	}
+
+	/**
+	 * このメッセージが持っている参照を手放します。
+	 */
+	void release() {
+		if (text != null) text.release();
+		if (binary != null) binary.release();
+	}
+}
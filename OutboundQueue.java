@@ -0,0 +1,141 @@
+import game.LineTokenizer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 1接続分の送信待ちキュー。
+ * 複数の送信者スレッドが同時に追加でき (ロックフリー)、取り出すのはその接続の書き込み担当1スレッドだけです。
+ *
+ * MOVE / STATUS のような「状態」は、送信者ごとに未送信の最新1件だけを保持します (古いものは上書き)。
+ * SHOT / BULLET_HIT / DEAD などの「イベント」は順序どおり全件送ります。
+ * 上書きした状態が、古い状態の後に積まれたイベントを追い越して届かないよう、間にイベントが積まれていれば
+ * 上書きした状態は末尾に並び直します (古い位置は読み飛ばします)。
+ * 積まれた {@link SharedBuffer} の参照はキューが預かり、取り出した側か上書き・破棄の時点で解放されます。
+ */
+class OutboundQueue {
+	/** イベント (上書きしない) */
+	static final int KIND_EVENT = 0;
+	/** MOVE (送信者ごとに最新のみ) */
+	static final int KIND_MOVE = 1;
+	/** STATUS (送信者ごとに最新のみ) */
+	static final int KIND_STATUS = 2;
+
+	// 要素は SharedBuffer (イベント) または StateEntry (状態のキュー上の位置)
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+	private final ConcurrentHashMap<Long, StateSlot> slots = new ConcurrentHashMap<>();
+	private final AtomicInteger depth = new AtomicInteger();
+	/** これまでに積んだイベントの数 (状態を並び直すかの判定用) */
+	private final AtomicLong events = new AtomicLong();
+
+	/**
+	 * 送信者1人・種類1つ分の最新状態と、キュー上の現在の位置。
+	 */
+	private static class StateSlot {
+		final AtomicReference<SharedBuffer> latest = new AtomicReference<>();
+		volatile StateEntry entry;
+	}
+
+	/**
+	 * 状態のキュー上の位置。取り出されるか、並び直して古い位置になると pending が false になります
+	 * (先に false にした側が depth を減らします)。
+	 */
+	private static class StateEntry {
+		final StateSlot slot;
+		/** 積んだ時点までに積まれていたイベントの数 */
+		final long eventsBefore;
+		final AtomicBoolean pending = new AtomicBoolean(true);
+
+		StateEntry(StateSlot slot, long eventsBefore) {
+			this.slot = slot;
+			this.eventsBefore = eventsBefore;
+		}
+	}
+
+	/**
+	 * コマンド名から送信時の扱いを決めます。
+	 */
+	static int kindOf(String cmd) {
+		if (cmd.equals("MOVE")) return KIND_MOVE;
+		if (cmd.equals("STATUS")) return KIND_STATUS;
+		return KIND_EVENT;
+	}
+
+	/**
+	 * 解析済みの行の先頭トークンから種類を判定します。
+	 */
+	static int kindOf(LineTokenizer t) {
+		if (t.equalsAt(0, "MOVE")) return KIND_MOVE;
+		if (t.equalsAt(0, "STATUS")) return KIND_STATUS;
+		return KIND_EVENT;
+	}
+
+	/**
+	 * イベントを末尾に追加します。
+	 */
+	void offer(SharedBuffer b) {
+		depth.incrementAndGet();
+		events.incrementAndGet();
+		queue.offer(b);
+	}
+
+	/**
+	 * 状態を追加します。同じ送信者・種類の未送信分があれば置き換えます。
+	 * 未送信分の後にイベントが積まれていなければキュー上の位置はそのままで、積まれていれば末尾に並び直します。
+	 */
+	void offerState(int sender, int kind, SharedBuffer b) {
+		StateSlot slot = slots.computeIfAbsent(((long) sender << 8) | kind, k -> new StateSlot());
+		SharedBuffer old = slot.latest.getAndSet(b);
+		if (old != null) {
+			old.release();
+			ServerStats.recordCoalesced();
+		}
+		StateEntry current = slot.entry;
+		long seen = events.get();
+		// まだ取り出されておらず、その後にイベントもなければ、今の位置で新しい状態を送ればよい
+		// (取り出す側は pending を落としてから latest を取るので、ここで pending が見えていれば b は必ず届く)
+		if (current != null && current.eventsBefore == seen && current.pending.get()) return;
+		StateEntry next = new StateEntry(slot, seen);
+		slot.entry = next;
+		if (current != null && current.pending.compareAndSet(true, false)) depth.decrementAndGet();
+		depth.incrementAndGet();
+		queue.offer(next);
+	}
+
+	/**
+	 * 先頭を1件取り出します (書き込み担当スレッド専用)。
+	 * @return 空なら null
+	 */
+	SharedBuffer poll() {
+		Object o;
+		while ((o = queue.poll()) != null) {
+			if (o instanceof SharedBuffer) {
+				depth.decrementAndGet();
+				return (SharedBuffer) o;
+			}
+			StateEntry e = (StateEntry) o;
+			// 並び直して古くなった位置は読み飛ばす (depth は並び直した側が減らしている)
+			if (!e.pending.compareAndSet(true, false)) continue;
+			depth.decrementAndGet();
+			// pending を先に落とすことで、この後に届いた状態は改めてキューに積まれる
+			SharedBuffer b = e.slot.latest.getAndSet(null);
+			if (b != null) return b;
+		}
+		return null;
+	}
+
+	/** 現在のキュー長 (状態は送信者・種類ごとに1件と数える) */
+	int depth() {
+		return depth.get();
+	}
+
+	void clear() {
+		SharedBuffer b;
+		while ((b = poll()) != null) b.release();
+		slots.clear();
+	}
+}
@@ -0,0 +1,11 @@
+/**
+ * 受け付けたがまだ番号を割り当てていないクライアント。
+ * 満員時の入場待ち (admission control) で使います。処理はエンジンごとに実装します。
+ */
+interface PendingClient {
+	/** 番号を割り当てて接続処理を開始します。 */
+	void admit(int number);
+
+	/** 満員のため接続を断ります。 */
+	void reject();
+}
@@ -0,0 +1,144 @@
+import game.CommandTable;
+import game.LineTokenizer;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 接続ごと・コマンドごとの流量制限。
+ * コマンドごとに「毎秒 perSec 件まで、続けて burst 件まで」のトークンバケットを接続ごとに持ち、
+ * 上限を超えた行は処理も配信もせずに捨てます。改造したクライアントが SHOT を大量に送っても、
+ * サーバーの中継と他のクライアントの処理は上限の分までしか増えません。
+ * 捨てた数が一定時間内に --flood-drops に達した接続は切断します。
+ * <p>
+ * バケットはトークンの残量の代わりに「次の1件が上限ちょうどになる時刻」を1つの long で持ちます
+ * (GCRA と呼ばれる形で、判定はトークンバケットと同じです)。
+ * 上限は {@link #configure} で全体の倍率 (%) を指定したときだけ有効です (負荷測定などでは無効のまま)。
+ */
+class RateLimit {
+	/** コマンドごとの上限 */
+	private static final class Rule {
+		final int index;
+		final int perSec;
+		final int burst;
+		// 1件あたりの間隔と、先取りできる時間 (ns、configure で倍率を掛けて決める)
+		volatile long interval;
+		volatile long tolerance;
+
+		Rule(int index, int perSec, int burst) {
+			this.index = index;
+			this.perSec = perSec;
+			this.burst = burst;
+		}
+	}
+
+	private static final CommandTable<Rule> RULES = new CommandTable<>();
+	private static final ArrayList<Rule> ALL = new ArrayList<>();
+	/** 個別の上限がないコマンドはまとめて1つのバケットで数える */
+	private static final Rule OTHER;
+	static {
+		// 毎フレーム送るもの (取りこぼしを追いかけて1フレームに複数回送ることもある)
+		rule("MOVE", 90, 180);
+		rule("INPUT", 90, 180);
+		// 1回の射撃で弾の数だけ送るもの (拡散系の能力を重ねると1秒に100件近くになる)
+		rule("SHOT", 150, 300);
+		rule("BULLET_HIT", 150, 300);
+		rule("HEAL", 150, 300);
+		// ルームの出入りやマッチングなど、1件ごとにシャードやマッチングのスレッドを働かせるもの
+		rule("JOIN", 5, 20);
+		rule("QUEUE", 5, 20);
+		rule("WATCH", 5, 20);
+		rule("LOBBY", 5, 20);
+		rule("RESUME", 5, 20);
+		rule("HELLO", 5, 20);
+		OTHER = new Rule(ALL.size(), 20, 60);
+		ALL.add(OTHER);
+	}
+
+	private static void rule(String name, int perSec, int burst) {
+		Rule r = new Rule(ALL.size(), perSec, burst);
+		RULES.register(name, r);
+		ALL.add(r);
+	}
+
+	private static volatile boolean enabled = false;
+	/** 切断するまでに捨ててよい数 (0 なら切断しない) と、数える時間 (ns) */
+	private static volatile int floodDrops = 0;
+	private static volatile long floodWindowNanos = 10_000_000_000L;
+
+	/** 上限を超えて捨てた数 */
+	static final LongAdder dropped = new LongAdder();
+	/** 捨てた数が多すぎて切断した数 */
+	static final LongAdder disconnects = new LongAdder();
+
+	/**
+	 * 上限を設定して有効にします。
+	 * @param percent 既定の上限に掛ける倍率 (%、0 なら制限しない)
+	 * @param drops floodWindowSec 秒のうちにこの数を捨てたら切断する (0 なら切断しない)
+	 */
+	static void configure(int percent, int drops, int floodWindowSec) {
+		enabled = percent > 0;
+		floodDrops = Math.max(0, drops);
+		floodWindowNanos = Math.max(1, floodWindowSec) * 1_000_000_000L;
+		if (!enabled) return;
+		for (Rule r : ALL) {
+			r.interval = 1_000_000_000L * 100 / ((long) r.perSec * percent);
+			r.tolerance = r.interval * Math.max(0, r.burst - 1);
+		}
+	}
+
+	static boolean enabled() {
+		return enabled;
+	}
+
+	// 接続ごとの状態 (このオブジェクトのロックの中で読み書きする。TCP と UDP の受信スレッドから呼ばれるため)
+	private final long[] nextAt = new long[ALL.size()];
+	private long windowStart;
+	private int windowDrops;
+	private boolean flooded;
+
+	/**
+	 * 1行を受け付けてよいか判定し、上限を超えていれば捨てた数に数えます。
+	 * @return 処理してよいなら true
+	 */
+	boolean allow(LineTokenizer t) {
+		if (!enabled) return true;
+		Rule r = RULES.get(t);
+		if (r == null) r = OTHER;
+		long now = System.nanoTime();
+		synchronized (this) {
+			long at = nextAt[r.index];
+			// 間が空いていたら貯められる分 (burst) までしか先取りさせない
+			if (at == 0 || at - now < 0) at = now;
+			if (at - now <= r.tolerance) {
+				nextAt[r.index] = at + r.interval;
+				return true;
+			}
+			if (windowDrops == 0 || now - windowStart > floodWindowNanos) {
+				windowStart = now;
+				windowDrops = 0;
+			}
+			windowDrops++;
+		}
+		dropped.increment();
+		return false;
+	}
+
+	/**
+	 * 捨てた数が切断する上限に達したかを返します。切断すべきと判定するのは1回だけです。
+	 */
+	synchronized boolean overFloodLimit() {
+		int limit = floodDrops;
+		if (flooded || limit == 0 || windowDrops < limit) return false;
+		flooded = true;
+		disconnects.increment();
+		return true;
+	}
+
+	/**
+	 * 直近の時間内に捨てた数を返します (ログ用)。
+	 */
+	synchronized int recentDrops() {
+		return windowDrops;
+	}
+}
@@ -0,0 +1,92 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * 読み取り専用の属性だけを持つ MBean。属性は値を返す関数で登録します。
+ * 標準 MBean のように public なインタフェースを用意しなくてよいので、パッケージ内のクラスのままで公開できます。
+ */
+class ReadOnlyMBean implements DynamicMBean {
+	private final String description;
+	private final LinkedHashMap<String, Supplier<?>> getters = new LinkedHashMap<>();
+	private final ArrayList<MBeanAttributeInfo> infos = new ArrayList<>();
+
+	ReadOnlyMBean(String description) {
+		this.description = description;
+	}
+
+	/**
+	 * 属性を追加します。
+	 * @param type 値の型 (Long / Integer / Double / String / Boolean)
+	 */
+	ReadOnlyMBean add(String name, Class<?> type, String description, Supplier<?> getter) {
+		getters.put(name, getter);
+		infos.add(new MBeanAttributeInfo(name, type.getName(), description, true, false, false));
+		return this;
+	}
+
+	/**
+	 * プラットフォームの MBean サーバーへ登録します。失敗しても (同名が残っているなど) 動作は続けます。
+	 */
+	void register(String objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+		} catch (JMException e) {
+			System.err.println("MBean registration failed: " + objectName + " (" + e + ")");
+		}
+	}
+
+	/**
+	 * 登録を取り消します (登録されていなければ何もしません)。
+	 */
+	static void unregister(String objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(objectName));
+		} catch (JMException e) {
+			// 登録されていない
+		}
+	}
+
+	public Object getAttribute(String name) throws AttributeNotFoundException {
+		Supplier<?> g = getters.get(name);
+		if (g == null) throw new AttributeNotFoundException(name);
+		return g.get();
+	}
+
+	public AttributeList getAttributes(String[] names) {
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			Supplier<?> g = getters.get(name);
+			if (g != null) list.add(new Attribute(name, g.get()));
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		return new MBeanInfo(getClass().getName(), description,
+				infos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,166 @@
+import game.GameConstants;
+import game.LineTokenizer;
+import game.MatchClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 対戦ルーム。JOIN で参加したクライアントを保持し、ルーム内だけに配信します。
+ * 配信する行の変換は {@link OutboundMessage} で1回だけ行い、メンバー全員で共有します。
+ * ルームの操作はすべて担当シャード ({@link RoomShard}) のスレッドで行います。
+ */
+class Room {
+	final int id;
+	final RoomShard shard;
+	final ArrayList<ClientConnection> members = new ArrayList<>();
+	/** 3人以上のときの配信先の絞り込み */
+	final InterestGrid interest = new InterestGrid();
+	/** サーバー権威モードでのシミュレーション (通常の中継モードでは null) */
+	RoomSimulation sim;
+	/** 観戦用の配信 (観戦者がいる間だけ作る) */
+	SpectatorFeed feed;
+	// 観戦を始めた時点・再接続した時点の状態 (観戦用の配信を作るときと、セッションを再開したときに使う)
+	String mapData;
+	final HashMap<Integer, String> statuses = new HashMap<>();
+	// 今の対戦での能力の取得とプレイヤーごとの倒された回数 (MAP_DATA で数え直す)
+	final ArrayList<String> abilities = new ArrayList<>();
+	final HashMap<Integer, Integer> deaths = new HashMap<>();
+
+	Room(int id, RoomShard shard) {
+		this.id = id;
+		this.shard = shard;
+	}
+
+	/**
+	 * ルームのメンバーへ1行を配信します。
+	 * 送信者本人へは、エコーを希望している場合 (旧クライアント) のみ送ります。
+	 * @param sender 送信者 (null ならメンバー全員へ送る)
+	 */
+	void send(String line, ClientConnection sender) {
+		send(line, sender, OutboundQueue.KIND_EVENT);
+	}
+
+	/**
+	 * ルームのメンバーへ1行を配信します。
+	 * @param kind OutboundQueue.KIND_* (状態なら受信者ごとに最新のみ残る)
+	 */
+	void send(String line, ClientConnection sender, int kind) {
+		int senderId = (sender == null) ? 0 : sender.number;
+		OutboundMessage msg = new OutboundMessage(line);
+		for (ClientConnection m : members) {
+			if (m != sender || sender.echoSelf) m.send(msg, senderId, kind);
+		}
+		msg.release();
+		observe(line, senderId, kind);
+	}
+
+	/**
+	 * プレイヤーのコマンドをルームへ配信します。3人以上のルームでは関心領域 ({@link InterestGrid}) で配信先を絞り、
+	 * MOVE は送信者が視野に入っているメンバーへ毎回・それ以外へは間引いて、SHOT は弾の通り道が視野を横切るメンバーへだけ送ります。
+	 * 送信者本人へは、エコーを希望している場合のみ送ります。
+	 * @param line 配信する行 (行末に送信者の番号を付けたもの)
+	 * @param t    元のコマンド
+	 */
+	void send(String line, ClientConnection sender, LineTokenizer t) {
+		relay(line, sender, sender.echoSelf, t);
+	}
+
+	/**
+	 * サーバーがプレイヤーに代わって生成した行を配信します (本人へも送ります)。絞り込みは {@link #send(String, ClientConnection, LineTokenizer)} と同じです。
+	 */
+	void broadcast(String line, ClientConnection sender, LineTokenizer t) {
+		relay(line, sender, true, t);
+	}
+
+	private void relay(String line, ClientConnection sender, boolean toSender, LineTokenizer t) {
+		int kind = OutboundQueue.kindOf(t);
+		boolean move = kind == OutboundQueue.KIND_MOVE;
+		boolean shot = !move && t.equalsAt(0, "SHOT");
+		if (!(move || shot) || !InterestGrid.applies(members.size())) {
+			if (toSender) broadcast(line, sender.number, kind);
+			else send(line, sender, kind);
+			return;
+		}
+		boolean everyone;
+		if (move) everyone = !InterestGrid.move(sender, t) || InterestGrid.farTurn(sender, members.size());
+		else everyone = !interest.aim(t);
+		OutboundMessage msg = new OutboundMessage(line);
+		int skipped = 0;
+		for (ClientConnection m : members) {
+			if (m == sender) {
+				if (toSender) m.send(msg, sender.number, kind);
+			} else if (everyone || (move ? interest.sees(m, sender) : interest.crosses(m))) {
+				m.send(msg, sender.number, kind);
+			} else {
+				skipped++;
+			}
+		}
+		msg.release();
+		if (skipped > 0) InterestGrid.filtered.add(skipped);
+		observe(line, sender.number, kind);
+	}
+
+	/**
+	 * サーバーが生成した行をメンバー全員へ配信します (本人へのエコー省略は行いません)。
+	 * @param senderId 状態をまとめる単位となるプレイヤー番号
+	 */
+	void broadcast(String line, int senderId, int kind) {
+		OutboundMessage msg = new OutboundMessage(line);
+		for (ClientConnection m : members) m.send(msg, senderId, kind);
+		msg.release();
+		observe(line, senderId, kind);
+	}
+
+	// 配信した行を観戦用・再接続用に記録する
+	private void observe(String line, int senderId, int kind) {
+		if (kind == OutboundQueue.KIND_STATUS) {
+			statuses.put(senderId, line);
+		} else if (kind == OutboundQueue.KIND_EVENT) {
+			if (line.startsWith("MAP_DATA ")) {
+				mapData = line;
+				abilities.clear();
+				deaths.clear();
+			} else if (line.startsWith("ABILITY ")) {
+				abilities.add(line);
+			} else if (line.startsWith("DEAD ")) {
+				// DEAD 倒された番号 送信者
+				int end = line.indexOf(' ', 5);
+				try {
+					deaths.merge(Integer.parseInt(line.substring(5, end < 0 ? line.length() : end)), 1, Integer::sum);
+				} catch (NumberFormatException e) {
+					// 数えない
+				}
+			}
+		}
+		if (feed != null) feed.record(line, senderId, kind);
+	}
+
+	/**
+	 * セッションを再開したメンバーへ、今の対戦の状態をまとめて送ります。
+	 * 構成: RESUME 番号 ルーム番号 / 全員の JOIN / MAP_DATA / 全員の STATUS / 能力の取得 / SCORE (番号 倒された回数)... / RESUMED 番号
+	 */
+	void sendResumeState(ClientConnection c) {
+		c.send("RESUME " + c.number + " " + id);
+		for (ClientConnection m : members) c.send("JOIN " + id + " " + m.number);
+		if (mapData != null) c.send(mapData);
+		for (String line : statuses.values()) c.send(line);
+		for (String line : abilities) c.send(line);
+		StringBuilder score = new StringBuilder("SCORE");
+		for (Map.Entry<Integer, Integer> e : deaths.entrySet()) score.append(' ').append(e.getKey()).append(' ').append(e.getValue());
+		c.send(score.toString());
+		c.send("RESUMED " + c.number);
+	}
+
+	/**
+	 * カウントダウン分だけ先のティックをラウンド開始として全員へ知らせます (ROUND_START tick)。
+	 * 時計合わせ (SYNC) を済ませたクライアントは、このティックに当たる時刻にそろって PLAYING へ移ります。
+	 * @return 開始ティック
+	 */
+	long announceRoundStart() {
+		long tick = MatchClock.tickAt(MatchClock.nowMicros()) + GameConstants.COUNTDOWN_FRAMES;
+		broadcast("ROUND_START " + tick, 0, OutboundQueue.KIND_EVENT);
+		return tick;
+	}
+}
@@ -0,0 +1,362 @@
+import game.GameConstants;
+import game.LineTokenizer;
+import game.MatchClock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ルームを受け持つスレッド (シャード)。CPUコア数と同じ数だけ起動します。
+ * ルーム番号のコンシステントハッシュで担当シャードが決まり、そのルームの行の処理・入退室・
+ * サーバー権威モードのシミュレーションはすべて担当シャードの1スレッドで行うので、ルームの状態にロックは要りません。
+ * <p>
+ * 他のスレッド (受信スレッドなど) からは、上限付きのロックフリーなキュー (受け箱) を通して処理を渡します。
+ * 受け箱が満杯のときは空くまで送り手を待たせるので、処理が追いつかない分は送り手の受信が遅れる形で現れます。
+ * シミュレーションのティックは MatchClock のティックの境目に合わせ、担当する全ルーム分をまとめて行います。
+ */
+class RoomShard extends Thread {
+	/** 受け箱の大きさ (2のべき乗) */
+	static final int MAILBOX_CAPACITY = 16384;
+	/** 受け箱が満杯のとき、送り手が空きを確かめ直す間隔 */
+	private static final long FULL_WAIT_NANOS = 50_000;
+	/** 1回の取り出しで処理する最大件数 */
+	private static final int DRAIN_LIMIT = 4096;
+	/** コンシステントハッシュの円上に置く、シャード1つあたりの点の数 */
+	private static final int VIRTUAL_NODES = 64;
+
+	/**
+	 * シャードの一覧とハッシュ円。作り直すときは丸ごと差し替えます。
+	 */
+	private static final class Ring {
+		final RoomShard[] shards;
+		// 円上の点の位置 (昇順) と、その点を受け持つシャード
+		final int[] points;
+		final RoomShard[] owners;
+
+		Ring(RoomShard[] shards) {
+			this.shards = shards;
+			long[] packed = new long[shards.length * VIRTUAL_NODES];
+			for (int s = 0; s < shards.length; s++) {
+				for (int v = 0; v < VIRTUAL_NODES; v++) {
+					// 上位に位置、下位にシャード番号を詰めて位置順に並べる
+					packed[s * VIRTUAL_NODES + v] = ((long) mix(s * VIRTUAL_NODES + v + 0x5bd1e995) << 32) | s;
+				}
+			}
+			Arrays.sort(packed);
+			points = new int[packed.length];
+			owners = new RoomShard[packed.length];
+			for (int i = 0; i < packed.length; i++) {
+				points[i] = (int) (packed[i] >> 32);
+				owners[i] = shards[(int) packed[i]];
+			}
+		}
+
+		RoomShard lookup(int roomId) {
+			int h = mix(roomId);
+			int i = Arrays.binarySearch(points, h);
+			if (i < 0) i = -i - 1;
+			// 円なので末尾を越えたら先頭の点が受け持つ
+			return owners[i == points.length ? 0 : i];
+		}
+	}
+
+	private static volatile Ring ring = new Ring(new RoomShard[0]);
+
+	// 受け箱 (Vyukov の上限付きキュー、書き手は複数・読み手はこのスレッドのみ)。
+	// 各要素は行 (conn, roomId, line) か処理 (task) のどちらか
+	private final AtomicLongArray sequence = new AtomicLongArray(MAILBOX_CAPACITY);
+	private final ClientConnection[] conns = new ClientConnection[MAILBOX_CAPACITY];
+	private final int[] roomIds = new int[MAILBOX_CAPACITY];
+	private final String[] lines = new String[MAILBOX_CAPACITY];
+	private final Runnable[] tasks = new Runnable[MAILBOX_CAPACITY];
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+	private volatile boolean parked = false;
+	private volatile boolean running = true;
+
+	// 以下はこのスレッド専用
+	private final HashMap<Integer, Room> rooms = new HashMap<>();
+	/** 担当ルームへの行の解析用 */
+	final LineTokenizer tokens = new LineTokenizer();
+
+	// 監視用 (このスレッドが書き、他のスレッドは読むだけ)
+	final int index;
+	volatile int roomCount = 0;
+	volatile int memberCount = 0;
+	volatile long processed = 0;
+	volatile long busyNanos = 0;
+	/** 処理が遅れて実行できなかったティック数 */
+	volatile long skippedTicks = 0;
+	/** 受け箱が満杯で送り手を待たせた回数 */
+	final LongAdder fullStalls = new LongAdder();
+	// 直近1秒の稼働率 (集計スレッドが更新)
+	volatile double busyRatio = 0;
+	private long lastBusy = 0, lastSample = System.nanoTime();
+
+	private RoomShard(int index) {
+		super("room-shard-" + index);
+		this.index = index;
+		setDaemon(true);
+		for (int i = 0; i < MAILBOX_CAPACITY; i++) sequence.set(i, i);
+	}
+
+	/**
+	 * count 個のシャードを起動します。既に起動していれば止めてから作り直します (ベンチマーク用)。
+	 */
+	static void start(int count) {
+		stopAll();
+		RoomShard[] shards = new RoomShard[Math.max(1, count)];
+		for (int i = 0; i < shards.length; i++) shards[i] = new RoomShard(i);
+		ring = new Ring(shards);
+		for (RoomShard s : shards) s.start();
+	}
+
+	/**
+	 * 全シャードを止めます。受け箱に残った処理は捨てられます。
+	 */
+	static void stopAll() {
+		for (RoomShard s : ring.shards) {
+			s.running = false;
+			LockSupport.unpark(s);
+		}
+		ring = new Ring(new RoomShard[0]);
+	}
+
+	static RoomShard[] all() {
+		return ring.shards;
+	}
+
+	/**
+	 * ルームを受け持つシャードを返します。
+	 */
+	static RoomShard forRoom(int roomId) {
+		return ring.lookup(roomId);
+	}
+
+	// MurmurHash3 の最終混合 (連番のルーム番号を円上に散らす)
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * このシャードのスレッドで処理を実行します。シャード自身から呼んだ場合はその場で実行します。
+	 */
+	void execute(Runnable task) {
+		if (Thread.currentThread() == this) {
+			task.run();
+			return;
+		}
+		put(null, 0, null, task);
+	}
+
+	/**
+	 * ルーム宛ての1行を渡します。受け取ったシャードが {@link MyServer2#onRoomLine} で処理します。
+	 */
+	void deliver(ClientConnection c, int roomId, String line) {
+		put(c, roomId, line, null);
+	}
+
+	private void put(ClientConnection c, int roomId, String line, Runnable task) {
+		if (!offer(c, roomId, line, task)) {
+			fullStalls.increment();
+			// 回り続けるとシャードの CPU を奪うので、少しずつ眠って空きを待つ
+			do {
+				LockSupport.unpark(this);
+				LockSupport.parkNanos(FULL_WAIT_NANOS);
+			} while (!offer(c, roomId, line, task));
+		}
+		if (parked) LockSupport.unpark(this);
+	}
+
+	private boolean offer(ClientConnection c, int roomId, String line, Runnable task) {
+		long pos = tail.get();
+		while (true) {
+			int i = (int) pos & (MAILBOX_CAPACITY - 1);
+			long d = sequence.get(i) - pos;
+			if (d == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					conns[i] = c;
+					roomIds[i] = roomId;
+					lines[i] = line;
+					tasks[i] = task;
+					// 中身を書き終えてから読み手に見せる
+					sequence.set(i, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (d < 0) {
+				// 1周前の要素をまだ読み手が取り出していない
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * 受け箱に溜まっている件数を返します。
+	 */
+	int depth() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	// 受け箱から取り出して処理する。ティックを遅らせないよう1回に DRAIN_LIMIT 件まで
+	private int drain() {
+		long h = head;
+		int n = 0;
+		while (n < DRAIN_LIMIT) {
+			int i = (int) h & (MAILBOX_CAPACITY - 1);
+			if (sequence.get(i) != h + 1) break;
+			ClientConnection c = conns[i];
+			int roomId = roomIds[i];
+			String line = lines[i];
+			Runnable task = tasks[i];
+			conns[i] = null;
+			lines[i] = null;
+			tasks[i] = null;
+			sequence.set(i, h + MAILBOX_CAPACITY);
+			h++;
+			n++;
+			try {
+				if (task != null) task.run();
+				else MyServer2.onRoomLine(this, c, roomId, line);
+			} catch (RuntimeException e) {
+				ServerLog.error(getName(), e);
+			}
+		}
+		head = h;
+		return n;
+	}
+
+	public void run() {
+		long nextTick = MatchClock.tickAt(MatchClock.nowMicros()) + 1;
+		while (running) {
+			long start = System.nanoTime();
+			int n = drain();
+			long now = MatchClock.nowMicros();
+			boolean ticked = now >= MatchClock.microsOfTick(nextTick);
+			if (ticked) {
+				// 遅れたティックは MAX_CATCH_UP 回まで続けて実行し、それ以上は飛ばす
+				long current = MatchClock.tickAt(now);
+				long behind = current - nextTick + 1;
+				long steps = Math.min(behind, GameConstants.MAX_CATCH_UP);
+				if (behind > steps) skippedTicks += behind - steps;
+				for (long i = 0; i < steps; i++) {
+					for (Room r : rooms.values()) {
+						if (r.sim != null) r.sim.tick();
+					}
+				}
+				// 観戦用の配信は遅れを取り戻す必要がないのでティックごとに1回だけ
+				for (Room r : rooms.values()) {
+					if (r.feed != null) r.feed.tick(now);
+				}
+				nextTick = current + 1;
+			}
+			if (n > 0) processed += n;
+			if (n > 0 || ticked) busyNanos += System.nanoTime() - start;
+
+			// 次のティックまで待つ (送り手が unpark で起こす)
+			parked = true;
+			if (sequence.get((int) head & (MAILBOX_CAPACITY - 1)) != head + 1) {
+				long wait = MatchClock.microsOfTick(nextTick) - MatchClock.nowMicros();
+				if (wait > 0) LockSupport.parkNanos(this, wait * 1000);
+			}
+			parked = false;
+		}
+	}
+
+	/**
+	 * 担当するルームを返します (このスレッド専用)。
+	 * @return なければ null
+	 */
+	Room room(int id) {
+		return rooms.get(id);
+	}
+
+	/**
+	 * 担当するルームを返します。なければ作ります (このスレッド専用)。
+	 */
+	Room openRoom(int id) {
+		Room r = rooms.get(id);
+		if (r == null) {
+			r = new Room(id, this);
+			rooms.put(id, r);
+			roomCount = rooms.size();
+		}
+		return r;
+	}
+
+	/**
+	 * ルームへメンバーを加えます (このスレッド専用)。
+	 */
+	void addMember(Room r, ClientConnection c) {
+		r.members.add(c);
+		r.interest.resize(r.members.size());
+		memberCount++;
+	}
+
+	/**
+	 * ルームからメンバーを外し、空になったルームは削除します (このスレッド専用)。
+	 */
+	void removeMember(Room r, ClientConnection c) {
+		if (!r.members.remove(c)) return;
+		r.interest.resize(r.members.size());
+		memberCount--;
+		r.statuses.remove(c.number);
+		if (r.feed != null) r.feed.memberLeft(c.number);
+		closeIfIdle(r);
+	}
+
+	/**
+	 * ルームの席を old から c へ引き継ぎます (セッションの再開、このスレッド専用)。
+	 * 関心領域のセルも引き継ぐので、ルームの人数も配信先の絞り込みも変わりません。
+	 * @return old がメンバーだった場合は true
+	 */
+	boolean replaceMember(Room r, ClientConnection old, ClientConnection c) {
+		int i = r.members.indexOf(old);
+		if (i < 0) return false;
+		r.members.set(i, c);
+		old.clearRoom(r);
+		c.cellX = old.cellX;
+		c.cellY = old.cellY;
+		c.moveCount = old.moveCount;
+		c.room = r;
+		return true;
+	}
+
+	/**
+	 * ルームから観戦者を外し、観戦者がいなくなれば観戦用の配信をやめます (このスレッド専用)。
+	 */
+	void removeWatcher(Room r, ClientConnection c) {
+		if (r.feed == null) return;
+		r.feed.removeWatcher(c);
+		if (!r.feed.hasWatchers()) r.feed = null;
+		closeIfIdle(r);
+	}
+
+	// メンバーも観戦者もいなくなったルームを削除する
+	private void closeIfIdle(Room r) {
+		if (!r.members.isEmpty() || r.feed != null) return;
+		rooms.remove(r.id, r);
+		roomCount = rooms.size();
+	}
+
+	/**
+	 * 直近1秒の稼働率を更新します (集計スレッドから毎秒呼びます)。
+	 */
+	void sample() {
+		long now = System.nanoTime(), busy = busyNanos;
+		busyRatio = (double) (busy - lastBusy) / Math.max(1, now - lastSample);
+		lastBusy = busy;
+		lastSample = now;
+	}
+}
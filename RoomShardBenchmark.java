@@ -0,0 +1,178 @@
+import game.GameConstants;
+import game.LineTokenizer;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ルームシャードの負荷測定。
+ * ソケットの代わりに送信キューを読み捨てる接続を使い、N人ずつ (既定 2人) のルームへ各プレイヤーから 60Hz で行を送り続けて、
+ * シャードの稼働率から1コアあたり何ルームまで受け持てるかを見積もります。
+ * <pre>
+ * java RoomShardBenchmark [--rooms=1000] [--players=2] [--shards=1,2,4] [--drivers=2] [--seconds=5] [--authoritative] [--aoi-radius=240]
+ * </pre>
+ * 中継モードでは MOVE (と30フレームごとに SHOT) を、--authoritative では INPUT を送ります (後者はシミュレーションの負荷が加わります)。
+ * プレイヤーはマップ上に散らばって動くので、3人以上では関心領域による絞り込み ({@link InterestGrid}) の効果も表れます。
+ * 送り手 (drivers) は受信スレッドの代わりで、受け取った行の読み捨ても行います。
+ */
+class RoomShardBenchmark {
+	private static int playersPerRoom = 2;
+
+	/**
+	 * 送信キューを送り手のスレッドが読み捨てる接続。
+	 */
+	private static class BenchConnection extends ClientConnection {
+		BenchConnection(int n) {
+			super(n);
+			// 今のクライアントと同じく HELLO noecho を送ったものとする
+			echoSelf = false;
+		}
+
+		void signalWriter() {
+		}
+
+		void terminate() {
+		}
+	}
+
+	private static final LongAdder sent = new LongAdder();
+	private static final LongAdder received = new LongAdder();
+	private static volatile boolean driving;
+
+	public static void main(String[] args) throws InterruptedException {
+		ServerOptions options = ServerOptions.parse(args);
+		int rooms = options.getInt("rooms", 1000);
+		int drivers = options.getInt("drivers", 2);
+		int seconds = options.getInt("seconds", 5);
+		playersPerRoom = Math.max(2, options.getInt("players", playersPerRoom));
+		InterestGrid.setRadius(options.getInt("aoi-radius", InterestGrid.DEFAULT_RADIUS));
+		MyServer2.authoritative = options.has("authoritative");
+		String shardList = options.get("shards", defaultShardList());
+
+		System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " rooms=" + rooms
+				+ " players/room=" + playersPerRoom + " mode=" + (MyServer2.authoritative ? "authoritative" : "relay"));
+		for (String s : shardList.split(",")) {
+			run(Integer.parseInt(s.trim()), rooms, drivers, seconds);
+		}
+	}
+
+	// 1, 2, 4, ... コア数まで
+	private static String defaultShardList() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		StringBuilder sb = new StringBuilder("1");
+		for (int n = 2; n < cores; n *= 2) sb.append(',').append(n);
+		if (cores > 1) sb.append(',').append(cores);
+		return sb.toString();
+	}
+
+	private static void run(int shardCount, int rooms, int drivers, int seconds) throws InterruptedException {
+		RoomShard.start(shardCount);
+		BenchConnection[] conns = new BenchConnection[rooms * playersPerRoom];
+		for (int i = 0; i < conns.length; i++) conns[i] = new BenchConnection(i + 1);
+
+		driving = true;
+		Thread[] threads = new Thread[drivers];
+		for (int d = 0; d < drivers; d++) {
+			int first = d;
+			threads[d] = new Thread(() -> drive(conns, first, drivers), "bench-driver-" + d);
+			threads[d].setDaemon(true);
+			threads[d].start();
+		}
+
+		// 入室とカウントダウンが終わるまで待ってから測る
+		Thread.sleep(1000 + GameConstants.COUNTDOWN_FRAMES * 1000L / GameConstants.FPS + 1000);
+		RoomShard[] shards = RoomShard.all();
+		long[] busy0 = new long[shards.length];
+		long skipped0 = 0, stalls0 = 0;
+		for (int i = 0; i < shards.length; i++) {
+			busy0[i] = shards[i].busyNanos;
+			skipped0 += shards[i].skippedTicks;
+			stalls0 += shards[i].fullStalls.sum();
+		}
+		long sent0 = sent.sum(), received0 = received.sum(), t0 = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long elapsed = System.nanoTime() - t0;
+		double totalBusy = 0, maxBusy = 0;
+		long skipped = -skipped0, stalls = -stalls0;
+		for (int i = 0; i < shards.length; i++) {
+			double b = (double) (shards[i].busyNanos - busy0[i]) / elapsed;
+			totalBusy += b;
+			maxBusy = Math.max(maxBusy, b);
+			skipped += shards[i].skippedTicks;
+			stalls += shards[i].fullStalls.sum();
+		}
+		double in = (sent.sum() - sent0) * 1e9 / elapsed;
+		double out = (received.sum() - received0) * 1e9 / elapsed;
+
+		driving = false;
+		for (Thread t : threads) t.join();
+		RoomShard.stopAll();
+
+		System.out.printf("shards=%d in=%.0f/s out=%.0f/s out/client=%.0f/s busy(avg)=%.1f%% busy(max)=%.1f%% skippedTicks=%d fullStalls=%d rooms/core=%.0f%n",
+				shardCount, in, out, out / conns.length, totalBusy / shards.length * 100, maxBusy * 100, skipped, stalls,
+				totalBusy > 0 ? rooms / totalBusy : 0);
+	}
+
+	/**
+	 * conns のうち first から drivers 個おきの接続を受け持ち、1フレームごとに1行ずつ送って受信分を読み捨てます。
+	 */
+	private static void drive(BenchConnection[] conns, int first, int drivers) {
+		LineTokenizer tokens = new LineTokenizer();
+		for (int i = first; i < conns.length; i += drivers) {
+			MyServer2.onLine(conns[i], "JOIN " + (i / playersPerRoom + 1), tokens);
+			if (MyServer2.authoritative && i % playersPerRoom == 0) {
+				MyServer2.onLine(conns[i], "NEXT_ROUND_READY", tokens);
+			}
+		}
+		long period = 1_000_000_000L / GameConstants.FPS;
+		long next = System.nanoTime();
+		int frame = 0;
+		while (driving) {
+			frame++;
+			for (int i = first; i < conns.length; i += drivers) {
+				MyServer2.onLine(conns[i], line(i, frame), tokens);
+				sent.increment();
+			}
+			for (int i = first; i < conns.length; i += drivers) {
+				BenchConnection c = conns[i];
+				SharedBuffer b;
+				int n = 0;
+				while ((b = c.pollOutbound()) != null) {
+					b.release();
+					n++;
+				}
+				c.recordDelivered();
+				received.add(n);
+			}
+			next += period;
+			long wait = next - System.nanoTime();
+			if (wait > 0) LockSupport.parkNanos(wait);
+		}
+		for (int i = first; i < conns.length; i += drivers) MyServer2.leaveRoom(conns[i]);
+	}
+
+	// 連番を散らした 0 以上の値 (位置が格子状に偏らないように)
+	private static int scatter(int i) {
+		int h = i * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & Integer.MAX_VALUE;
+	}
+
+	/**
+	 * i 番目のプレイヤーが frame で送る行。
+	 * 中継モードではプレイヤーごとにマップ上に散らばった位置から横へ動き、30フレームごとに右へ撃ちます。
+	 * 権威モードでは左上の開始位置の人は左上へ、右下の人は右下へ撃ち続けて、相手には当てずに弾を飛ばし続けます。
+	 */
+	private static String line(int i, int frame) {
+		int w = GameConstants.MAP_WIDTH - 100, h = GameConstants.MAP_HEIGHT - 100;
+		int x = GameConstants.MAP_X + 50 + (scatter(i) + frame) % w;
+		int y = GameConstants.MAP_Y + 50 + scatter(i + 0x10000) % h;
+		if (!MyServer2.authoritative) {
+			if (frame % 30 == 0) return "SHOT " + frame + " " + x + " " + y + " 0.0 10.0 10 8 0 " + (i + 1) + " 0 30";
+			return "MOVE " + x + " " + y + " 0.50 100 0 0 0";
+		}
+		int mask = ((frame / 30) % 2 == 0) ? GameConstants.INPUT_W : GameConstants.INPUT_S;
+		if (frame % 2 == 0) mask |= GameConstants.INPUT_FIRE;
+		int aim = (i % playersPerRoom == 0) ? 0 : 2000;
+		return "INPUT " + mask + " " + aim + " " + aim;
+	}
+}
@@ -0,0 +1,271 @@
+import game.Bullet;
+import game.GameConstants;
+import game.GameLogic;
+import game.InputHandler;
+import game.LineTokenizer;
+import game.MatchClock;
+import game.Player;
+import game.PowerUp;
+
+import java.awt.geom.Line2D;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * サーバー権威モード (--authoritative) でルームごとに動かすゲームシミュレーション。
+ * クライアントからは INPUT (キー・ボタンのビットマスクと照準座標) だけを受け取り、
+ * クライアントと同じ GameLogic / Player / Weapon を画面なしで固定ティック実行して、
+ * 結果 (MOVE / SHOT / BULLET_HIT / HEAL / DEAD / STATUS) をルームへ配信します。
+ * 命中判定はサーバーの1か所だけで行われるため、クライアント間で結果が食い違いません。
+ * <p>
+ * 入力の受け取りもティック処理も、ルームの担当シャード ({@link RoomShard}) の1スレッドで行います。
+ */
+class RoomSimulation {
+	private final Room room;
+	private final GameLogic logic = new GameLogic();
+	private final HashMap<Integer, SimPlayer> players = new HashMap<>();
+	private final LineBuffer lines = new LineBuffer();
+	private final PrintWriter out = new PrintWriter(lines);
+	private final LineTokenizer tokens = new LineTokenizer();
+	private int frame = 0;
+	// 次のラウンドを始めるティック (カウントダウン中以外は Long.MAX_VALUE)
+	private long startTick = Long.MAX_VALUE;
+	private boolean playing = false;
+
+	/**
+	 * 1人分の入力と送信済みの状態。
+	 */
+	private static class SimPlayer {
+		// セッションを再開すると新しい接続に差し替わる
+		ClientConnection conn;
+		final Player player;
+		final InputHandler input = new InputHandler();
+		int mask, mouseX, mouseY;
+		// 前回のティックから射撃ボタンが押されたか (1ティック内の押して離すを取りこぼさない)
+		boolean firePressed;
+		int sentAmmo = -1, sentMaxAmmo = -1;
+
+		SimPlayer(ClientConnection conn) {
+			this.conn = conn;
+			this.player = new Player(conn.number, 0, 0, GameConstants.COLOR_PLAYER_ENEMY);
+		}
+	}
+
+	RoomSimulation(Room room) {
+		this.room = room;
+	}
+
+	void addPlayer(ClientConnection c) {
+		SimPlayer sp = new SimPlayer(c);
+		players.put(c.number, sp);
+		logic.players.put(c.number, sp.player);
+	}
+
+	void removePlayer(ClientConnection c) {
+		players.remove(c.number);
+		logic.players.remove(c.number);
+	}
+
+	/**
+	 * セッションを再開したプレイヤーの接続を差し替えます。能力などの状態はそのまま引き継ぎます。
+	 */
+	void replacePlayer(ClientConnection c) {
+		SimPlayer sp = players.get(c.number);
+		if (sp == null) return;
+		sp.conn = c;
+		sp.mask = 0;
+		sp.firePressed = false;
+		sp.sentAmmo = -1;
+	}
+
+	/**
+	 * 再接続を待つ間、ラウンドの進行を止めます。{@link #restartRound} で始め直すまで何も動きません。
+	 */
+	void pause() {
+		playing = false;
+		startTick = Long.MAX_VALUE;
+	}
+
+	/**
+	 * 止めていたラウンドを初期位置から始め直します。
+	 */
+	void restartRound() {
+		startRound();
+	}
+
+	/**
+	 * ルーム内のクライアントから受け取ったコマンドを処理します。
+	 * @return そのままルームへ中継する場合は true
+	 */
+	boolean accept(ClientConnection c, LineTokenizer t) {
+		if (t.equalsAt(0, "INPUT")) {
+			onInput(c, t);
+			return false;
+		}
+		if (t.equalsAt(0, "MOVE") || t.equalsAt(0, "SHOT") || t.equalsAt(0, "BULLET_HIT")
+				|| t.equalsAt(0, "HEAL") || t.equalsAt(0, "DEAD") || t.equalsAt(0, "STATUS")) {
+			// 結果はサーバーが決めるので、クライアントの自己申告は捨てる
+			return false;
+		}
+		if (t.equalsAt(0, "MAP_DATA")) {
+			setObstacles(t);
+			startRound();
+		} else if (t.equalsAt(0, "ABILITY")) {
+			applyAbility(c.number, t.join(1, t.count()));
+		} else if (t.equalsAt(0, "NEXT_ROUND_READY")) {
+			startRound();
+		}
+		return true;
+	}
+
+	private void onInput(ClientConnection c, LineTokenizer t) {
+		SimPlayer sp = players.get(c.number);
+		if (sp == null || t.count() < 4) return;
+		try {
+			int mask = t.intAt(1);
+			sp.mouseX = t.intAt(2);
+			sp.mouseY = t.intAt(3);
+			if ((mask & GameConstants.INPUT_FIRE) != 0 && (sp.mask & GameConstants.INPUT_FIRE) == 0) {
+				sp.firePressed = true;
+			}
+			sp.mask = mask;
+		} catch (NumberFormatException e) {
+			ServerLog.warn(ServerLog.Event.INVALID_COMMAND, c.number, "INPUT");
+		}
+	}
+
+	private void setObstacles(LineTokenizer t) {
+		ArrayList<Line2D.Double> walls = new ArrayList<>();
+		for (int i = 1; i + 3 < t.count(); i += 4) {
+			walls.add(new Line2D.Double(t.doubleAt(i), t.doubleAt(i + 1), t.doubleAt(i + 2), t.doubleAt(i + 3)));
+		}
+		logic.obstacles = walls;
+	}
+
+	private void applyAbility(int number, String name) {
+		SimPlayer sp = players.get(number);
+		if (sp == null) return;
+		if (!PowerUp.applyByName(name, sp.player)) {
+			ServerLog.warn(ServerLog.Event.INVALID_COMMAND, number, "ABILITY " + name);
+		}
+	}
+
+	/**
+	 * ラウンドを初期位置から始め直し、カウントダウン後に進行を開始します。
+	 */
+	private void startRound() {
+		for (Bullet b : logic.bulletPool) b.deactivate();
+		logic.resetPositions(0);
+		for (SimPlayer sp : players.values()) {
+			sp.player.sendStatus(out);
+			publish(sp);
+		}
+		playing = false;
+		// クライアントと同じティックで始める
+		startTick = room.announceRoundStart();
+	}
+
+	/**
+	 * 1ティック進めます (担当シャードがティックの境目ごとに呼びます)。
+	 */
+	void tick() {
+		try {
+			if (!playing) {
+				if (MatchClock.tickAt(MatchClock.nowMicros()) < startTick) return;
+				playing = true;
+				startTick = Long.MAX_VALUE;
+			}
+			frame++;
+
+			// 1. 各プレイヤーの入力を反映 (移動・ガード・射撃)
+			for (SimPlayer sp : players.values()) {
+				sp.input.applyMask(sp.mask, sp.mouseX, sp.mouseY);
+				boolean fire = sp.firePressed;
+				sp.firePressed = false;
+				logic.updatePlayer(sp.player, sp.input, fire, frame, out);
+				publish(sp);
+			}
+
+			// 2. 弾の移動と命中判定 (全員分をここで1回だけ行う)
+			for (Bullet b : logic.bulletPool) {
+				if (!b.isActive) continue;
+				b.update();
+				logic.checkWallCollision(b);
+				for (SimPlayer sp : players.values()) {
+					if (!logic.checkPlayerHit(b, sp.player, out)) continue;
+					Player shooter = logic.players.get(b.ownerId);
+					if (shooter != null) logic.applyHitPassives(shooter);
+					publish(sp);
+					break;
+				}
+			}
+
+			// 3. 本人にだけ必要な残弾数
+			for (SimPlayer sp : players.values()) {
+				int ammo = sp.player.weapon.currentAmmo;
+				int max = sp.player.weapon.maxAmmo;
+				if (ammo != sp.sentAmmo || max != sp.sentMaxAmmo) {
+					sp.sentAmmo = ammo;
+					sp.sentMaxAmmo = max;
+					sp.conn.send("AMMO " + ammo + " " + max);
+				}
+			}
+		} catch (RuntimeException e) {
+			// 例外で定期実行が止まらないようにする
+			ServerLog.error("room " + room.id + " simulation", e);
+		}
+	}
+
+	/**
+	 * sp の処理中に出力された行をルームへ配信し、サーバー自身のゲーム状態にも反映します。
+	 * 中継モードと同じく、行末に発信元のプレイヤー番号を付けます。
+	 */
+	private void publish(SimPlayer sp) {
+		out.flush();
+		for (String line : lines.drain()) {
+			LineTokenizer t = tokens.reset(line);
+			if (t.equalsAt(0, "SHOT")) {
+				logic.spawnBullet(t);
+			} else if (t.equalsAt(0, "HEAL")) {
+				Player p = logic.players.get(t.intAt(1));
+				if (p != null) p.hp = Math.min(p.hp + t.intAt(2), p.maxHp);
+			} else if (t.equalsAt(0, "DEAD")) {
+				// ラウンド終了。次は NEXT_ROUND_READY で再開する
+				playing = false;
+			}
+			room.broadcast(line + " " + sp.conn.number, sp.conn, t);
+		}
+	}
+
+	/**
+	 * PrintWriter の出力を行単位で溜めておく Writer。
+	 */
+	private static class LineBuffer extends Writer {
+		private final StringBuilder buf = new StringBuilder();
+
+		public void write(char[] cbuf, int off, int len) {
+			buf.append(cbuf, off, len);
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+
+		ArrayList<String> drain() {
+			ArrayList<String> result = new ArrayList<>();
+			int start = 0;
+			for (int i = 0; i < buf.length(); i++) {
+				if (buf.charAt(i) != '\n') continue;
+				int end = (i > start && buf.charAt(i - 1) == '\r') ? i - 1 : i;
+				result.add(buf.substring(start, end));
+				start = i + 1;
+			}
+			buf.delete(0, start);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * サーバーのログ。受け付け・切断などの記録を、呼び出したスレッドを待たせずに残します。
+ * <p>
+ * 記録は起動時に確保したリングバッファ (上限付きのロックフリーなキュー) に入れるだけで、文字列の組み立てや
+ * 書き込みは1本の書き出しスレッドがまとめて行います。バッファが満杯のときは記録を捨てて数えるだけなので、
+ * 端末やディスクが遅くても受け付けスレッドや受信スレッドは止まりません。
+ * 書き出し先は {@link #openFile} で指定したファイル (一定の大きさで世代を繰り越す) で、指定がなければ標準出力です。
+ * <p>
+ * 1行は "時刻 レベル イベント client=番号 値の名前=値 詳細の名前=詳細" の形です。
+ */
+class ServerLog {
+	/** リングバッファの大きさ (2のべき乗) */
+	static final int CAPACITY = 8192;
+	/** 記録がないときに書き出しスレッドが次に見に行くまでの間隔 */
+	private static final long IDLE_NANOS = 10_000_000;
+	/** 1回にまとめて書き出す最大件数 */
+	private static final int BATCH_LIMIT = 1024;
+
+	enum Level { INFO, WARN, ERROR }
+
+	/**
+	 * 記録の種類。値と詳細を何という名前で書き出すかを持ちます (null なら書き出さない)。
+	 */
+	enum Event {
+		ACCEPT("accept", null, null),
+		DISCONNECT("disconnect", null, "name"),
+		QUEUED("admission_queued", "waiting", null),
+		SUSPEND("session_suspend", "grace_ms", null),
+		RESUME("session_resume", "from", null),
+		REDIRECT("redirect", "room", "node"),
+		NODE_UP("cluster_node_up", null, "node"),
+		NODE_DOWN("cluster_node_down", null, "node"),
+		NODE_REJECTED("cluster_node_rejected", null, "peer"),
+		REJECTED("admission_rejected", null, null),
+		TIMEOUT("timeout", null, null),
+		INVALID_COMMAND("invalid_command", null, "line"),
+		LINE_TOO_LONG("line_too_long", null, null),
+		FLOOD("flood_disconnect", "dropped", null),
+		ERROR("error", null, "cause");
+
+		final String label;
+		final String valueKey;
+		final String detailKey;
+
+		Event(String label, String valueKey, String detailKey) {
+			this.label = label;
+			this.valueKey = valueKey;
+			this.detailKey = detailKey;
+		}
+	}
+
+	// リングバッファ (Vyukov の上限付きキュー、書き手は複数・読み手は書き出しスレッドのみ)
+	private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+	private static final long[] times = new long[CAPACITY];
+	private static final Level[] levels = new Level[CAPACITY];
+	private static final Event[] events = new Event[CAPACITY];
+	private static final int[] clients = new int[CAPACITY];
+	private static final long[] values = new long[CAPACITY];
+	private static final String[] details = new String[CAPACITY];
+	private static final AtomicLong tail = new AtomicLong();
+	private static volatile long head = 0;
+
+	/** 満杯で捨てた記録の数 */
+	static final LongAdder dropped = new LongAdder();
+	// 以下は書き出しスレッドが更新し、他のスレッドは読むだけ
+	static volatile long written = 0;
+	static volatile long bytesWritten = 0;
+	static volatile long rotations = 0;
+	static volatile long writeErrors = 0;
+
+	private static volatile RollingFile file;
+	private static volatile boolean console = true;
+	private static volatile boolean stopping = false;
+	private static final Thread drainer;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) sequence.set(i, i);
+		drainer = new Thread(ServerLog::run, "server-log");
+		drainer.setDaemon(true);
+		drainer.start();
+		// 終了時に残りを書き出す
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stopping = true;
+			LockSupport.unpark(drainer);
+			try {
+				drainer.join(1000);
+			} catch (InterruptedException e) {
+				// そのまま終了する
+			}
+		}, "server-log-flush"));
+	}
+
+	/**
+	 * 書き出し先をファイルにします。大きさが maxBytes を超えたら path.1, path.2, ... と世代を繰り越し、files 世代まで残します。
+	 * @param echo 標準出力にも書き出すなら true
+	 */
+	static void openFile(String path, long maxBytes, int files, boolean echo) throws IOException {
+		file = new RollingFile(new File(path), maxBytes, Math.max(1, files));
+		console = echo;
+	}
+
+	static void info(Event event, int client) {
+		log(Level.INFO, event, client, 0, null);
+	}
+
+	static void info(Event event, int client, long value) {
+		log(Level.INFO, event, client, value, null);
+	}
+
+	static void info(Event event, int client, String detail) {
+		log(Level.INFO, event, client, 0, detail);
+	}
+
+	static void warn(Event event, int client, String detail) {
+		log(Level.WARN, event, client, 0, detail);
+	}
+
+	static void warn(Event event, int client, long value) {
+		log(Level.WARN, event, client, value, null);
+	}
+
+	/**
+	 * 例外を記録します。
+	 * @param where どこで起きたか (スレッド名など)
+	 */
+	static void error(String where, Throwable e) {
+		log(Level.ERROR, Event.ERROR, 0, 0, where + ": " + e);
+	}
+
+	/**
+	 * 1件を記録します。リングバッファに空きがなければ捨てて数えるだけで、待つことはありません。
+	 * @param client クライアント番号 (0 ならなし)
+	 */
+	static void log(Level level, Event event, int client, long value, String detail) {
+		long pos = tail.get();
+		while (true) {
+			int i = (int) pos & (CAPACITY - 1);
+			long d = sequence.get(i) - pos;
+			if (d == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					times[i] = System.currentTimeMillis();
+					levels[i] = level;
+					events[i] = event;
+					clients[i] = client;
+					values[i] = value;
+					details[i] = detail;
+					// 中身を書き終えてから書き出しスレッドに見せる
+					sequence.set(i, pos + 1);
+					return;
+				}
+				pos = tail.get();
+			} else if (d < 0) {
+				// 1周前の記録をまだ書き出していない
+				dropped.increment();
+				return;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * 書き出し待ちの件数を返します。
+	 */
+	static int depth() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	// 書き出しスレッド
+	private static void run() {
+		LineFormatter f = new LineFormatter();
+		while (true) {
+			int n = drain(f);
+			if (n > 0) {
+				flush(f.sb);
+				continue;
+			}
+			if (stopping) return;
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+	}
+
+	// 取り出した記録を1行ずつ組み立てる (BATCH_LIMIT 件まで)
+	private static int drain(LineFormatter f) {
+		long h = head;
+		int n = 0;
+		f.sb.setLength(0);
+		while (n < BATCH_LIMIT) {
+			int i = (int) h & (CAPACITY - 1);
+			if (sequence.get(i) != h + 1) break;
+			f.append(times[i], levels[i], events[i], clients[i], values[i], details[i]);
+			details[i] = null;
+			sequence.set(i, h + CAPACITY);
+			h++;
+			n++;
+		}
+		head = h;
+		written += n;
+		return n;
+	}
+
+	private static void flush(StringBuilder sb) {
+		byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+		RollingFile target = file;
+		try {
+			if (target != null) target.write(bytes);
+			if (target == null || console) {
+				System.out.write(bytes, 0, bytes.length);
+				System.out.flush();
+			}
+			bytesWritten += bytes.length;
+		} catch (IOException e) {
+			writeErrors++;
+		}
+	}
+
+	/**
+	 * 記録を1行の文字列にします (書き出しスレッド専用)。時刻の日付部分は秒が変わったときだけ作り直します。
+	 */
+	private static final class LineFormatter {
+		private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+		final StringBuilder sb = new StringBuilder(64 * 1024);
+		private long cachedSecond = Long.MIN_VALUE;
+		private String cachedText;
+
+		void append(long time, Level level, Event event, int client, long value, String detail) {
+			long second = Math.floorDiv(time, 1000);
+			if (second != cachedSecond) {
+				cachedSecond = second;
+				cachedText = SECONDS.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()));
+			}
+			int millis = (int) Math.floorMod(time, 1000);
+			sb.append(cachedText).append('.');
+			if (millis < 100) sb.append('0');
+			if (millis < 10) sb.append('0');
+			sb.append(millis).append(' ').append(level).append(' ').append(event.label);
+			if (client != 0) sb.append(" client=").append(client);
+			if (event.valueKey != null) sb.append(' ').append(event.valueKey).append('=').append(value);
+			if (event.detailKey != null && detail != null) {
+				sb.append(' ').append(event.detailKey).append('=');
+				appendQuoted(detail);
+			}
+			sb.append('\n');
+		}
+
+		// 空白や引用符を含む値は "..." で囲む
+		private void appendQuoted(String s) {
+			boolean plain = !s.isEmpty();
+			for (int i = 0; plain && i < s.length(); i++) {
+				char ch = s.charAt(i);
+				if (ch <= ' ' || ch == '"') plain = false;
+			}
+			if (plain) {
+				sb.append(s);
+				return;
+			}
+			sb.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char ch = s.charAt(i);
+				if (ch == '"' || ch == '\\') sb.append('\\');
+				sb.append(ch < ' ' ? ' ' : ch);
+			}
+			sb.append('"');
+		}
+	}
+
+	/**
+	 * 一定の大きさで世代を繰り越すログファイル (書き出しスレッド専用)。
+	 */
+	private static final class RollingFile {
+		private final File path;
+		private final long maxBytes;
+		private final int files;
+		private OutputStream out;
+		private long size;
+
+		RollingFile(File path, long maxBytes, int files) throws IOException {
+			this.path = path;
+			this.maxBytes = maxBytes;
+			this.files = files;
+			File dir = path.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+			open();
+		}
+
+		private void open() throws IOException {
+			out = new FileOutputStream(path, true);
+			size = path.length();
+		}
+
+		void write(byte[] bytes) throws IOException {
+			if (size > 0 && size + bytes.length > maxBytes) roll();
+			out.write(bytes);
+			size += bytes.length;
+		}
+
+		// path → path.1 → path.2 ... と名前をずらし、いちばん古いものを消す
+		private void roll() throws IOException {
+			out.close();
+			File oldest = generation(files);
+			if (oldest.exists() && !oldest.delete()) throw new IOException("cannot delete " + oldest);
+			for (int g = files - 1; g >= 1; g--) {
+				File f = generation(g);
+				if (f.exists()) f.renameTo(generation(g + 1));
+			}
+			path.renameTo(generation(1));
+			rotations++;
+			open();
+		}
+
+		private File generation(int g) {
+			return new File(path.getPath() + "." + g);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+import com.sun.net.httpserver.HttpServer;
+import game.CommandTable;
+import game.LineTokenizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 外部から監視するためのサーバーの計測値。
+ * 起動からの累積値と直近1秒の毎秒値を持ち、JMX (ドメイン "MyServer2") と、
+ * --metrics-port を指定したときはループバックの HTTP (/metrics, テキスト形式) で公開します。
+ * <p>
+ * 間隔ごとにリセットして標準出力へ表示する ServerStats とは別に、こちらはリセットしません。
+ * 記録はどのスレッドからでも行え、メモリを確保しません。
+ */
+class ServerMetrics {
+	/** 種類ごとに数えるコマンド (それ以外は OTHER にまとめる) */
+	private static final String[] COMMANDS = {
+			"HELLO", "WELCOME", "UDP", "JOIN", "QUEUE", "MATCH", "REDIRECT", "CLUSTER_FULL", "WATCH", "WATCHING", "LOBBY", "SESSION", "RESUME", "PAUSE", "RESUMED", "SCORE", "PING", "PONG", "RESYNC", "SYNC", "INPUT", "MODE", "AMMO",
+			"START", "ENTER", "USERS", "LEAVE", "MOVE", "STATUS", "SHOT", "BULLET_HIT", "HEAL", "DEAD",
+			"NEXT_ROUND_READY", "ROUND_START", "MAP_DATA", "ABILITY" };
+
+	/**
+	 * コマンドの種類ごとの件数とバイト数。
+	 * 受信は行の長さ + 改行、送信は送信キューに積んだ形式 (テキストまたはバイナリ、圧縮前) の長さです。
+	 */
+	static final class CommandCounters {
+		final String name;
+		final LongAdder inMessages = new LongAdder();
+		final LongAdder inBytes = new LongAdder();
+		final LongAdder outMessages = new LongAdder();
+		final LongAdder outBytes = new LongAdder();
+		/** 流量制限 (RateLimit) で捨てた受信件数 */
+		final LongAdder rateLimited = new LongAdder();
+		// 直近1秒の毎秒値 (集計スレッドが更新)
+		volatile long inMessagesPerSec, inBytesPerSec, outMessagesPerSec, outBytesPerSec;
+		private long lastIn, lastInBytes, lastOut, lastOutBytes;
+
+		CommandCounters(String name) {
+			this.name = name;
+		}
+
+		private void sample() {
+			long in = inMessages.sum(), inB = inBytes.sum(), out = outMessages.sum(), outB = outBytes.sum();
+			inMessagesPerSec = in - lastIn;
+			inBytesPerSec = inB - lastInBytes;
+			outMessagesPerSec = out - lastOut;
+			outBytesPerSec = outB - lastOutBytes;
+			lastIn = in;
+			lastInBytes = inB;
+			lastOut = out;
+			lastOutBytes = outB;
+		}
+	}
+
+	private static final CommandTable<CommandCounters> TABLE = new CommandTable<>();
+	private static final ArrayList<CommandCounters> ALL = new ArrayList<>();
+	private static final CommandCounters OTHER = new CommandCounters("OTHER");
+	static {
+		for (String name : COMMANDS) {
+			CommandCounters c = new CommandCounters(name);
+			TABLE.register(name, c);
+			ALL.add(c);
+		}
+		ALL.add(OTHER);
+	}
+
+	/** 配信する行を受け取ってから (サーバーが作ってから) ソケットへ書き終えるまで */
+	static final LatencyHistogram relayLatency = new LatencyHistogram();
+	private static final LongAdder accepted = new LongAdder();
+	private static final LongAdder bytesWritten = new LongAdder();
+
+	/**
+	 * 受信した1行を数えます。
+	 * @return 行の種類の集計先 (捨てたときに数えるため)
+	 */
+	static CommandCounters recordInbound(LineTokenizer t, int length) {
+		CommandCounters c = TABLE.get(t);
+		if (c == null) c = OTHER;
+		c.inMessages.increment();
+		c.inBytes.add(length + 1);
+		return c;
+	}
+
+	/**
+	 * 行の種類の集計先を返します (OutboundMessage が1回だけ引いて覚えておきます)。
+	 */
+	static CommandCounters countersFor(String line) {
+		CommandCounters c = TABLE.get(line);
+		return (c == null) ? OTHER : c;
+	}
+
+	/**
+	 * 1人分の送信を数えます。
+	 */
+	static void recordOutbound(CommandCounters c, int bytes) {
+		c.outMessages.increment();
+		c.outBytes.add(bytes);
+	}
+
+	static void recordWrite(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * 接続を数え、接続ごとの MBean を登録します。
+	 */
+	static void onRegister(ClientConnection c) {
+		accepted.increment();
+		new ReadOnlyMBean("Client connection")
+				.add("QueueDepth", Integer.class, "送信キューに溜まっている件数", c.outbound::depth)
+				.add("Room", Integer.class, "参加中のルーム (ロビーなら 0)", () -> {
+					Room r = c.room;
+					return r == null ? 0 : r.id;
+				})
+				.add("BinaryWire", Boolean.class, "バイナリ形式で送っているか", () -> c.binaryWire)
+				.add("Compressed", Boolean.class, "圧縮して送っているか", () -> c.compressionRequested)
+				.add("UdpActive", Boolean.class, "MOVE を UDP でやり取りしているか", () -> c.udpActive)
+				.add("RttMillis", Long.class, "直近の PING から PONG までの往復時間 (ms, 未計測なら -1)", () -> c.rttMillis)
+				.register(clientName(c));
+	}
+
+	static void onUnregister(ClientConnection c) {
+		ReadOnlyMBean.unregister(clientName(c));
+	}
+
+	private static String clientName(ClientConnection c) {
+		return "MyServer2:type=Client,number=" + c.number;
+	}
+
+	/**
+	 * サーバー全体とコマンドごとの MBean を登録し、毎秒値の集計を開始します。
+	 */
+	static void start() {
+		new ReadOnlyMBean("Action game server")
+				.add("Connections", Integer.class, "接続中のクライアント数", MyServer2::liveCount)
+				.add("AcceptedTotal", Long.class, "起動からの接続数", accepted::sum)
+				.add("Rooms", Integer.class, "ルーム数", MyServer2::roomCount)
+				.add("RoomMembers", Integer.class, "ルームに参加中の人数", MyServer2::roomMemberCount)
+				.add("Spectators", Integer.class, "観戦中の人数", SpectatorTier::watcherCount)
+				.add("SpectatorChunks", Long.class, "観戦者へ配ったかたまりの数", SpectatorTier.chunks::sum)
+				.add("SpectatorBytes", Long.class, "観戦者へ配ったバイト数 (観戦者ごと)", SpectatorTier.bytes::sum)
+				.add("SpectatorDropped", Long.class, "配信が追いつかず捨てたかたまりの数", SpectatorTier.dropped::sum)
+				.add("SpectatorSkipped", Long.class, "送信キューが溜まっていて観戦者へ送らなかった回数", SpectatorTier.skipped::sum)
+				.add("SessionsSuspended", Integer.class, "切断して再接続を待っている人数", Session.suspendedCount::get)
+				.add("SessionsResumed", Long.class, "再接続して対戦を続けた数", Session.resumed::sum)
+				.add("SessionsExpired", Long.class, "再接続を待ちきれず退出扱いにした数", Session.expired::sum)
+				.add("MatchWaiting", Integer.class, "マッチングを待っている人数", () -> Matchmaker.waiting)
+				.add("Matches", Long.class, "マッチングで組にした数", Matchmaker.matches::sum)
+				.add("MatchWaitP50Millis", Long.class, "マッチングの待ち時間の中央値 (ms)", () -> Matchmaker.waitTimes.percentile(0.5) / 1_000_000)
+				.add("MatchWaitP99Millis", Long.class, "マッチングの待ち時間の99パーセンタイル (ms)", () -> Matchmaker.waitTimes.percentile(0.99) / 1_000_000)
+				.add("ClusterNodes", Integer.class, "新しいルームを割り当てられる中継ノードの数 (クラスタのロビーのみ)", ClusterRouter::availableNodes)
+				.add("ClusterRedirects", Long.class, "中継ノードへつなぎ直させた数", ClusterRouter.redirects::sum)
+				.add("ClusterFull", Long.class, "割り当てられるノードがなく断った数", ClusterRouter.rejected::sum)
+				.add("RateLimited", Long.class, "流量制限の上限を超えて捨てた受信件数", RateLimit.dropped::sum)
+				.add("FloodDisconnects", Long.class, "捨てた件数が多すぎて切断した数", RateLimit.disconnects::sum)
+				.add("AoiFiltered", Long.class, "関心領域の外なので送らなかった件数", InterestGrid.filtered::sum)
+				.add("LogWritten", Long.class, "書き出したログの件数", () -> ServerLog.written)
+				.add("LogDropped", Long.class, "ログのバッファが満杯で捨てた件数", ServerLog.dropped::sum)
+				.add("LogQueueDepth", Integer.class, "書き出し待ちのログの件数", ServerLog::depth)
+				.add("MaxQueueDepth", Integer.class, "最も長い送信キューの件数", MyServer2::maxQueueDepth)
+				.add("TotalQueueDepth", Integer.class, "全送信キューの件数の合計", MyServer2::totalQueueDepth)
+				.add("BytesWritten", Long.class, "ソケットへ書き込んだバイト数", bytesWritten::sum)
+				.add("RelayLatencyCount", Long.class, "配信遅延の記録数", relayLatency::count)
+				.add("RelayLatencyMeanMicros", Double.class, "配信遅延の平均 (µs)", () -> {
+					long n = relayLatency.count();
+					return n == 0 ? 0.0 : relayLatency.sumNanos() / 1000.0 / n;
+				})
+				.add("RelayLatencyP50Micros", Long.class, "配信遅延の中央値 (µs)", () -> relayLatency.percentile(0.5) / 1000)
+				.add("RelayLatencyP99Micros", Long.class, "配信遅延の99パーセンタイル (µs)", () -> relayLatency.percentile(0.99) / 1000)
+				.add("RelayLatencyP999Micros", Long.class, "配信遅延の99.9パーセンタイル (µs)", () -> relayLatency.percentile(0.999) / 1000)
+				.add("RelayLatencyMaxMicros", Long.class, "配信遅延の最大 (µs)", () -> relayLatency.maxNanos() / 1000)
+				.register("MyServer2:type=Server");
+		for (CommandCounters c : ALL) {
+			new ReadOnlyMBean("Per-command traffic")
+					.add("InMessages", Long.class, "受信件数", c.inMessages::sum)
+					.add("InBytes", Long.class, "受信バイト数", c.inBytes::sum)
+					.add("OutMessages", Long.class, "送信件数 (受信者ごと)", c.outMessages::sum)
+					.add("OutBytes", Long.class, "送信バイト数 (圧縮前)", c.outBytes::sum)
+					.add("RateLimited", Long.class, "流量制限で捨てた受信件数", c.rateLimited::sum)
+					.add("InMessagesPerSec", Long.class, "直近1秒の受信件数", () -> c.inMessagesPerSec)
+					.add("InBytesPerSec", Long.class, "直近1秒の受信バイト数", () -> c.inBytesPerSec)
+					.add("OutMessagesPerSec", Long.class, "直近1秒の送信件数", () -> c.outMessagesPerSec)
+					.add("OutBytesPerSec", Long.class, "直近1秒の送信バイト数", () -> c.outBytesPerSec)
+					.register("MyServer2:type=Command,name=" + c.name);
+		}
+		for (RoomShard shard : RoomShard.all()) {
+			new ReadOnlyMBean("Room shard")
+					.add("Rooms", Integer.class, "受け持つルーム数", () -> shard.roomCount)
+					.add("RoomMembers", Integer.class, "受け持つルームの参加人数", () -> shard.memberCount)
+					.add("MailboxDepth", Integer.class, "受け箱に溜まっている件数", shard::depth)
+					.add("Processed", Long.class, "受け箱から処理した件数", () -> shard.processed)
+					.add("FullStalls", Long.class, "受け箱が満杯で送り手を待たせた回数", shard.fullStalls::sum)
+					.add("SkippedTicks", Long.class, "処理が遅れて飛ばしたティック数", () -> shard.skippedTicks)
+					.add("BusyPercent", Double.class, "直近1秒の稼働率 (%)", () -> shard.busyRatio * 100)
+					.register("MyServer2:type=Shard,index=" + shard.index);
+		}
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-sampler");
+			t.setDaemon(true);
+			return t;
+		});
+		sampler.scheduleAtFixedRate(() -> {
+			for (CommandCounters c : ALL) c.sample();
+			for (RoomShard shard : RoomShard.all()) shard.sample();
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * ループバックアドレスの port で /metrics を公開します。
+	 */
+	static void startHttp(int port) throws IOException {
+		HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", exchange -> {
+			byte[] body = render().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		http.start();
+	}
+
+	/** 遅延の分布を出力する区切り (秒) */
+	private static final double[] LATENCY_BOUNDS = {
+			0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1 };
+
+	/**
+	 * 全計測値を "名前{ラベル} 値" の行にします (Prometheus のテキスト形式と互換)。
+	 */
+	static String render() {
+		StringBuilder sb = new StringBuilder();
+		line(sb, "connections", "", MyServer2.liveCount());
+		line(sb, "connections_accepted_total", "", accepted.sum());
+		line(sb, "rooms", "", MyServer2.roomCount());
+		line(sb, "room_members", "", MyServer2.roomMemberCount());
+		line(sb, "spectators", "", SpectatorTier.watcherCount());
+		line(sb, "spectator_chunks_total", "", SpectatorTier.chunks.sum());
+		line(sb, "spectator_bytes_total", "", SpectatorTier.bytes.sum());
+		line(sb, "spectator_dropped_total", "", SpectatorTier.dropped.sum());
+		line(sb, "spectator_skipped_total", "", SpectatorTier.skipped.sum());
+		line(sb, "sessions_suspended", "", Session.suspendedCount.get());
+		line(sb, "sessions_resumed_total", "", Session.resumed.sum());
+		line(sb, "sessions_expired_total", "", Session.expired.sum());
+		line(sb, "match_waiting", "", Matchmaker.waiting);
+		line(sb, "matches_total", "", Matchmaker.matches.sum());
+		line(sb, "match_wait_p50_millis", "", Matchmaker.waitTimes.percentile(0.5) / 1_000_000);
+		line(sb, "match_wait_p99_millis", "", Matchmaker.waitTimes.percentile(0.99) / 1_000_000);
+		line(sb, "cluster_nodes_available", "", ClusterRouter.availableNodes());
+		line(sb, "cluster_redirects_total", "", ClusterRouter.redirects.sum());
+		line(sb, "cluster_full_total", "", ClusterRouter.rejected.sum());
+		for (ClusterRouter.Node n : ClusterRouter.nodes()) {
+			String label = "node=\"" + n.address() + "\"";
+			line(sb, "cluster_node_rooms", label, n.rooms);
+			line(sb, "cluster_node_connections", label, n.connections);
+			line(sb, "cluster_node_capacity", label, n.capacity);
+			line(sb, "cluster_node_cpu_permille", label, n.cpuPermille);
+		}
+		line(sb, "rate_limited_total", "", RateLimit.dropped.sum());
+		line(sb, "flood_disconnects_total", "", RateLimit.disconnects.sum());
+		line(sb, "aoi_filtered_total", "", InterestGrid.filtered.sum());
+		line(sb, "log_written_total", "", ServerLog.written);
+		line(sb, "log_dropped_total", "", ServerLog.dropped.sum());
+		line(sb, "log_queue_depth", "", ServerLog.depth());
+		line(sb, "log_bytes_total", "", ServerLog.bytesWritten);
+		line(sb, "log_rotations_total", "", ServerLog.rotations);
+		line(sb, "log_write_errors_total", "", ServerLog.writeErrors);
+		line(sb, "queue_depth_max", "", MyServer2.maxQueueDepth());
+		line(sb, "queue_depth_total", "", MyServer2.totalQueueDepth());
+		for (ClientConnection c : MyServer2.liveConnections()) {
+			line(sb, "client_queue_depth", "client=\"" + c.number + "\"", c.outbound.depth());
+			line(sb, "client_rtt_millis", "client=\"" + c.number + "\"", c.rttMillis);
+		}
+		line(sb, "bytes_written_total", "", bytesWritten.sum());
+		for (RoomShard shard : RoomShard.all()) {
+			String label = "shard=\"" + shard.index + "\"";
+			line(sb, "shard_rooms", label, shard.roomCount);
+			line(sb, "shard_room_members", label, shard.memberCount);
+			line(sb, "shard_mailbox_depth", label, shard.depth());
+			line(sb, "shard_processed_total", label, shard.processed);
+			line(sb, "shard_full_stalls_total", label, shard.fullStalls.sum());
+			line(sb, "shard_skipped_ticks_total", label, shard.skippedTicks);
+			line(sb, "shard_busy_permille", label, Math.round(shard.busyRatio * 1000));
+		}
+		for (CommandCounters c : ALL) {
+			String label = "command=\"" + c.name + "\"";
+			line(sb, "command_in_messages_total", label, c.inMessages.sum());
+			line(sb, "command_in_bytes_total", label, c.inBytes.sum());
+			line(sb, "command_out_messages_total", label, c.outMessages.sum());
+			line(sb, "command_out_bytes_total", label, c.outBytes.sum());
+			line(sb, "command_rate_limited_total", label, c.rateLimited.sum());
+			line(sb, "command_in_messages_per_sec", label, c.inMessagesPerSec);
+			line(sb, "command_in_bytes_per_sec", label, c.inBytesPerSec);
+			line(sb, "command_out_messages_per_sec", label, c.outMessagesPerSec);
+			line(sb, "command_out_bytes_per_sec", label, c.outBytesPerSec);
+		}
+		sb.append("# TYPE relay_latency_seconds histogram\n");
+		for (double bound : LATENCY_BOUNDS) {
+			line(sb, "relay_latency_seconds_bucket", "le=\"" + bound + "\"", relayLatency.countAtOrBelow((long) (bound * 1e9)));
+		}
+		long count = relayLatency.count();
+		line(sb, "relay_latency_seconds_bucket", "le=\"+Inf\"", count);
+		sb.append("relay_latency_seconds_sum ").append(relayLatency.sumNanos() / 1e9).append('\n');
+		line(sb, "relay_latency_seconds_count", "", count);
+		line(sb, "relay_latency_p50_micros", "", relayLatency.percentile(0.5) / 1000);
+		line(sb, "relay_latency_p99_micros", "", relayLatency.percentile(0.99) / 1000);
+		line(sb, "relay_latency_p999_micros", "", relayLatency.percentile(0.999) / 1000);
+		line(sb, "relay_latency_max_micros", "", relayLatency.maxNanos() / 1000);
+		return sb.toString();
+	}
+
+	private static void line(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name);
+		if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+		sb.append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,55 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * サーバー起動オプションを保持するクラス。
+ * コマンドライン引数の "--key=value" / "--flag" 形式を解析します。
+ */
+class ServerOptions {
+	private final Map<String, String> values = new HashMap<>();
+
+	/**
+	 * 起動引数を解析します。
+	 * @param args main の引数 (例: --engine=nio --loops=4)
+	 */
+	static ServerOptions parse(String[] args) {
+		ServerOptions o = new ServerOptions();
+		for (String a : args) {
+			if (!a.startsWith("--")) continue;
+			int eq = a.indexOf('=');
+			if (eq < 0) o.values.put(a.substring(2), "true");
+			else o.values.put(a.substring(2, eq), a.substring(eq + 1));
+		}
+		return o;
+	}
+
+	boolean has(String key) {
+		return values.containsKey(key);
+	}
+
+	String get(String key, String def) {
+		String v = values.get(key);
+		return (v == null) ? def : v;
+	}
+
+	int getInt(String key, int def) {
+		String v = values.get(key);
+		if (v == null) return def;
+		try {
+			return Integer.parseInt(v);
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid value for --" + key + ": " + v);
+			return def;
+		}
+	}
+
+	/**
+	 * 下限のある整数のオプションを返します。下限未満の値は不正な値と同じく拒否し、既定値を使います。
+	 */
+	int getInt(String key, int def, int min) {
+		int v = getInt(key, def);
+		if (v >= min) return v;
+		System.err.println("Invalid value for --" + key + ": " + v + " (must be at least " + min + ")");
+		return def;
+	}
+}
@@ -0,0 +1,116 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * サーバーの簡易統計。
+ * --stats=秒 を指定すると、一定間隔でヒープ使用量・スレッド数・配信時間・書き込みのまとまり具合を標準出力へ表示します。
+ * writes/s はソケットへの write (システムコール) の毎秒回数です。
+ * HELLO deflate の接続があれば、圧縮率 (圧縮後 / 圧縮前) と1行あたりの圧縮時間も表示します。
+ */
+class ServerStats {
+	private static final LongAdder broadcasts = new LongAdder();
+	private static final LongAdder broadcastNanos = new LongAdder();
+	private static final AtomicLong maxBroadcastNanos = new AtomicLong();
+	private static final LongAdder writes = new LongAdder();
+	private static final LongAdder bytesWritten = new LongAdder();
+	private static final LongAdder messagesWritten = new LongAdder();
+	private static final LongAdder coalesced = new LongAdder();
+	private static final LongAdder compressedIn = new LongAdder();
+	private static final LongAdder compressedOut = new LongAdder();
+	private static final LongAdder compressNanos = new LongAdder();
+	private static final LongAdder compressedMessages = new LongAdder();
+
+	/**
+	 * SendAll 1回分の所要時間を記録します。
+	 */
+	static void recordBroadcast(long nanos) {
+		broadcasts.increment();
+		broadcastNanos.add(nanos);
+		long max;
+		while (nanos > (max = maxBroadcastNanos.get())) {
+			if (maxBroadcastNanos.compareAndSet(max, nanos)) break;
+		}
+	}
+
+	/**
+	 * ソケットへの write 1回分を記録します。
+	 * @param bytes    書き込んだバイト数
+	 * @param messages その write で書き終えた行数
+	 */
+	static void recordWrite(long bytes, int messages) {
+		writes.increment();
+		bytesWritten.add(bytes);
+		messagesWritten.add(messages);
+		ServerMetrics.recordWrite(bytes);
+	}
+
+	/**
+	 * 未送信の状態 (MOVE / STATUS) を新しいもので置き換えたことを記録します。
+	 */
+	static void recordCoalesced() {
+		coalesced.increment();
+	}
+
+	/**
+	 * 送信1回分の圧縮を記録します。
+	 * @param in       圧縮前のバイト数
+	 * @param out      圧縮後のバイト数
+	 * @param nanos    圧縮にかかった時間
+	 * @param messages 圧縮した行数
+	 */
+	static void recordCompression(long in, long out, long nanos, int messages) {
+		compressedIn.add(in);
+		compressedOut.add(out);
+		compressNanos.add(nanos);
+		compressedMessages.add(messages);
+	}
+
+	/**
+	 * 統計表示スレッドを開始します。
+	 * @param intervalSec 表示間隔 (秒、1 以上。毎秒の値をこの秒数で割って求めます)
+	 */
+	static void startReporter(int intervalSec) {
+		if (intervalSec < 1) throw new IllegalArgumentException("stats interval must be at least 1 second: " + intervalSec);
+		Thread t = new Thread(() -> {
+			MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			while (true) {
+				try {
+					Thread.sleep(intervalSec * 1000L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				long count = broadcasts.sumThenReset();
+				long nanos = broadcastNanos.sumThenReset();
+				long max = maxBroadcastNanos.getAndSet(0);
+				long w = writes.sumThenReset();
+				long wb = bytesWritten.sumThenReset();
+				long wm = messagesWritten.sumThenReset();
+				long zin = compressedIn.sumThenReset();
+				long zout = compressedOut.sumThenReset();
+				long znanos = compressNanos.sumThenReset();
+				long zm = compressedMessages.sumThenReset();
+				long heapMb = mem.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+				System.out.println("[stats] conns=" + MyServer2.liveCount()
+						+ " threads=" + threads.getThreadCount()
+						+ " heap=" + heapMb + "MB"
+						+ " broadcasts=" + count
+						+ " avg=" + (count == 0 ? 0 : nanos / count / 1000) + "us"
+						+ " max=" + max / 1000 + "us"
+						+ " writes=" + w
+						+ " writes/s=" + w / intervalSec
+						+ " bytes/write=" + (w == 0 ? 0 : wb / w)
+						+ " msgs/write=" + (w == 0 ? 0 : String.format("%.1f", (double) wm / w))
+						+ " maxQueue=" + MyServer2.maxQueueDepth()
+						+ " coalesced=" + coalesced.sumThenReset()
+						+ (zin == 0 ? "" : " deflate=" + String.format("%.2f", (double) zout / zin)
+								+ " deflate/msg=" + (zm == 0 ? 0 : znanos / zm) + "ns"));
+			}
+		}, "stats-reporter");
+		t.setDaemon(true);
+		t.start();
+	}
+}
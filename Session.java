@@ -0,0 +1,105 @@
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 再接続して対戦を続けるためのセッション。
+ * "HELLO resume" を送ったクライアントには WELCOME の直後に "SESSION トークン" で接続ごとのトークンを渡しておき、対戦中に切断したプレイヤーは
+ * 猶予時間 (--resume-grace) の間だけ番号とルームの席を残して待ちます。その間に新しい接続から
+ * "RESUME トークン" が届けば、新しい接続が元の番号と席を引き継ぎます (処理は {@link MyServer2#resume})。
+ * <p>
+ * 状態の移り変わりは LIVE → SUSPENDED → CLOSED (または LIVE → CLOSED) の一方向で、
+ * 遷移はセッションのロックの中で行うので、切断・再開・期限切れが重なってもどれか1つだけが成功します。
+ */
+class Session {
+	enum State { LIVE, SUSPENDED, CLOSED }
+
+	/** 切断から再接続を待つ時間 (ms, 0 ならセッションを発行しない) */
+	static volatile long graceMillis = 10_000;
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final ConcurrentHashMap<String, Session> byToken = new ConcurrentHashMap<>();
+	private static final TimingWheel timers = new TimingWheel(100, 512);
+	private static boolean started = false;
+
+	/** 再接続を待っている数 */
+	static final AtomicInteger suspendedCount = new AtomicInteger();
+	/** 再開できた数 */
+	static final LongAdder resumed = new LongAdder();
+	/** 猶予時間を過ぎて退出扱いにした数 */
+	static final LongAdder expired = new LongAdder();
+
+	final String token;
+	/** セッションの持ち主 (再開後も元の接続のまま。引き継いだ接続は自分のセッションを持つ) */
+	final ClientConnection conn;
+	// セッションのロックの中で読み書きする
+	State state = State.LIVE;
+
+	private Session(String token, ClientConnection conn) {
+		this.token = token;
+		this.conn = conn;
+	}
+
+	/**
+	 * 猶予時間を秒で設定します (0 でセッションを発行しない)。
+	 */
+	static synchronized void configure(int graceSec) {
+		graceMillis = Math.max(0, graceSec) * 1000L;
+		if (graceMillis > 0 && !started) {
+			timers.start("session-expiry");
+			started = true;
+		}
+	}
+
+	static boolean enabled() {
+		return graceMillis > 0;
+	}
+
+	/**
+	 * 接続にセッションを発行し、トークンを返します。
+	 */
+	static String issue(ClientConnection c) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder sb = new StringBuilder(32);
+		for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		Session s = new Session(sb.toString(), c);
+		byToken.put(s.token, s);
+		c.session = s;
+		return s.token;
+	}
+
+	/**
+	 * トークンからセッションを探します。
+	 * @return なければ null
+	 */
+	static Session find(String token) {
+		return byToken.get(token);
+	}
+
+	/**
+	 * 使い終わったセッションを外します。
+	 */
+	void discard() {
+		byToken.remove(token, this);
+	}
+
+	/**
+	 * 猶予時間が過ぎたら onExpire を実行するよう登録します (SUSPENDED にした直後に呼びます)。
+	 * 実行されるのは、それまでに再開されず SUSPENDED のままだった場合だけです。
+	 */
+	void scheduleExpiry(Runnable onExpire) {
+		suspendedCount.incrementAndGet();
+		timers.schedule(graceMillis, () -> {
+			synchronized (this) {
+				if (state != State.SUSPENDED) return;
+				state = State.CLOSED;
+			}
+			suspendedCount.decrementAndGet();
+			expired.increment();
+			discard();
+			onExpire.run();
+		});
+	}
+}
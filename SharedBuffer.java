@@ -0,0 +1,99 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 複数の接続で共有する送信データ (参照カウント付き)。
+ * 1回だけ書き込み、各接続の書き込み担当には読み取り専用の複製 ({@link #view()}) を渡します。
+ * 送信キューに積むごとに {@link #retain()}、書き終えたり捨てたりしたら {@link #release()} し、
+ * 最後の1つが解放されたところで中身のバッファをプールへ返します。
+ * <p>
+ * 解放し忘れてもプールへ戻らないだけで、ガベージコレクションで回収されます。
+ */
+class SharedBuffer {
+	/** プールで使い回すバッファの大きさ (たいていの行はこれに収まる) */
+	static final int POOLED_SIZE = 256;
+	private static final BufferPool POOL = new BufferPool(POOLED_SIZE);
+
+	private final ByteBuffer data;
+	private final boolean pooled;
+	private final AtomicInteger refs = new AtomicInteger(1);
+	/** 元の行が配信用に作られた時刻 (System.nanoTime、0 なら計測しない)。送信キューに積む前に設定します */
+	long stamp;
+
+	private SharedBuffer(ByteBuffer data, boolean pooled) {
+		this.data = data;
+		this.pooled = pooled;
+	}
+
+	/**
+	 * 行を UTF-8 にして末尾に改行を付けたものを作ります。参照カウントは 1 から始まります。
+	 */
+	static SharedBuffer ofLine(String line) {
+		int len = line.length();
+		boolean ascii = len < POOLED_SIZE;
+		for (int i = 0; ascii && i < len; i++) {
+			if (line.charAt(i) >= 0x80) ascii = false;
+		}
+		if (!ascii) {
+			byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+			return of(bytes);
+		}
+		// ASCII だけの行は中間の byte[] を作らずに直接詰める
+		ByteBuffer b = POOL.acquire();
+		for (int i = 0; i < len; i++) b.put((byte) line.charAt(i));
+		b.put((byte) '\n');
+		b.flip();
+		return new SharedBuffer(b, true);
+	}
+
+	/**
+	 * バイト列の写しを作ります。参照カウントは 1 から始まります。
+	 */
+	static SharedBuffer of(byte[] bytes) {
+		if (bytes.length > POOLED_SIZE) return wrap(ByteBuffer.wrap(bytes));
+		ByteBuffer b = POOL.acquire();
+		b.put(bytes);
+		b.flip();
+		return new SharedBuffer(b, true);
+	}
+
+	/**
+	 * バッファの残りの写しを作ります (src の位置は変えません)。参照カウントは 1 から始まります。
+	 */
+	static SharedBuffer of(ByteBuffer src) {
+		boolean pooled = src.remaining() <= POOLED_SIZE;
+		ByteBuffer b = pooled ? POOL.acquire() : ByteBuffer.allocate(src.remaining());
+		b.put(src.duplicate());
+		b.flip();
+		return new SharedBuffer(b, pooled);
+	}
+
+	/**
+	 * プールを使わないバッファをそのまま包みます (解放しても何もしません)。
+	 */
+	static SharedBuffer wrap(ByteBuffer b) {
+		return new SharedBuffer(b, false);
+	}
+
+	SharedBuffer retain() {
+		refs.incrementAndGet();
+		return this;
+	}
+
+	void release() {
+		int left = refs.decrementAndGet();
+		if (left == 0 && pooled) POOL.release(data);
+	}
+
+	/**
+	 * 読み取り専用の複製を返します。位置は受け取った側で自由に進めてかまいません。
+	 */
+	ByteBuffer view() {
+		return data.asReadOnlyBuffer();
+	}
+
+	int length() {
+		return data.limit();
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * クライアント番号 (スロット) の割り当て表。
+ * 退出した番号はフリーリストに戻して再利用し、接続中のクライアントは詰めた配列で保持します。
+ * 配信時の走査は接続中の数だけで済み、過去の接続数には依存しません。
+ */
+class SlotTable {
+	private final int capacity;
+	private final ClientConnection[] byNumber;
+	private final int[] freeNumbers;
+	private int freeTop = 0;
+
+	// 接続中クライアントの詰めた配列と、各クライアントの配列内位置
+	private final ClientConnection[] live;
+	private final int[] liveIndex;
+	private int liveCount = 0;
+	// 配信スレッドがロックなしで走査するための読み取り専用コピー
+	private volatile ClientConnection[] snapshot = new ClientConnection[0];
+
+	/**
+	 * @param capacity 同時接続数の上限 (番号は 1〜capacity)
+	 */
+	SlotTable(int capacity) {
+		this.capacity = capacity;
+		this.byNumber = new ClientConnection[capacity + 1];
+		this.live = new ClientConnection[capacity];
+		this.liveIndex = new int[capacity + 1];
+		this.freeNumbers = new int[capacity];
+		// 小さい番号から払い出されるように積む
+		for (int n = capacity; n >= 1; n--) freeNumbers[freeTop++] = n;
+	}
+
+	/**
+	 * 空いている番号を1つ確保します。
+	 * @return 番号。満員なら 0
+	 */
+	synchronized int allocate() {
+		if (freeTop == 0) return 0;
+		return freeNumbers[--freeTop];
+	}
+
+	/**
+	 * 確保済みの番号へ接続を登録します。
+	 */
+	synchronized void register(ClientConnection c) {
+		byNumber[c.number] = c;
+		liveIndex[c.number] = liveCount;
+		live[liveCount++] = c;
+		snapshot = Arrays.copyOf(live, liveCount);
+	}
+
+	/**
+	 * 接続を外しますが、番号は確保したまま残します。既に外れていれば何もしません。
+	 * 番号は後で同じ番号の接続を {@link #register} するか、{@link #free} で戻します。
+	 * @return 外した場合は true
+	 */
+	synchronized boolean detach(ClientConnection c) {
+		if (byNumber[c.number] != c) return false;
+		byNumber[c.number] = null;
+
+		// 末尾の要素を空いた位置へ移して詰める
+		int idx = liveIndex[c.number];
+		ClientConnection last = live[--liveCount];
+		live[idx] = last;
+		liveIndex[last.number] = idx;
+		live[liveCount] = null;
+		snapshot = Arrays.copyOf(live, liveCount);
+		return true;
+	}
+
+	/**
+	 * 確保したが登録しなかった番号 (または detach したまま使わなくなった番号) を戻します。
+	 */
+	synchronized void free(int number) {
+		freeNumbers[freeTop++] = number;
+	}
+
+	/**
+	 * 接続中クライアントの配列 (読み取り専用として扱うこと)。
+	 */
+	ClientConnection[] live() {
+		return snapshot;
+	}
+
+	int size() {
+		return snapshot.length;
+	}
+
+	int capacity() {
+		return capacity;
+	}
+}
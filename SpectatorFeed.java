@@ -0,0 +1,181 @@
+import game.MatchClock;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * 1ルーム分の観戦用の配信。ルームの担当シャードのスレッドだけが操作します。
+ * <p>
+ * ルームへ配信された行を記録し、イベント (SHOT / DEAD など) は全件、状態 (MOVE / STATUS) は送信者ごとの最新を
+ * 一定間隔 (既定 20Hz) で間引いて遅延バッファへ入れます。遅延 (既定 2秒) を過ぎた分は間隔ごとに
+ * 1つのテキストのかたまりにまとめ、{@link SpectatorTier} が全観戦者へ同じバッファを配ります。
+ * 観戦者が何人いても、シャードの仕事は変換1回分だけです。
+ */
+class SpectatorFeed {
+	/** 遅延 (ms) */
+	static volatile int delayMillis = 2000;
+	/** 状態を送る頻度 (Hz) */
+	static volatile int rateHz = 20;
+
+	/** 遅延バッファの1行 */
+	private static final class Entry {
+		final long time;
+		final String line;
+
+		Entry(long time, String line) {
+			this.time = time;
+			this.line = line;
+		}
+	}
+
+	private final Room room;
+	private final long delayMicros = delayMillis * 1000L;
+	private final int hz = Math.max(1, rateHz);
+	private final long intervalMicros = 1_000_000L / hz;
+	private long nextSample = 0;
+	private final ArrayDeque<Entry> delayed = new ArrayDeque<>();
+	// 間引き待ちの状態 (送信者番号 → 最新の行、未送出のもののみ)
+	private final LinkedHashMap<Integer, String> pendingMove = new LinkedHashMap<>();
+	private final LinkedHashMap<Integer, String> pendingStatus = new LinkedHashMap<>();
+	/** 観戦者 (変更のたびに配列ごと差し替え、かたまりには作った時点の配列を渡す) */
+	private ClientConnection[] watchers = new ClientConnection[0];
+
+	// 遅延後の時点で観戦者に見えている状態 (途中から観戦を始めた人へ最初に送る)
+	private String mapData;
+	private final LinkedHashMap<Integer, String> joins = new LinkedHashMap<>();
+	private final HashMap<Integer, String> moves = new HashMap<>();
+	private final HashMap<Integer, String> statuses = new HashMap<>();
+	private final ArrayList<String> abilities = new ArrayList<>();
+
+	/**
+	 * 観戦用の配信を作ります。対戦の途中から作った場合に備えて、ルームの今の状態から始めます。
+	 */
+	SpectatorFeed(Room room) {
+		this.room = room;
+		mapData = room.mapData;
+		for (ClientConnection m : room.members) joins.put(m.number, "JOIN " + room.id + " " + m.number);
+		statuses.putAll(room.statuses);
+	}
+
+	/**
+	 * 退室したプレイヤーを、これから観戦を始める人へ送る状態から外します。
+	 */
+	void memberLeft(int number) {
+		joins.remove(number);
+		moves.remove(number);
+		statuses.remove(number);
+	}
+
+	/**
+	 * ルームへ配信された1行を記録します。
+	 * @param senderId 状態をまとめる単位となるプレイヤー番号
+	 * @param kind     OutboundQueue.KIND_*
+	 */
+	void record(String line, int senderId, int kind) {
+		if (kind == OutboundQueue.KIND_MOVE) pendingMove.put(senderId, line);
+		else if (kind == OutboundQueue.KIND_STATUS) pendingStatus.put(senderId, line);
+		else delayed.add(new Entry(MatchClock.nowMicros(), line));
+	}
+
+	/**
+	 * 間隔ごとに状態を遅延バッファへ移し、遅延を過ぎた分をまとめて観戦者へ渡します (シャードのティックごとに呼ばれます)。
+	 */
+	void tick(long now) {
+		if (now < nextSample) return;
+		// ティックの境目に合わせて等間隔に (大きく遅れたときは今から数え直す)
+		nextSample += intervalMicros;
+		if (nextSample <= now) nextSample = now + intervalMicros;
+		for (String line : pendingStatus.values()) delayed.add(new Entry(now, line));
+		for (String line : pendingMove.values()) delayed.add(new Entry(now, line));
+		pendingStatus.clear();
+		pendingMove.clear();
+
+		StringBuilder chunk = null;
+		Entry e;
+		while ((e = delayed.peek()) != null && e.time <= now - delayMicros) {
+			delayed.poll();
+			remember(e.line);
+			if (chunk == null) chunk = new StringBuilder();
+			chunk.append(e.line).append('\n');
+		}
+		if (chunk != null && watchers.length > 0) {
+			byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+			SpectatorTier.publish(SharedBuffer.wrap(ByteBuffer.wrap(bytes)), watchers);
+		}
+	}
+
+	// 観戦を途中から始めた人のために、遅延後の時点の状態を覚えておく
+	private void remember(String line) {
+		int space = line.indexOf(' ');
+		String command = (space < 0) ? line : line.substring(0, space);
+		int sender = senderOf(line);
+		switch (command) {
+			case "MAP_DATA":
+				mapData = line;
+				// 新しい対戦なので能力の取得履歴も数え直す
+				abilities.clear();
+				break;
+			case "JOIN":
+				joins.put(sender, line);
+				break;
+			case "MOVE":
+				moves.put(sender, line);
+				break;
+			case "STATUS":
+				statuses.put(sender, line);
+				break;
+			case "ABILITY":
+				abilities.add(line);
+				break;
+			default:
+				break;
+		}
+	}
+
+	// 行末のプレイヤー番号 (中継時に付けたもの)
+	private static int senderOf(String line) {
+		int space = line.lastIndexOf(' ');
+		try {
+			return Integer.parseInt(line.substring(space + 1));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * 観戦者を加え、遅延後の時点の状態を送ります。
+	 * 状態を送り終えてから配信先に加えるので、それより古いかたまりが後から届くことはありません。
+	 */
+	void addWatcher(ClientConnection c) {
+		c.send("WATCHING " + room.id + " " + delayMicros / 1000 + " " + hz);
+		if (mapData != null) c.send(mapData);
+		for (String line : joins.values()) c.send(line);
+		for (String line : statuses.values()) c.send(line);
+		for (String line : moves.values()) c.send(line);
+		for (String line : abilities) c.send(line);
+		watchers = Arrays.copyOf(watchers, watchers.length + 1);
+		watchers[watchers.length - 1] = c;
+		SpectatorTier.watcherAdded();
+	}
+
+	void removeWatcher(ClientConnection c) {
+		for (int i = 0; i < watchers.length; i++) {
+			if (watchers[i] != c) continue;
+			ClientConnection[] next = new ClientConnection[watchers.length - 1];
+			System.arraycopy(watchers, 0, next, 0, i);
+			System.arraycopy(watchers, i + 1, next, i, next.length - i);
+			watchers = next;
+			SpectatorTier.watcherRemoved();
+			return;
+		}
+	}
+
+	boolean hasWatchers() {
+		return watchers.length > 0;
+	}
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 観戦の配信を受け持つスレッド。
+ * シャードが作ったかたまり ({@link SpectatorFeed}) を受け取り、同じバッファを観戦者全員の送信キューへ積みます。
+ * 観戦者の数に比例する仕事をシャードから切り離しておくので、観戦者が増えてもプレイヤーへの中継は遅れません。
+ */
+class SpectatorTier {
+	/** 受け取ったまま配れていないかたまりの上限 (超えたら古い観戦データより中継を優先して捨てる) */
+	private static final int QUEUE_LIMIT = 1024;
+	/** 観戦者の送信キューがこれより溜まっていたら、そのかたまりは送らずに飛ばす (回線の遅い観戦者で溜め込まない) */
+	private static final int WATCHER_BACKLOG = 64;
+
+	/** 1回分の配信 (かたまりと、作った時点の観戦者) */
+	private static final class Chunk {
+		final SharedBuffer data;
+		final ClientConnection[] watchers;
+
+		Chunk(SharedBuffer data, ClientConnection[] watchers) {
+			this.data = data;
+			this.watchers = watchers;
+		}
+	}
+
+	private static final ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_LIMIT);
+	private static final AtomicInteger watchers = new AtomicInteger();
+	static final LongAdder chunks = new LongAdder();
+	static final LongAdder bytes = new LongAdder();
+	static final LongAdder dropped = new LongAdder();
+	/** 送信キューが溜まっていた観戦者へ送らなかった回数 */
+	static final LongAdder skipped = new LongAdder();
+
+	static {
+		Thread t = new Thread(SpectatorTier::run, "spectator-fanout");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * かたまりを観戦者へ配るよう依頼します (シャードから呼びます)。
+	 * 参照はこちらが預かり、配り終えたら解放します。
+	 */
+	static void publish(SharedBuffer data, ClientConnection[] to) {
+		if (!queue.offer(new Chunk(data, to))) {
+			dropped.increment();
+			data.release();
+		}
+	}
+
+	private static void run() {
+		while (true) {
+			Chunk c;
+			try {
+				c = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			int sent = 0;
+			for (ClientConnection w : c.watchers) {
+				if (w.outbound.depth() > WATCHER_BACKLOG) {
+					skipped.increment();
+					continue;
+				}
+				w.sendShared(c.data);
+				sent++;
+			}
+			chunks.increment();
+			bytes.add((long) c.data.length() * sent);
+			c.data.release();
+		}
+	}
+
+	static void watcherAdded() {
+		watchers.incrementAndGet();
+	}
+
+	static void watcherRemoved() {
+		watchers.decrementAndGet();
+	}
+
+	/**
+	 * 観戦中の人数を返します。
+	 */
+	static int watcherCount() {
+		return watchers.get();
+	}
+}
@@ -0,0 +1,57 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 送信のティック単位まとめ (--batch-ms)。
+ * 有効な間は行を送信キューへ積んでもすぐには書き込み担当を起こさず、
+ * ティックごとに溜まった接続の書き込み担当をまとめて起こします。
+ * 1ティック分の MOVE / SHOT / BULLET_HIT などが1回の write (1つの BATCH) になります。
+ */
+class TickFlusher {
+	private static final ConcurrentLinkedQueue<ClientConnection> dirty = new ConcurrentLinkedQueue<>();
+	private static volatile boolean enabled = false;
+
+	static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * まとめ送信を開始します。
+	 * @param tickMillis ティックの長さ (ms)
+	 */
+	static void start(int tickMillis) {
+		enabled = true;
+		Thread t = new Thread(() -> {
+			long next = System.nanoTime();
+			while (true) {
+				next += tickMillis * 1_000_000L;
+				long sleep = next - System.nanoTime();
+				if (sleep > 0) {
+					try {
+						Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				flush();
+			}
+		}, "tick-flusher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * 次のティックで書き込み担当を起こすよう登録します。
+	 */
+	static void schedule(ClientConnection c) {
+		if (c.flushPending.compareAndSet(false, true)) dirty.offer(c);
+	}
+
+	private static void flush() {
+		ClientConnection c;
+		while ((c = dirty.poll()) != null) {
+			// 先に戻すことで、起こした後に積まれた分は次のティックに回る
+			c.flushPending.set(false);
+			c.signalWriter();
+		}
+	}
+}
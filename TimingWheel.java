@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ハッシュ方式のタイミングホイール。
+ * 接続数ぶんのタイマーを持っても、1ティックあたりの処理はそのスロットに入っている分だけで済みます。
+ * 登録はどのスレッドからでも行え、実行は専用のティックスレッド上で行います。
+ */
+class TimingWheel {
+	private final long tickMillis;
+	private final List<Entry>[] wheel;
+	private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<>();
+	private long tick = 0;
+
+	private static class Entry {
+		final Runnable task;
+		final long delayTicks;
+		long rounds;
+
+		Entry(Runnable task, long delayTicks) {
+			this.task = task;
+			this.delayTicks = delayTicks;
+		}
+	}
+
+	/**
+	 * @param tickMillis 1ティックの長さ (ms)
+	 * @param wheelSize  スロット数
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	TimingWheel(long tickMillis, int wheelSize) {
+		this.tickMillis = tickMillis;
+		this.wheel = new List[wheelSize];
+		for (int i = 0; i < wheelSize; i++) wheel[i] = new ArrayList<>();
+	}
+
+	/**
+	 * 指定時間後に task を実行するよう登録します。精度はティックの長さ程度です。
+	 */
+	void schedule(long delayMillis, Runnable task) {
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		incoming.offer(new Entry(task, ticks));
+	}
+
+	/**
+	 * ティックスレッドを開始します。
+	 */
+	void start(String name) {
+		Thread t = new Thread(this::run, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void run() {
+		long next = System.nanoTime();
+		while (true) {
+			next += tickMillis * 1_000_000L;
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			advance();
+		}
+	}
+
+	private void advance() {
+		Entry e;
+		while ((e = incoming.poll()) != null) {
+			long target = tick + e.delayTicks;
+			e.rounds = (e.delayTicks - 1) / wheel.length;
+			wheel[(int) (target % wheel.length)].add(e);
+		}
+		tick++;
+		List<Entry> bucket = wheel[(int) (tick % wheel.length)];
+		List<Entry> due = null;
+		for (Iterator<Entry> it = bucket.iterator(); it.hasNext();) {
+			Entry x = it.next();
+			if (x.rounds > 0) {
+				x.rounds--;
+				continue;
+			}
+			it.remove();
+			if (due == null) due = new ArrayList<>();
+			due.add(x);
+		}
+		if (due == null) return;
+		// 実行中に schedule されたものは次のティックで振り分ける
+		for (Entry x : due) {
+			try {
+				x.task.run();
+			} catch (RuntimeException ex) {
+				ServerLog.error("timer task", ex);
+			}
+		}
+	}
+}
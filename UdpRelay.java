@@ -0,0 +1,133 @@
+import game.LineTokenizer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MOVE 専用の UDP 副チャネル (--udp)。
+ * TCP では1つのセグメントが失われると後続の SHOT や BULLET_HIT まで止まってしまう (ヘッドオブラインブロッキング) ため、
+ * 取りこぼしても次の MOVE で上書きされる位置情報だけを UDP で送ります。イベントは従来どおり TCP です。
+ * <p>
+ * 手順:
+ * <ol>
+ * <li>クライアントが HELLO udp を送ると、サーバーは TCP で "UDP ポート トークン" を返す</li>
+ * <li>クライアントは "HELLO トークン" のデータグラムを送り、サーバーは "WELCOME" のデータグラムで応答する</li>
+ * <li>WELCOME を受け取れたクライアントは TCP で "UDP ON" を送り、以降 MOVE を UDP でやり取りする</li>
+ * </ol>
+ * WELCOME が届かなければクライアントは TCP だけで続けます。
+ * <p>
+ * データグラムの形式: 上り "トークン 通番 行" / 下り "通番 送信者 行"。
+ * 通番は古いものが後から届いたときに捨てるためのもので、上りは接続ごと、下りは受信者ごとに増えていきます。
+ */
+class UdpRelay {
+	private static DatagramChannel channel;
+	private static final ConcurrentHashMap<Long, ClientConnection> byToken = new ConcurrentHashMap<>();
+	private static final SecureRandom random = new SecureRandom();
+	// 受信スレッド専用
+	private static final LineTokenizer tokens = new LineTokenizer();
+
+	static boolean enabled() {
+		return channel != null;
+	}
+
+	/**
+	 * UDP の受信を開始します。
+	 */
+	static void start(int port) throws IOException {
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		Thread t = new Thread(UdpRelay::receiveLoop, "udp-relay");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	static int port() {
+		try {
+			return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * 接続にトークンを割り当て、クライアントへ知らせる "UDP ポート トークン" 行を返します。
+	 */
+	static String offer(ClientConnection c) {
+		long token;
+		do {
+			token = random.nextLong() & Long.MAX_VALUE;
+		} while (byToken.putIfAbsent(token, c) != null);
+		c.udpToken = token;
+		return "UDP " + port() + " " + token;
+	}
+
+	/**
+	 * 切断時にトークンを無効にします。
+	 */
+	static void forget(ClientConnection c) {
+		if (c.udpToken != 0) byToken.remove(c.udpToken, c);
+		c.udpActive = false;
+	}
+
+	/**
+	 * 受信者へ1行をデータグラムで送ります。
+	 */
+	static void send(ClientConnection to, String line, int sender) {
+		SocketAddress addr = to.udpAddress;
+		if (addr == null) return;
+		long seq = to.udpSendSeq.incrementAndGet();
+		byte[] data = (seq + " " + sender + " " + line).getBytes(StandardCharsets.UTF_8);
+		try {
+			channel.send(ByteBuffer.wrap(data), addr);
+			ServerStats.recordWrite(data.length, 1);
+		} catch (IOException e) {
+			// 届かなくても次の MOVE で上書きされる
+		}
+	}
+
+	private static void receiveLoop() {
+		ByteBuffer buf = ByteBuffer.allocate(2048);
+		while (true) {
+			try {
+				buf.clear();
+				SocketAddress from = channel.receive(buf);
+				buf.flip();
+				String msg = StandardCharsets.UTF_8.decode(buf).toString();
+				onDatagram(from, msg);
+			} catch (IOException e) {
+				ServerLog.error("udp-relay", e);
+			} catch (RuntimeException e) {
+				// 不正なデータグラムは捨てる
+			}
+		}
+	}
+
+	private static void onDatagram(SocketAddress from, String msg) throws IOException {
+		if (msg.startsWith("HELLO ")) {
+			ClientConnection c = byToken.get(Long.parseLong(msg.substring(6).trim()));
+			if (c == null || c.closed) return;
+			c.udpAddress = from;
+			channel.send(ByteBuffer.wrap("WELCOME".getBytes(StandardCharsets.UTF_8)), from);
+			return;
+		}
+		// トークン 通番 行
+		int s1 = msg.indexOf(' ');
+		int s2 = msg.indexOf(' ', s1 + 1);
+		ClientConnection c = byToken.get(Long.parseLong(msg.substring(0, s1)));
+		if (c == null || !c.udpActive || !from.equals(c.udpAddress)) return;
+		long seq = Long.parseLong(msg.substring(s1 + 1, s2));
+		// 追い越された古い MOVE は捨てる
+		if (seq <= c.udpRecvSeq) return;
+		c.udpRecvSeq = seq;
+		String line = msg.substring(s2 + 1);
+		if (!line.startsWith("MOVE ")) return;
+		// TCP の受信担当と同時に動くので、接続のトークナイザは使わない
+		MyServer2.onLine(c, line, tokens);
+	}
+}
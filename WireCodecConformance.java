@@ -0,0 +1,298 @@
+import game.GameConstants;
+import game.LineBuilder;
+import game.WireCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * バイナリ形式 ({@link WireCodec}) の適合確認。
+ * MOVE / SHOT / BULLET_HIT の行を、送信者番号あり・なしの両方、負の値や大きな値 (zigzag の varint が複数バイトになるもの) を含めて
+ * {@link WireCodec#encode} で符号化し、{@link WireCodec.Reader} で読んで {@link WireCodec.Message#toText()} で元の行に戻ることを確かめます。
+ * クライアントが実際に送る形の行 (量子化の単位に乗らない座標・角度・速度) も作って確かめ、小数の欄は量子化の単位の半分までの誤差を、
+ * 整数の欄は文字列としての一致を求めます。
+ * 続けてテキスト行とフレームを混ぜたストリームを読み、読んだものを符号化し直すと元のバイト列と1バイトも違わないことを、
+ * まとめて届く場合と1バイトずつ届く場合 (フレームが受信の区切りをまたぐ場合) の両方で確かめます。
+ * <pre>
+ * java WireCodecConformance [--verbose] [--seed=N]
+ * </pre>
+ * 食い違いがあれば内容を表示し、終了コード 1 で終わります。
+ */
+class WireCodecConformance {
+	/**
+	 * 確かめる行 (手で書いたもの)。値の範囲の端と、varint が複数バイトになる値を含みます。
+	 */
+	private static final String[] CASES = {
+			// MOVE x y angle hp reloadTimer guardTimer flags id [送信者]
+			"MOVE 120 340 1.57 100 0 30 5 1",
+			"MOVE 120 340 1.57 100 0 30 5 1 2",
+			"MOVE -1 -64 -3.14 -1 0 0 0 0",
+			"MOVE -5000 7000 0.00 -20 1 2 3 4 65",
+			"MOVE 2147483647 -2147483648 327.67 2147483647 2000000000 2000000000 127 2147483647",
+			"MOVE -2147483648 2147483647 -327.68 -2147483648 128 16384 2097152 300 2147483647",
+			// SHOT bulletId x y angle speed damage size flags ownerId extraBounces maxLife [送信者]
+			"SHOT 1 100.5 200.25 0.7854 12.5 10 4 0 1 0 120",
+			"SHOT 1 100.5 200.25 0.7854 12.5 10 4 0 1 0 120 1",
+			"SHOT 0 -0.125 -1234.875 -3.1416 -0.00390625 -1 -2 -3 -4 -5 -6",
+			"SHOT 2147483647 9999999.875 -9999999.875 6.2832 8191.99609375 2147483647 -2147483648 1073741824 300 64 100000 2147483647",
+			// BULLET_HIT bulletId [送信者]
+			"BULLET_HIT 42",
+			"BULLET_HIT 42 3",
+			"BULLET_HIT 0 0",
+			"BULLET_HIT 2147483647 2147483647",
+			// クライアントが送る形 (Weapon.fireRaw は double をそのまま文字列にする。小さい角度は指数表記になる)
+			"SHOT 7 523.4187392837 211.99912 0.123456789 15.600000000000001 10 8 0 2 0 120",
+			"SHOT 8 60.00000000000001 659.9999999999999 -3.1415926535897927 19.999999999999996 20 8 0 3 0 600",
+			"SHOT 9 342.06250000000006 171.99999 3.0E-5 10.0 20 8 0 3 0 600 3",
+			"SHOT 10 977.46875 431.03125 -4.9999E-5 0.001953125 20 8 0 3 0 600",
+			// 旧クライアントは MOVE の角度を丸めずに送る
+			"MOVE 523 211 1.5707963267948966 100 0 30 5 1",
+			"MOVE 60 659 -0.004999999999999999 100 0 30 5 1 1",
+	};
+
+	/** 小数の欄の量子化の単位 (WireCodec と同じ値)。許容する誤差はこの半分 */
+	private static final double MOVE_ANGLE_STEP = 1.0 / 100;
+	private static final double SHOT_POS_STEP = 1.0 / 8;
+	private static final double SHOT_ANGLE_STEP = 1.0 / 10000;
+	private static final double SHOT_SPEED_STEP = 1.0 / 256;
+
+	/** クライアントと同じ作り方で生成する行の数 (MOVE と SHOT それぞれ) */
+	private static final int CLIENT_LINES = 500;
+
+	/** フレームの間に挟むテキスト行 (UTF-8 の複数バイト文字と、オペコードと紛らわしくない記号で始まる行を含む) */
+	private static final String[] TEXT_LINES = {
+			"ENTER 3",
+			"USERS 1 2 3",
+			"CHAT 1 こんにちは",
+			"ROUND_START 285",
+			"#comment",
+			"",
+	};
+
+	private static boolean verbose;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException {
+		ServerOptions options = ServerOptions.parse(args);
+		verbose = options.has("verbose");
+
+		List<String> cases = new ArrayList<>(Arrays.asList(CASES));
+		addClientLines(cases, new Random(options.getInt("seed", 1)));
+		int checked = 0;
+		for (String line : cases) {
+			checkRoundTrip(line);
+			checked++;
+		}
+
+		byte[] stream = mixedStream(cases);
+		checkMixed("whole", new ByteArrayInputStream(stream), stream);
+		checkMixed("byte-by-byte", new OneByteStream(stream), stream);
+
+		System.out.printf("cases=%d mixed=%d bytes failures=%d%n", checked, stream.length, failures);
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * クライアントと同じ組み立て方で、座標・角度・速度がばらばらな MOVE と SHOT を加えます。
+	 * MOVE は Player と同じく角度を小数点以下2桁にし、SHOT は Weapon.fireRaw と同じく double をそのまま文字列にします。
+	 */
+	private static void addClientLines(List<String> cases, Random random) {
+		LineBuilder move = new LineBuilder();
+		for (int i = 0; i < CLIENT_LINES; i++) {
+			double x = GameConstants.MAP_X + random.nextDouble() * GameConstants.MAP_WIDTH;
+			double y = GameConstants.MAP_Y + random.nextDouble() * GameConstants.MAP_HEIGHT;
+			double angle = Math.atan2(random.nextDouble() - 0.5, random.nextDouble() - 0.5);
+			move.clear().append("MOVE ").append((int) x).append(' ').append((int) y)
+					.append(' ').appendFixed2(angle)
+					.append(' ').append(random.nextInt(101))
+					.append(' ').append(random.nextInt(GameConstants.WEAPON_DEFAULT_RELOAD))
+					.append(' ').append(random.nextInt(120))
+					.append(' ').append(random.nextInt(8))
+					.append(' ').append(1 + random.nextInt(4));
+			if (random.nextBoolean()) move.append(' ').append(1 + random.nextInt(4));
+			cases.add(move.toString());
+
+			double speed = GameConstants.WEAPON_DEFAULT_SPEED * (random.nextBoolean() ? 1 : GameConstants.POWERUP_RISING_SPEED_MULT)
+					* (0.5 + random.nextDouble());
+			String shot = "SHOT " + random.nextInt(1000000) + " " + x + " " + y + " " + angle +
+					" " + speed + " " + GameConstants.WEAPON_DEFAULT_DAMAGE + " " + GameConstants.WEAPON_DEFAULT_SIZE +
+					" " + random.nextInt(8) + " " + (1 + random.nextInt(4)) + " " + random.nextInt(3) + " " + GameConstants.BULLET_DEFAULT_LIFE;
+			if (random.nextBoolean()) shot += " " + (1 + random.nextInt(4));
+			cases.add(shot);
+		}
+	}
+
+	/**
+	 * 1行を符号化して読み直し、元の行に戻ることを確かめます。
+	 */
+	private static void checkRoundTrip(String line) throws IOException {
+		byte[] frame = WireCodec.encode(line);
+		if (frame == null) {
+			fail(line, "encode returned null");
+			return;
+		}
+		if ((frame[0] & ~WireCodec.OP_HAS_SENDER) == WireCodec.OP_TEXT || frame[0] == '\n' || frame[0] == '\r') {
+			fail(line, "opcode " + frame[0] + " is not a frame");
+			return;
+		}
+		WireCodec.Reader in = new WireCodec.Reader(new ByteArrayInputStream(frame));
+		WireCodec.Message m = new WireCodec.Message();
+		if (!in.read(m)) {
+			fail(line, "no message");
+			return;
+		}
+		String text = m.toText();
+		String mismatch = compare(line, text);
+		if (mismatch != null) {
+			fail(line, mismatch);
+			return;
+		}
+		if (in.read(m)) {
+			fail(line, "trailing bytes after the frame");
+			return;
+		}
+		if (verbose) System.out.printf("ok %-100s %2d bytes %s%n", line, frame.length, hex(frame));
+	}
+
+	/**
+	 * 復号した行を欄ごとに元の行と比べます。
+	 * 小数の欄は量子化の単位の半分まで、整数の欄とコマンド名は文字列として一致すること。
+	 * @return 一致すれば null、違えばその説明
+	 */
+	private static String compare(String line, String text) {
+		String[] expected = line.split(" ");
+		String[] actual = text.split(" ");
+		if (actual.length != expected.length) return "decoded as \"" + text + "\"";
+		for (int i = 0; i < expected.length; i++) {
+			double step = step(expected[0], i);
+			if (step == 0) {
+				if (!actual[i].equals(expected[i])) return "field " + i + " is " + actual[i] + " in \"" + text + "\"";
+				continue;
+			}
+			double error = Math.abs(Double.parseDouble(actual[i]) - Double.parseDouble(expected[i]));
+			// ちょうど半分のときの double の丸め分だけ余裕を持たせる
+			if (error > step / 2 * (1 + 1e-6)) {
+				return String.format("field %d is off by %.3g (more than half of %.3g) in \"%s\"", i, error, step, text);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 欄の量子化の単位を返します。
+	 * @return 小数の欄でなければ 0
+	 */
+	private static double step(String command, int field) {
+		if (command.equals("MOVE")) return field == 3 ? MOVE_ANGLE_STEP : 0;
+		if (!command.equals("SHOT")) return 0;
+		switch (field) {
+			case 2:
+			case 3:
+				return SHOT_POS_STEP;
+			case 4:
+				return SHOT_ANGLE_STEP;
+			case 5:
+				return SHOT_SPEED_STEP;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * テキスト行とフレームを交互に並べたストリームを作ります。
+	 * 量子化で丸めた行を符号化し直しても同じフレームになることも、ここで確かめることになります。
+	 */
+	private static byte[] mixedStream(List<String> cases) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < cases.size(); i++) {
+			byte[] text = (TEXT_LINES[i % TEXT_LINES.length] + "\n").getBytes(StandardCharsets.UTF_8);
+			out.write(text, 0, text.length);
+			byte[] frame = WireCodec.encode(cases.get(i));
+			if (frame != null) out.write(frame, 0, frame.length);
+		}
+		// フレームが続く場合と、最後がテキスト行の場合も含める
+		for (String line : cases) {
+			byte[] frame = WireCodec.encode(line);
+			if (frame != null) out.write(frame, 0, frame.length);
+		}
+		byte[] last = "LEAVE 3\n".getBytes(StandardCharsets.UTF_8);
+		out.write(last, 0, last.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * ストリームを読み、読んだものを送ったときの形に戻して連結すると expected と一致することを確かめます。
+	 */
+	private static void checkMixed(String name, InputStream stream, byte[] expected) throws IOException {
+		WireCodec.Reader in = new WireCodec.Reader(stream);
+		WireCodec.Message m = new WireCodec.Message();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int messages = 0;
+		while (in.read(m)) {
+			byte[] bytes;
+			if (m.op == WireCodec.OP_TEXT) {
+				bytes = (m.text() + "\n").getBytes(StandardCharsets.UTF_8);
+			} else {
+				bytes = WireCodec.encode(m.toText());
+				if (bytes == null) {
+					fail("mixed " + name, "message " + messages + " (\"" + m.toText() + "\") does not encode");
+					return;
+				}
+			}
+			out.write(bytes, 0, bytes.length);
+			messages++;
+		}
+		byte[] actual = out.toByteArray();
+		if (!Arrays.equals(actual, expected)) {
+			int at = 0;
+			while (at < actual.length && at < expected.length && actual[at] == expected[at]) at++;
+			fail("mixed " + name, "differs at byte " + at + " (" + actual.length + " bytes, expected " + expected.length + ")");
+			return;
+		}
+		if (verbose) System.out.printf("ok mixed %s: %d messages%n", name, messages);
+	}
+
+	private static void fail(String what, String why) {
+		failures++;
+		System.out.println("FAIL " + what + ": " + why);
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	/**
+	 * 1回の read で1バイトしか返さないストリーム (細切れに届く受信の代わり)。
+	 */
+	private static class OneByteStream extends InputStream {
+		private final byte[] data;
+		private int pos = 0;
+
+		OneByteStream(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return pos < data.length ? data[pos++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			int c = read();
+			if (c < 0) return -1;
+			b[off] = (byte) c;
+			return 1;
+		}
+	}
+}
@@ -9,6 +9,8 @@ import java.io.*;
 import java.net.*;
 import javax.swing.SwingUtilities;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import static game.GameConstants.*;
 
@@ -19,9 +21,61 @@ import static game.GameConstants.*;
 public class ActionClient extends JFrame {
 	// --- 通信関連 ---
 	private Socket socket;
-	private PrintWriter out;
-	private BufferedReader in;
+	private String serverHost;
+	private int serverPort;
+	// クラスタ構成でロビーから対戦用のノードへ移ったときの、ロビーの接続先 (移っていなければ null)
+	private String homeHost;
+	private int homePort;
+	// つなぎ直した先で HELLO の後に送る行 (REDIRECT で受け取る)
+	private String redirectLine;
+	private volatile ServerWriter out;
+	// 今の接続で使っている UDP 副チャネル (udpLock の中で読み書きする。接続を張り替えるときに閉じる)
+	private UdpChannel udpChannel;
+	private final Object udpLock = new Object();
+	private volatile WireCodec.Reader in;
+	// 対戦中に切断したとき再接続に使うトークン (SESSION で受け取る)
+	private String sessionToken;
+	// 再接続した接続で RESUME と一緒に送るトークン (再接続中以外は null)
+	private String resumeToken;
+	// 切断して再接続し、RESUMED が届くまで進行を止めている
+	public boolean reconnecting = false;
+	// 再接続を待っている対戦相手 (0 ならなし) と、待つ期限 (System.currentTimeMillis)
+	public int pausedPlayer = 0;
+	public long pauseDeadline = 0;
+	// 時計合わせのスレッドは再接続しても1本だけ動かす
+	private boolean clockSyncStarted = false;
+	// RESYNC を送って全項目の MOVE を待っている
+	private boolean resyncRequested = false;
+	// 受信スレッドから描画スレッドへの受け渡し (要素は使い回す)
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+	private final Runnable drainTask = this::drainInbox;
+	private final InboundQueue inbox = new InboundQueue(1024, this::scheduleDrain);
+	// 受信スレッド用 / 描画スレッド用のトークナイザ
+	private final LineTokenizer inlineTokens = new LineTokenizer();
+	private final LineTokenizer tokens = new LineTokenizer();
+	// コマンド名 → 処理
+	private final CommandTable<CommandHandler> commands = new CommandTable<>();
+	private final LineBuilder inputLine = new LineBuilder();
+	// サーバーとの時計合わせ (サーバーが HELLO sync を受け付けたときのみ)
+	private final ClockSync clock = new ClockSync();
+	// 次のラウンドを始めるサーバーのティックと、その時刻に PLAYING へ移るタイマー
+	private long roundStartTick = Long.MIN_VALUE;
+	private javax.swing.Timer startTimer;
+	// 現在のラウンドのフレームをサーバーのティックに合わせて進めているか
+	private boolean tickAligned = false;
+	// ラウンド開始のタイマーを開始時刻のどれだけ前に起こすか (µs)
+	private static final long START_LEAD_MICROS = 5000;
 	public int myId;
+	// 観戦するルーム (--watch=N、観戦しないなら 0)
+	private final int watchRoomId;
+	// 観戦の遅延 (ms) と状態が届く頻度 (Hz)。WATCHING で受け取る
+	public int spectateDelayMillis = 0;
+	private int spectateRateHz = FPS;
+	// 観戦中、間引かれて届く MOVE の間を補間する: プレイヤー番号 → {目標x, 目標y, 残りフレーム}
+	private final Map<Integer, double[]> glides = new HashMap<>();
+	// サーバー権威モード (MODE AUTH) なら入力だけを送り、判定はサーバーに任せる
+	public boolean authoritative = false;
+	private int lastInputMask = -1, lastInputX, lastInputY;
 
 	// --- ゲームロジックコンポーネント ---
 	public GameLogic logic = new GameLogic();
@@ -30,7 +84,7 @@ public class ActionClient extends JFrame {
 	private javax.swing.Timer gameTimer;
 
 	// --- ゲーム進行状態 ---
-	public enum GameState { TITLE, ABILITY_INFO, CONTROLS_INFO, WAITING, PLAYING, ROUND_END_SELECT, ROUND_END_WAIT, COUNTDOWN, GAME_OVER }
+	public enum GameState { TITLE, ABILITY_INFO, CONTROLS_INFO, WAITING, PLAYING, ROUND_END_SELECT, ROUND_END_WAIT, COUNTDOWN, GAME_OVER, SPECTATING }
 	public GameState currentState = GameState.TITLE;
 
 	public int selectedMapType = MapGenerator.MAP_TYPE_C;
@@ -39,11 +93,21 @@ public class ActionClient extends JFrame {
 	// --- リソース ---
 	public BufferedImage imgPlayerMe, imgPlayerEnemy;
 
+	/**
+	 * 受信したコマンド1行の処理。
+	 */
+	private interface CommandHandler {
+		void handle(LineTokenizer t);
+	}
+
 	/**
 	 * コンストラクタ。
 	 * 画像のロード、接続、ウィンドウ設定、ループの開始を行います。
+	 * @param watchRoomId 観戦するルーム (対戦する場合は 0)
 	 */
-	public ActionClient() {
+	public ActionClient(int watchRoomId) {
+		this.watchRoomId = watchRoomId;
+		registerCommands();
 		loadImages();
 		String host = promptForServerIp();
 		setupConnection(host, SERVER_PORT);
@@ -95,51 +159,293 @@ public class ActionClient extends JFrame {
 	 */
 	private void setupConnection(String host, int port) {
 		try {
-			socket = new Socket(host, port);
-			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-			new Thread(this::receiveLoop).start();
+			serverHost = host;
+			serverPort = port;
+			attach(new Socket(host, port));
 		} catch (IOException e) {
 			JOptionPane.showMessageDialog(this, "Connection failed: " + host + ":" + port);
 			System.exit(0);
 		}
 	}
 
+	/**
+	 * 接続したソケットで送受信を始めます。
+	 */
+	private void attach(Socket s) throws IOException {
+		socket = s;
+		synchronized (udpLock) {
+			closeUdp();
+			out = new ServerWriter(s.getOutputStream(), this::loopback);
+		}
+		in = new WireCodec.Reader(s.getInputStream());
+		new Thread(this::receiveLoop).start();
+	}
+
+	/**
+	 * サーバーとの接続が切れたときの処理 (描画スレッド)。
+	 * 対戦中でセッションを受け取っていれば、進行を止めて再接続を試み、つながったら RESUME で対戦に戻ります。
+	 */
+	private void onConnectionLost() {
+		if (sessionToken == null || !inMatch()) return;
+		resumeToken = sessionToken;
+		sessionToken = null;
+		reconnecting = true;
+		if (startTimer != null) startTimer.stop();
+		Thread t = new Thread(this::reconnect, "reconnect");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * 一定間隔で接続し直します。RECONNECT_WINDOW_MS のうちにつながらなければ対戦を終えます。
+	 */
+	private void reconnect() {
+		long deadline = System.currentTimeMillis() + RECONNECT_WINDOW_MS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				Socket s = new Socket();
+				s.connect(new InetSocketAddress(serverHost, serverPort), RECONNECT_INTERVAL_MS);
+				SwingUtilities.invokeLater(() -> {
+					try {
+						attach(s);
+					} catch (IOException e) {
+						giveUpReconnect();
+					}
+				});
+				return;
+			} catch (IOException e) {
+				try {
+					Thread.sleep(RECONNECT_INTERVAL_MS);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+		SwingUtilities.invokeLater(this::giveUpReconnect);
+	}
+
+	/**
+	 * 別のサーバーへつなぎ直します (クラスタ構成でのロビーと対戦用のノードの行き来)。
+	 * 番号はサーバーごとに振られるので、新しい接続の START で自分のプレイヤーを作り直し、HELLO の後に line を送ります。
+	 * @param line つないだ後に送る行 (null なら送らない)
+	 */
+	private void switchServer(String host, int port, String line) {
+		redirectLine = line;
+		logic.players.remove(myId);
+		logic.connectedPlayerIds.clear();
+		logic.matchHostId = 0;
+		serverHost = host;
+		serverPort = port;
+		synchronized (udpLock) {
+			closeUdp();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// 閉じられなくても新しい接続へ移る
+		}
+		Thread t = new Thread(() -> {
+			try {
+				Socket s = new Socket();
+				s.connect(new InetSocketAddress(host, port), SWITCH_TIMEOUT_MS);
+				SwingUtilities.invokeLater(() -> {
+					try {
+						attach(s);
+					} catch (IOException e) {
+						setGameOver("対戦サーバーに接続できませんでした");
+					}
+				});
+			} catch (IOException e) {
+				SwingUtilities.invokeLater(() -> setGameOver("対戦サーバーに接続できませんでした"));
+			}
+		}, "switch-server");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * 今の UDP 副チャネルを閉じます (udpLock の中で呼びます)。
+	 */
+	private void closeUdp() {
+		if (udpChannel == null) return;
+		udpChannel.close();
+		udpChannel = null;
+	}
+
+	/**
+	 * 到達確認の取れた UDP 副チャネルを使い始めます (UDP の受信スレッドから呼ばれます)。
+	 * 確認している間に接続が張り替えられていたら、古い接続の分なので閉じます。
+	 */
+	private void adoptUdp(ServerWriter writer, UdpChannel ch) {
+		synchronized (udpLock) {
+			if (writer != out) {
+				ch.close();
+				return;
+			}
+			closeUdp();
+			udpChannel = ch;
+			writer.println("UDP ON");
+			writer.setDatagramChannel(ch);
+		}
+	}
+
+	private void giveUpReconnect() {
+		if (!reconnecting) return;
+		reconnecting = false;
+		resumeToken = null;
+		setGameOver("接続が切れたため、対戦を続けられませんでした");
+	}
+
+	private boolean inMatch() {
+		return currentState == GameState.COUNTDOWN || currentState == GameState.PLAYING
+				|| currentState == GameState.ROUND_END_SELECT || currentState == GameState.ROUND_END_WAIT;
+	}
+
 	/**
 	 * メインゲームループ。
 	 * タイマーにより定期的に呼び出され、ロジックの更新と画面の再描画を行います。
 	 */
 	private void gameLoop() {
-		if (currentState == GameState.COUNTDOWN) {
-			countdownTimer--;
-			if (countdownTimer <= 0) currentState = GameState.PLAYING;
+		if (reconnecting || pausedPlayer != 0) {
+			// 自分か相手の再接続を待っている間は進めない
+		} else if (currentState == GameState.COUNTDOWN) {
+			if (startTimer != null && startTimer.isRunning()) {
+				// 開始はタイマーに任せ、ここでは表示用の残りフレームだけ求める
+				countdownTimer = (int) Math.max(1, roundStartTick - clock.serverTick());
+			} else {
+				countdownTimer--;
+				if (countdownTimer <= 0) beginPlaying(false);
+			}
 		} else if (currentState == GameState.PLAYING) {
-			logic.update(myId, input, out);
+			if (authoritative) sendInput();
+			// サーバーのティックに合わせる場合は、開始からのティック数に追いつくまで進める (遅れても最大 MAX_CATCH_UP)
+			int steps = 1;
+			if (tickAligned) {
+				long behind = clock.serverTick() - roundStartTick - GameLogic.frameCount;
+				steps = (int) Math.max(0, Math.min(behind, MAX_CATCH_UP));
+			}
+			for (int i = 0; i < steps; i++) {
+				if (authoritative) {
+					GameLogic.frameCount++;
+					logic.advanceBullets();
+				} else {
+					logic.update(myId, input, out);
+				}
+			}
+		} else if (currentState == GameState.SPECTATING) {
+			GameLogic.frameCount++;
+			logic.advanceBullets();
+			glide();
 		}
 		panel.repaint();
 	}
 
 	/**
-	 * ゲームに参加リクエストを送信します。
+	 * カウントダウンを終えて PLAYING に移ります。
+	 * @param aligned サーバーが指定したティックで始めた (以降のフレームもティックに合わせる) なら true
+	 */
+	private void beginPlaying(boolean aligned) {
+		if (currentState != GameState.COUNTDOWN) return;
+		currentState = GameState.PLAYING;
+		countdownTimer = 0;
+		tickAligned = aligned;
+		// フレーム番号 (毒などの周期判定) をラウンド開始からのティック数にそろえる
+		if (aligned) GameLogic.frameCount = 0;
+	}
+
+	/**
+	 * サーバーが指定したティックでの開始を予約します (カウントダウン中のみ)。
+	 * 開始時刻は時計合わせの結果から自分の時計に直し、フレームの周期を待たずにタイマーで切り替えます。
+	 */
+	private void armRoundStart() {
+		if (startTimer != null) startTimer.stop();
+		long target = clock.toLocalMicros(MatchClock.microsOfTick(roundStartTick));
+		// タイマーの遅れを吸収するため少し早めに起き、残りは短く待って時刻ちょうどに切り替える
+		long delayMicros = target - MatchClock.nowMicros() - START_LEAD_MICROS;
+		startTimer = new javax.swing.Timer((int) Math.max(0, delayMicros / 1000), e -> {
+			long wait;
+			while ((wait = target - MatchClock.nowMicros()) > 0) LockSupport.parkNanos(Math.min(wait, 200) * 1000);
+			beginPlaying(true);
+		});
+		startTimer.setRepeats(false);
+		startTimer.start();
+	}
+
+	/**
+	 * 観戦中、次の MOVE が届くまでの間をフレームごとに目標位置へ近づけます。
+	 */
+	private void glide() {
+		for (Map.Entry<Integer, double[]> e : glides.entrySet()) {
+			double[] g = e.getValue();
+			Player p = logic.players.get(e.getKey());
+			if (p == null || g[2] <= 0) continue;
+			p.x += (g[0] - p.x) / g[2];
+			p.y += (g[1] - p.y) / g[2];
+			g[2]--;
+		}
+	}
+
+	/**
+	 * 観戦中か。
+	 */
+	public boolean isSpectating() {
+		return watchRoomId != 0;
+	}
+
+	/**
+	 * 画面の左側 (自分の側) に表示するプレイヤー番号。観戦中は番号の小さい方のプレイヤーです。
+	 */
+	public int viewId() {
+		if (!isSpectating()) return myId;
+		int minId = Integer.MAX_VALUE;
+		for (int id : logic.joinedPlayers) minId = Math.min(minId, id);
+		return minId;
+	}
+
+	/**
+	 * 観戦中、左側のプレイヤーを自分の色、もう一方を相手の色で表示します。
+	 */
+	private void recolorForView() {
+		int viewId = viewId();
+		for (Player p : logic.players.values()) p.color = (p.id == viewId) ? COLOR_PLAYER_ME : COLOR_PLAYER_ENEMY;
+	}
+
+	/**
+	 * サーバー権威モードで、入力が変化したときだけ INPUT を送ります。
+	 * 構成: INPUT mask mouseX mouseY
+	 */
+	private void sendInput() {
+		int mask = input.toMask();
+		if (mask == lastInputMask && input.mouseX == lastInputX && input.mouseY == lastInputY) return;
+		lastInputMask = mask;
+		lastInputX = input.mouseX;
+		lastInputY = input.mouseY;
+		out.println(inputLine.clear().append("INPUT ").append(mask).append(' ').append(lastInputX).append(' ').append(lastInputY));
+	}
+
+	/**
+	 * マッチングの待ち行列に並びます。対戦相手が決まると MATCH でルームが届き、そのルームへ参加します。
 	 */
 	public void joinGame() {
-		out.println("JOIN " + TARGET_GAME_ID);
 		currentState = GameState.WAITING;
+		// クラスタ構成で前の対戦のノードにいるなら、ロビーへ戻ってから並ぶ
+		if (homeHost != null && !(homeHost.equals(serverHost) && homePort == serverPort)) {
+			switchServer(homeHost, homePort, "QUEUE");
+			return;
+		}
+		out.println("QUEUE");
 	}
 
 	/**
 	 * 新しいマッチ（またはラウンド）を開始する準備を行います。
-	 * マップ生成権限を持つ場合（ID最小値）はマップデータを送信します。
+	 * マップ生成権限を持つ場合（ホスト）はマップデータを送信します。
 	 */
 	public void startNewMatch() {
 		logic.myWinCount = 0;
 		logic.enemyWinCount = 0;
-		int minId = Integer.MAX_VALUE;
-		for(int id : logic.players.keySet()) minId = Math.min(minId, id);
 
-		// IDが一番小さいプレイヤーがホスト役としてマップを生成
-		// 注意: ここは「対戦参加者の中での最小ID」なので connectedPlayerIds ではなく players.keySet() を使う
-		if (myId == minId) {
+		// マッチングでサーバーが決めたホストがマップを生成
+		if (myId == logic.getHostId()) {
 			logic.obstacles = MapGenerator.generate(selectedMapType);
 			sendObstacleData();
 		}
@@ -176,6 +482,10 @@ public class ActionClient extends JFrame {
 		logic.resetPositions(myId);
 		currentState = GameState.COUNTDOWN;
 		countdownTimer = COUNTDOWN_FRAMES;
+		tickAligned = false;
+		if (startTimer != null) startTimer.stop();
+		// ROUND_START が先に届いていればその時刻に始める
+		if (clock.synced() && roundStartTick > clock.serverTick()) armRoundStart();
 		// ステータス（最大HPなど）を更新して送信
 		if (logic.players.containsKey(myId)) logic.players.get(myId).sendStatus(out);
 	}
@@ -186,187 +496,486 @@ public class ActionClient extends JFrame {
 	 */
 	private void receiveLoop() {
 		try {
-			String line;
-			while ((line = in.readLine()) != null) {
-				String[] tokens = line.split(" ");
-				SwingUtilities.invokeLater(() -> processCommand(tokens[0], tokens));
+			while (true) {
+				WireCodec.Message m = inbox.claim();
+				if (!in.read(m)) break;
+				if (handleInline(m)) continue;
+				if (m.textStartsWith("BATCH ")) {
+					// 1ティック分のまとまり: 続く n 件を揃えてから公開し、描画スレッドで一度に処理する
+					int n = inlineTokens.reset(m.line, m.lineLength).intAt(1);
+					boolean open = true;
+					for (int i = 0; i < n && open; i++) {
+						m = inbox.claim();
+						open = in.read(m);
+						if (open && !handleInline(m)) inbox.commit();
+					}
+					inbox.publish();
+					if (!open) break;
+					continue;
+				}
+				inbox.commit();
+				inbox.publish();
 			}
 		} catch (Exception e) {}
+		SwingUtilities.invokeLater(this::onConnectionLost);
 	}
 
 	/**
-	 * 受信したコマンド文字列を解析し、適切な処理を実行します。
-	 * @param cmd コマンド名
-	 * @param tokens 分割された引数配列
+	 * 受信分が公開されたら、描画スレッドでの処理を予約します (予約済みなら何もしません)。
 	 */
-	private void processCommand(String cmd, String[] tokens) {
-		try {
-			if (cmd.equals("START")) {
-				// 初回接続時、自分のIDを受信
-				myId = Integer.parseInt(tokens[1]);
-				logic.players.put(myId, new Player(myId, MAP_X + 100, MAP_Y + 200, COLOR_PLAYER_ME));
-				// 自分を接続リストに追加
-				logic.connectedPlayerIds.add(myId);
-			} else if (cmd.equals("ENTER")) {
-				// 誰かが接続した
-				int pid = Integer.parseInt(tokens[1]);
-				logic.connectedPlayerIds.add(pid);
-			} else if (cmd.equals("USERS")) {
-				// 既に参加しているユーザーの一覧
-				for(int i=1; i<tokens.length; i++) {
-					logic.connectedPlayerIds.add(Integer.parseInt(tokens[i]));
-				}
-			} else if (cmd.equals("JOIN")) {
-				// 他プレイヤーの参加通知 (対戦参加)
-				int pid = Integer.parseInt(tokens[2]);
-				logic.joinedPlayers.add(pid);
-				if (!logic.players.containsKey(pid)) logic.players.put(pid, new Player(pid, 0, 0, COLOR_PLAYER_ENEMY));
-				// 2人揃ったら開始
-				if (logic.joinedPlayers.size() >= 2 && currentState == GameState.WAITING) startNewMatch();
-			} else if (cmd.equals("LEAVE")) {
-				// 切断検知
-				int leaveId = Integer.parseInt(tokens[1]);
-				// 接続リストから削除
-				logic.connectedPlayerIds.remove(leaveId);
-
-				// ゲーム中に対戦相手が落ちた場合のみ勝利判定
-				if (currentState == GameState.PLAYING || currentState == GameState.ROUND_END_SELECT || currentState == GameState.ROUND_END_WAIT) {
-					if (leaveId != myId && logic.joinedPlayers.contains(leaveId)) {
-						setGameOver("完全勝利！(相手が退出しました)");
-					}
-				}
-			} else if (cmd.equals("MOVE")) {
-				// トークン構成: [0]MOVE [1]x [2]y [3]angle [4]hp [5]reloadTimer [6]guardTimer [7]flags [8]id
-
-				int id = Integer.parseInt(tokens[8]);
-
-				if (id != myId) {
-					Player p = logic.players.computeIfAbsent(id, k -> new Player(id, 0, 0, COLOR_PLAYER_ENEMY));
-
-					// 座標・角度・HP
-					p.x = Double.parseDouble(tokens[1]);
-					p.y = Double.parseDouble(tokens[2]);
-					p.angle = Double.parseDouble(tokens[3]);
-					p.hp = Integer.parseInt(tokens[4]);
-
-					// タイマー類
-					p.weapon.reloadTimer = Integer.parseInt(tokens[5]);
-					p.guardCooldownTimer = Integer.parseInt(tokens[6]);
-
-					// フラグの展開 (ビット演算で復元)
-					int flags = Integer.parseInt(tokens[7]);
-					p.weapon.isReloading = (flags & P_FLAG_RELOAD) != 0;
-					p.isGuarding         = (flags & P_FLAG_GUARD) != 0;
-					boolean isInvisible  = (flags & P_FLAG_INVISIBLE) != 0;
-					boolean isPoisoned   = (flags & P_FLAG_POISON) != 0;
-
-					// 透明化タイマーの簡易設定 (表示用なので0か正の値があればOK)
-					p.invisibleTimer = isInvisible ? 10 : 0;
-					// 毒タイマーの簡易設定
-					p.poisonTimer = isPoisoned ? 10 : 0;
-
-					// "世界"の発動フラグチェック
-					boolean triggeredTheWorld = (flags & P_FLAG_THE_WORLD) != 0;
-					if (triggeredTheWorld) {
-						// 相手が発動したので、自分の画面の弾も消去
-						logic.executeTheWorld(p);
-					}
-				}
-			} else if (cmd.equals("STATUS")) {
-				// STATUS id maxHp size reloadDuration maxGuardCooldown
-				int id = Integer.parseInt(tokens[1]);
-				Player p = logic.players.computeIfAbsent(id, k -> new Player(id, 0, 0, (id==myId)?COLOR_PLAYER_ME:COLOR_PLAYER_ENEMY));
+	private void scheduleDrain() {
+		if (drainScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(drainTask);
+	}
 
-				p.maxHp = Integer.parseInt(tokens[2]);
-				p.size = Integer.parseInt(tokens[3]);
+	/**
+	 * 公開済みの受信分をすべて処理します (描画スレッド)。
+	 */
+	private void drainInbox() {
+		// 先に戻すことで、この後に公開された分は改めて予約される
+		drainScheduled.set(false);
+		WireCodec.Message m;
+		while ((m = inbox.peek()) != null) {
+			dispatch(m);
+			inbox.release();
+		}
+	}
 
-				// リロード時間の同期
-				if(tokens.length > 4) {
-					p.weapon.reloadDuration = Integer.parseInt(tokens[4]);
-				}
+	/**
+	 * 描画スレッドを待たずに受信スレッド上で処理するものを扱います。
+	 * @return 描画スレッドへ渡さないものなら true
+	 */
+	private boolean handleInline(WireCodec.Message m) {
+		if (m.op != WireCodec.OP_TEXT) return false;
+		// 生存確認にはその場で応答する
+		if (m.textEquals("PING")) {
+			out.println("PONG");
+			return true;
+		}
+		// 時計合わせの返事は描画スレッドを待たずに受信時刻を取る: SYNC 送信時刻 サーバー時刻
+		if (m.textStartsWith("SYNC ")) {
+			long received = MatchClock.nowMicros();
+			LineTokenizer t = inlineTokens.reset(m.line, m.lineLength);
+			clock.sample(t.longAt(1), t.longAt(2), received);
+			return true;
+		}
+		// 圧縮を受け付けられたら、この行の直後から展開して読む
+		if (m.textStartsWith("WELCOME")) {
+			LineTokenizer t = inlineTokens.reset(m.line, m.lineLength);
+			for (int i = 1; i < t.count(); i++) {
+				if (t.equalsAt(i, StreamCompression.FEATURE)) in.inflate();
+				if (t.equalsAt(i, "sync")) startClockSync();
+			}
+		}
+		return false;
+	}
 
-				// 最大ガードクールダウンの同期
-				if(tokens.length > 5) {
-					p.currentMaxGuardCooldown = Integer.parseInt(tokens[5]);
+	/**
+	 * 時計合わせの SYNC を定期的に送るスレッドを開始します。
+	 * 最初は短い間隔で数回送って早く合わせ、その後は時計のずれを追う程度に間隔を空けます。
+	 */
+	private void startClockSync() {
+		if (clockSyncStarted) return;
+		clockSyncStarted = true;
+		Thread t = new Thread(() -> {
+			try {
+				for (int i = 0; ; i++) {
+					out.println("SYNC " + MatchClock.nowMicros());
+					Thread.sleep(i < SYNC_BURST ? SYNC_BURST_INTERVAL_MS : SYNC_INTERVAL_MS);
 				}
+			} catch (InterruptedException e) {
+				// 終了
+			}
+		}, "clock-sync");
+		t.setDaemon(true);
+		t.start();
+	}
 
-			} else if (cmd.equals("SHOT")) {
-				// 弾の発射情報受信
-				int bId = Integer.parseInt(tokens[1]);
-				double x = Double.parseDouble(tokens[2]);
-				double y = Double.parseDouble(tokens[3]);
-				double angle = Double.parseDouble(tokens[4]);
-				double speed = Double.parseDouble(tokens[5]);
-				int damage = Integer.parseInt(tokens[6]);
-				int size = Integer.parseInt(tokens[7]);
-				int flags = Integer.parseInt(tokens[8]);
-				int ownerId = Integer.parseInt(tokens[9]);
-				int extraBounces = (tokens.length > 10) ? Integer.parseInt(tokens[10]) : 0;
-				int maxLife = (tokens.length > 11) ? Integer.parseInt(tokens[11]) : BULLET_DEFAULT_LIFE;
-
-				logic.spawnBullet(bId, x, y, angle, speed, damage, size, flags, ownerId, extraBounces, maxLife);
-			} else if (cmd.equals("BULLET_HIT")) {
-				// 弾の命中通知。自分が撃った弾ならパッシブ効果を発動
-				int targetBulletId = Integer.parseInt(tokens[1]);
-				for (Bullet b : logic.bulletPool) {
-					if (b.isActive && b.id == targetBulletId) {
-						if (b.ownerId == myId) {
-							Player me = logic.players.get(myId);
-							if (me != null) {
-								if (me.hasPassiveThirst) me.thirstTimer = PLAYER_THIRST_DURATION;
-								if (me.hasPassiveConfidence) {
-									if(me.confidenceTimer == 0) me.hp *= 3;
-									me.confidenceTimer = PLAYER_CONFIDENCE_DURATION;
-								}
-							}
-						}
-						b.deactivate();
-						break;
-					}
-				}
-			} else if (cmd.equals("HEAL")) {
-				// 回復処理
-				int tid = Integer.parseInt(tokens[1]); int amount = Integer.parseInt(tokens[2]);
-				if (logic.players.containsKey(tid)) { Player p = logic.players.get(tid); p.hp = Math.min(p.hp + amount, p.maxHp); }
-			} else if (cmd.equals("DEAD")) {
-				// プレイヤー死亡通知 -> ラウンド終了処理
-				handleRoundEnd(Integer.parseInt(tokens[1]));
-			} else if (cmd.equals("NEXT_ROUND_READY")) {
-				// 相手の準備完了通知
-				if (currentState == GameState.ROUND_END_WAIT) startCountdown();
-			} else if (cmd.equals("MAP_DATA")) {
-				// マップデータの受信
-				logic.obstacles.clear();
-				for (int i = 1; i < tokens.length - 1; i += 4) {
-					logic.obstacles.add(new Line2D.Double(Double.parseDouble(tokens[i]), Double.parseDouble(tokens[i+1]),
-							Double.parseDouble(tokens[i+2]), Double.parseDouble(tokens[i+3])));
-				}
-				logic.resetPositions(myId);
-			} else if (cmd.equals("ABILITY")) {
-				// サーバーからの形式: ABILITY <Name Part1> <Name Part2> ... <SenderID>
-				// 必ず最後のトークンがID
-
-				if (tokens.length >= 3) {
-					int idIndex = tokens.length - 1; // 最後のインデックス
-					int pid = Integer.parseInt(tokens[idIndex]); // ID取得
-
-					// 名前部分は index 1 から idIndex-1 まで
-					StringBuilder sb = new StringBuilder();
-					for(int i=1; i<idIndex; i++) {
-						sb.append(tokens[i]);
-						if(i < idIndex - 1) sb.append(" "); // 間にスペースを入れる
-					}
-					String aName = sb.toString();
+	/**
+	 * 受信した1件を処理します。テキスト行は従来どおり分割し、バイナリは値を直接反映します。
+	 */
+	private void dispatch(WireCodec.Message m) {
+		if (m.op == WireCodec.OP_TEXT) {
+			processCommand(tokens.reset(m.line, m.lineLength));
+			return;
+		}
+		try {
+			switch (m.op) {
+				case WireCodec.OP_MOVE_DELTA:
+					// 差分の基準を持っていない: 全項目での送り直しを頼む (届くまでの差分は捨てる)
+					if (!resyncRequested) out.println("RESYNC");
+					resyncRequested = true;
+					break;
+				case WireCodec.OP_MOVE:
+					resyncRequested = false;
+					applyMove(m.id, m.x, m.y, m.angle, m.hp, m.reloadTimer, m.guardTimer, m.flags);
+					break;
+				case WireCodec.OP_SHOT:
+					logic.spawnBullet(m.bulletId, m.x, m.y, m.angle, m.speed, m.damage, m.size, m.flags, m.ownerId, m.extraBounces, m.maxLife);
+					break;
+				case WireCodec.OP_BULLET_HIT:
+					onBulletHit(m.bulletId);
+					break;
+				default:
+					break;
+			}
+		} catch (Exception e) { e.printStackTrace(); }
+	}
 
-					if (logic.players.containsKey(pid)) {
-						logic.players.get(pid).abilityNames.add(aName);
-					}
+	/**
+	 * UDP 副チャネルで受け取った行 (MOVE) を TCP と同じ形で処理します。
+	 */
+	private void onDatagram(String line) {
+		SwingUtilities.invokeLater(() -> processCommand(tokens.reset(line)));
+	}
+
+	/**
+	 * サーバーが本人へのエコーを省略する場合に、自分の送ったコマンドを受信時と同じ形で処理します。
+	 * サーバーと同様に末尾へ送信者IDを付加します。
+	 */
+	private void loopback(String line) {
+		String echoed = line + " " + myId;
+		SwingUtilities.invokeLater(() -> processCommand(tokens.reset(echoed)));
+	}
+
+	/**
+	 * 受信したコマンドを処理表から引いて実行します (描画スレッド)。
+	 * @param t 受信した1行
+	 */
+	private void processCommand(LineTokenizer t) {
+		CommandHandler h = commands.get(t);
+		if (h == null) return;
+		try {
+			h.handle(t);
+		} catch (Exception e) { e.printStackTrace(); }
+	}
+
+	/**
+	 * コマンド名と処理の対応を登録します。
+	 */
+	private void registerCommands() {
+		commands.register("START", this::onStart);
+		commands.register("UDP", t -> {
+			// UDP 副チャネルの案内: UDP port token (到達確認が取れたら MOVE を UDP に切り替える)
+			ServerWriter writer = out;
+			UdpChannel.open(serverHost, t.intAt(1), t.longAt(2), ch -> adoptUdp(writer, ch), this::onDatagram);
+		});
+		// サーバーの動作モード
+		commands.register("MODE", t -> authoritative = t.equalsAt(1, "AUTH"));
+		// 再接続用のトークン
+		commands.register("SESSION", t -> sessionToken = t.stringAt(1));
+		commands.register("RESUME", this::onResume);
+		commands.register("RESUMED", this::onResumed);
+		commands.register("RESUME_FAILED", t -> giveUpReconnect());
+		commands.register("PAUSE", t -> {
+			// 対戦相手が切断して再接続を待っている: PAUSE id graceMillis (戻らなければ LEAVE が届く)
+			if (!inMatch() || !logic.joinedPlayers.contains(t.intAt(1))) return;
+			pausedPlayer = t.intAt(1);
+			pauseDeadline = System.currentTimeMillis() + t.longAt(2);
+			if (startTimer != null) startTimer.stop();
+		});
+		commands.register("SCORE", t -> {
+			// 再開時の戦績: SCORE id deaths id deaths ...
+			logic.myWinCount = 0;
+			logic.enemyWinCount = 0;
+			for (int i = 1; i + 1 < t.count(); i += 2) {
+				if (t.intAt(i) == myId) logic.enemyWinCount += t.intAt(i + 1);
+				else logic.myWinCount += t.intAt(i + 1);
+			}
+		});
+		commands.register("AMMO", t -> {
+			// サーバー権威モードでの自分の残弾: AMMO current max
+			Player me = logic.players.get(myId);
+			if (me != null) {
+				me.weapon.currentAmmo = t.intAt(1);
+				me.weapon.maxAmmo = t.intAt(2);
+			}
+		});
+		commands.register("WELCOME", t -> {
+			// サーバーが受け入れた機能の一覧
+			for (int i = 1; i < t.count(); i++) {
+				if (t.equalsAt(i, "noecho")) out.setLocalEcho(true);
+			}
+		});
+		// 誰かが接続した
+		commands.register("ENTER", t -> logic.connectedPlayerIds.add(t.intAt(1)));
+		commands.register("USERS", t -> {
+			// 既に参加しているユーザーの一覧
+			for (int i = 1; i < t.count(); i++) logic.connectedPlayerIds.add(t.intAt(i));
+		});
+		commands.register("JOIN", this::onJoin);
+		commands.register("MATCH", t -> {
+			// 対戦相手が決まった: MATCH roomId hostId
+			if (currentState != GameState.WAITING) return;
+			logic.matchHostId = t.intAt(2);
+			out.println("JOIN " + t.intAt(1));
+		});
+		commands.register("REDIRECT", t -> {
+			// クラスタ構成: ルームを受け持つノードへつなぎ直す: REDIRECT host port [つないだ後に送る行]
+			if (homeHost == null) {
+				homeHost = serverHost;
+				homePort = serverPort;
+			}
+			switchServer(t.stringAt(1), t.intAt(2), (t.count() > 3) ? t.join(3, t.count()) : null);
+		});
+		commands.register("CLUSTER_FULL", t -> setGameOver("空いている対戦サーバーがありません"));
+		commands.register("LEAVE", this::onLeave);
+		// トークン構成: [0]MOVE [1]x [2]y [3]angle [4]hp [5]reloadTimer [6]guardTimer [7]flags [8]id
+		commands.register("MOVE", t -> applyMove(t.intAt(8), t.doubleAt(1), t.doubleAt(2), t.doubleAt(3),
+				t.intAt(4), t.intAt(5), t.intAt(6), t.intAt(7)));
+		commands.register("STATUS", this::onStatus);
+		// 弾の発射情報受信
+		commands.register("SHOT", t -> logic.spawnBullet(t));
+		commands.register("BULLET_HIT", t -> onBulletHit(t.intAt(1)));
+		commands.register("HEAL", t -> {
+			// 回復処理
+			Player p = logic.players.get(t.intAt(1));
+			if (p != null) p.hp = Math.min(p.hp + t.intAt(2), p.maxHp);
+		});
+		// プレイヤー死亡通知 -> ラウンド終了処理
+		commands.register("DEAD", t -> handleRoundEnd(t.intAt(1)));
+		commands.register("NEXT_ROUND_READY", t -> {
+			// 相手の準備完了通知
+			if (currentState == GameState.ROUND_END_WAIT) startCountdown();
+		});
+		commands.register("ROUND_START", t -> {
+			// サーバーが決めたラウンド開始のティック: ROUND_START tick
+			if (!clock.synced()) return;
+			roundStartTick = t.longAt(1);
+			if (currentState == GameState.COUNTDOWN) armRoundStart();
+		});
+		commands.register("MAP_DATA", this::onMapData);
+		commands.register("ABILITY", this::onAbility);
+		// 観戦の開始: WATCHING roomId delayMillis rateHz
+		commands.register("WATCHING", t -> {
+			spectateDelayMillis = t.intAt(2);
+			spectateRateHz = Math.max(1, t.intAt(3));
+			currentState = GameState.SPECTATING;
+		});
+	}
+
+	private void onStart(LineTokenizer t) {
+		// 初回接続時、自分のIDを受信
+		myId = t.intAt(1);
+		if (isSpectating()) {
+			// 観戦者は自分のプレイヤーを持たない。観戦の配信は複数行のかたまりなので BATCH は使わない
+			out.println("HELLO ping " + StreamCompression.FEATURE);
+			out.println("WATCH " + watchRoomId);
+			return;
+		}
+		if (resumeToken == null) {
+			logic.players.put(myId, new Player(myId, MAP_X + 100, MAP_Y + 200, COLOR_PLAYER_ME));
+			// 自分を接続リストに追加
+			logic.connectedPlayerIds.add(myId);
+		}
+		// 自分宛てのエコーは不要であること、PING に応答すること、BATCH を解釈できること、
+		// MOVE を UDP でやり取りできること、時計合わせができること、バイナリ形式と圧縮を読めること、
+		// 切断しても RESUME で対戦に戻れることをサーバーへ通知
+		out.println("HELLO noecho ping batch udp sync resume " + WireCodec.FEATURE + " " + StreamCompression.FEATURE);
+		if (resumeToken != null) {
+			// 再接続: 元の番号と席を引き継ぐ (続けて RESUME ... RESUMED で対戦の状態が届く)
+			out.println("RESUME " + resumeToken);
+			resumeToken = null;
+		}
+		if (redirectLine != null) {
+			out.println(redirectLine);
+			redirectLine = null;
+		}
+	}
+
+	private void onResume(LineTokenizer t) {
+		// 対戦に戻った: RESUME id roomId。RESUMED までにメンバー・マップ・ステータス・能力・戦績が届く
+		if (!reconnecting) return;
+		int host = logic.matchHostId;
+		logic.resetGame();
+		logic.matchHostId = host;
+		myId = t.intAt(1);
+		logic.players.put(myId, new Player(myId, MAP_X + 100, MAP_Y + 200, COLOR_PLAYER_ME));
+		logic.connectedPlayerIds.add(myId);
+	}
+
+	private void onResumed(LineTokenizer t) {
+		// RESUMED id: id が自分なら状態を受け取り終えた、相手なら相手が戻ってきた。どちらも中断したラウンドをやり直す
+		int id = t.intAt(1);
+		if (id == myId) {
+			if (!reconnecting) return;
+			reconnecting = false;
+			Player me = logic.players.get(myId);
+			if (me != null) me.applyPowerUpStats();
+			if (!logic.obstacles.isEmpty()) {
+				startCountdown();
+			} else {
+				currentState = GameState.WAITING;
+				if (logic.joinedPlayers.size() >= 2) startNewMatch();
+			}
+		} else if (id == pausedPlayer) {
+			pausedPlayer = 0;
+			if (inMatch()) startCountdown();
+		}
+	}
+
+	private void onJoin(LineTokenizer t) {
+		// 他プレイヤーの参加通知 (対戦参加)
+		int pid = t.intAt(2);
+		logic.joinedPlayers.add(pid);
+		if (!logic.players.containsKey(pid)) logic.players.put(pid, new Player(pid, 0, 0, COLOR_PLAYER_ENEMY));
+		if (isSpectating()) recolorForView();
+		// 2人揃ったら開始
+		if (logic.joinedPlayers.size() >= 2 && currentState == GameState.WAITING) startNewMatch();
+	}
+
+	private void onLeave(LineTokenizer t) {
+		// 切断検知
+		int leaveId = t.intAt(1);
+		if (leaveId == pausedPlayer) pausedPlayer = 0;
+		// 接続リストから削除
+		logic.connectedPlayerIds.remove(leaveId);
+		if (isSpectating() && logic.joinedPlayers.remove(leaveId)) {
+			logic.players.remove(leaveId);
+			glides.remove(leaveId);
+			logic.resultMessage = "Player" + leaveId + " が退出しました";
+			recolorForView();
+			return;
+		}
+
+		// ゲーム中に対戦相手が落ちた場合のみ勝利判定
+		if (currentState == GameState.PLAYING || currentState == GameState.ROUND_END_SELECT || currentState == GameState.ROUND_END_WAIT) {
+			if (leaveId != myId && logic.joinedPlayers.contains(leaveId)) {
+				setGameOver("完全勝利！(相手が退出しました)");
+			}
+		}
+	}
+
+	private void onStatus(LineTokenizer t) {
+		// STATUS id maxHp size reloadDuration maxGuardCooldown
+		int id = t.intAt(1);
+		Player p = logic.players.get(id);
+		if (p == null) {
+			p = new Player(id, 0, 0, (id == myId) ? COLOR_PLAYER_ME : COLOR_PLAYER_ENEMY);
+			logic.players.put(id, p);
+		}
+
+		p.maxHp = t.intAt(2);
+		p.size = t.intAt(3);
+
+		// リロード時間の同期
+		if (t.count() > 4) {
+			p.weapon.reloadDuration = t.intAt(4);
+		}
+
+		// 最大ガードクールダウンの同期
+		if (t.count() > 5) {
+			p.currentMaxGuardCooldown = t.intAt(5);
+		}
+	}
+
+	private void onMapData(LineTokenizer t) {
+		// マップデータの受信
+		logic.obstacles.clear();
+		for (int i = 1; i < t.count() - 1; i += 4) {
+			logic.obstacles.add(new Line2D.Double(t.doubleAt(i), t.doubleAt(i + 1), t.doubleAt(i + 2), t.doubleAt(i + 3)));
+		}
+		logic.resetPositions(myId);
+		if (isSpectating()) {
+			// 新しい対戦の始まり
+			logic.myWinCount = 0;
+			logic.enemyWinCount = 0;
+			logic.resultMessage = "";
+			glides.clear();
+		}
+	}
+
+	private void onAbility(LineTokenizer t) {
+		// サーバーからの形式: ABILITY <Name Part1> <Name Part2> ... <SenderID>
+		// 必ず最後のトークンがID
+		if (t.count() >= 3) {
+			int idIndex = t.count() - 1; // 最後のインデックス
+			int pid = t.intAt(idIndex); // ID取得
+
+			// 名前部分は index 1 から idIndex-1 まで
+			String aName = t.join(1, idIndex);
+
+			if (logic.players.containsKey(pid)) {
+				logic.players.get(pid).abilityNames.add(aName);
+				// 再開時に届いた自分の能力は効果もかけ直す (RESUMED で能力値を計算し直す)
+				if (reconnecting && pid == myId) PowerUp.applyByName(aName, logic.players.get(pid));
+			}
+		}
+	}
+
+	/**
+	 * 他プレイヤーの位置・状態 (MOVE) を反映します。
+	 */
+	private void applyMove(int id, double x, double y, double angle, int hp, int reloadTimer, int guardTimer, int flags) {
+		// サーバー権威モードでは自分の位置もサーバーの結果に従う
+		if (id == myId && !authoritative) return;
+		Player p = logic.players.get(id);
+		if (p == null) {
+			p = new Player(id, 0, 0, COLOR_PLAYER_ENEMY);
+			logic.players.put(id, p);
+		}
+
+		// 座標・角度・HP (観戦中は次の MOVE までの間に少しずつ近づける)
+		double[] g = isSpectating() ? glides.get(id) : null;
+		if (isSpectating() && g == null) {
+			glides.put(id, new double[] { x, y, 0 });
+			p.x = x;
+			p.y = y;
+		} else if (g != null) {
+			g[0] = x;
+			g[1] = y;
+			g[2] = Math.max(1, FPS / spectateRateHz);
+		} else {
+			p.x = x;
+			p.y = y;
+		}
+		p.angle = angle;
+		p.hp = hp;
+
+		// タイマー類
+		p.weapon.reloadTimer = reloadTimer;
+		p.guardCooldownTimer = guardTimer;
+
+		// フラグの展開 (ビット演算で復元)
+		p.weapon.isReloading = (flags & P_FLAG_RELOAD) != 0;
+		p.isGuarding         = (flags & P_FLAG_GUARD) != 0;
+		boolean isInvisible  = (flags & P_FLAG_INVISIBLE) != 0;
+		boolean isPoisoned   = (flags & P_FLAG_POISON) != 0;
+
+		// 透明化タイマーの簡易設定 (表示用なので0か正の値があればOK)
+		p.invisibleTimer = isInvisible ? 10 : 0;
+		// 毒タイマーの簡易設定
+		p.poisonTimer = isPoisoned ? 10 : 0;
+
+		// "世界"の発動フラグチェック
+		boolean triggeredTheWorld = (flags & P_FLAG_THE_WORLD) != 0;
+		if (triggeredTheWorld) {
+			// 相手が発動したので、自分の画面の弾も消去
+			logic.executeTheWorld(p);
+		}
+	}
+
+	/**
+	 * 弾の命中通知 (BULLET_HIT)。自分が撃った弾ならパッシブ効果を発動します。
+	 */
+	private void onBulletHit(int targetBulletId) {
+		for (Bullet b : logic.bulletPool) {
+			if (b.isActive && b.id == targetBulletId) {
+				// サーバー権威モードではサーバー側で発動済み
+				if (b.ownerId == myId && !authoritative) {
+					Player me = logic.players.get(myId);
+					if (me != null) logic.applyHitPassives(me);
 				}
+				b.deactivate();
+				break;
 			}
-		} catch (Exception e) { e.printStackTrace(); }
+		}
 	}
 
 	private void handleRoundEnd(int deadId) {
+		if (currentState == GameState.SPECTATING) {
+			spectateRoundEnd(deadId);
+			return;
+		}
 		if (currentState != GameState.PLAYING) return;
 		logic.isRoundWinner = (deadId != myId);
 		if (logic.players.containsKey(deadId)) logic.players.get(deadId).hp = 0;
@@ -382,7 +991,26 @@ public class ActionClient extends JFrame {
 		}
 	}
 
-	private void setGameOver(String msg) { currentState = GameState.GAME_OVER; logic.resultMessage = msg; }
+	/**
+	 * 観戦中のラウンド終了。左右どちらが勝ったかを数えて表示し、観戦を続けます。
+	 */
+	private void spectateRoundEnd(int deadId) {
+		if (logic.players.containsKey(deadId)) logic.players.get(deadId).hp = 0;
+		int winnerId = -1;
+		for (int id : logic.joinedPlayers) if (id != deadId) winnerId = id;
+		if (deadId == viewId()) logic.enemyWinCount++;
+		else logic.myWinCount++;
+		if (logic.myWinCount >= MAX_WINS || logic.enemyWinCount >= MAX_WINS) logic.resultMessage = "Player" + winnerId + " の勝利！";
+		else logic.resultMessage = "Player" + winnerId + " がラウンド勝利";
+		for (Bullet b : logic.bulletPool) b.deactivate();
+	}
+
+	private void setGameOver(String msg) {
+		currentState = GameState.GAME_OVER;
+		logic.resultMessage = msg;
+		// 試合が終わったのでルームから抜ける
+		out.println("LOBBY");
+	}
 
 	private void sendObstacleData() {
 		StringBuilder sb = new StringBuilder("MAP_DATA");
@@ -391,5 +1019,14 @@ public class ActionClient extends JFrame {
 		out.println(sb.toString());
 	}
 
-	public static void main(String[] args) { new ActionClient(); }
+	/**
+	 * 起動します。--watch=N を付けるとルーム N を観戦します。
+	 */
+	public static void main(String[] args) {
+		int watch = 0;
+		for (String a : args) {
+			if (a.startsWith("--watch=")) watch = Integer.parseInt(a.substring("--watch=".length()));
+		}
+		new ActionClient(watch);
+	}
 }
@@ -0,0 +1,72 @@
+package game;
+
+/**
+ * サーバーとの時計の差と往復時間の推定 (NTP と同じ考え方)。
+ * "SYNC 送信時刻" に対してサーバーは "SYNC 送信時刻 サーバー時刻" を返すので、
+ * 受け取った時刻と合わせて差 = サーバー時刻 - (送信時刻 + 受信時刻) / 2 を求めます。
+ * 行き帰りの片方だけが遅れると差がずれるため、直近の数件のうち往復時間が最も短いものを採用します。
+ * <p>
+ * sample は受信スレッド、それ以外は描画スレッドから呼ばれます。
+ */
+public class ClockSync {
+	private static final int WINDOW = 8;
+
+	private final long[] rtts = new long[WINDOW];
+	private final long[] offsets = new long[WINDOW];
+	private int count = 0;
+	private int next = 0;
+	private volatile long offset = 0;
+	private volatile long rtt = -1;
+
+	/**
+	 * 1往復分の計測を加えます。
+	 * @param sentMicros     SYNC を送った時刻 (自分の時計)
+	 * @param serverMicros   サーバーが受け取った時刻 (サーバーの時計)
+	 * @param receivedMicros 返事を受け取った時刻 (自分の時計)
+	 */
+	public synchronized void sample(long sentMicros, long serverMicros, long receivedMicros) {
+		long r = receivedMicros - sentMicros;
+		if (r < 0) return;
+		rtts[next] = r;
+		offsets[next] = serverMicros - (sentMicros + receivedMicros) / 2;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW) count++;
+		int best = 0;
+		for (int i = 1; i < count; i++) {
+			if (rtts[i] < rtts[best]) best = i;
+		}
+		offset = offsets[best];
+		rtt = rtts[best];
+	}
+
+	/** 1回以上計測できたか */
+	public boolean synced() {
+		return rtt >= 0;
+	}
+
+	/** 採用した計測の往復時間 (µs)、未計測なら -1 */
+	public long rttMicros() {
+		return rtt;
+	}
+
+	/**
+	 * 現在のサーバーの時刻 (µs) の推定値を返します。
+	 */
+	public long serverNowMicros() {
+		return MatchClock.nowMicros() + offset;
+	}
+
+	/**
+	 * 現在のサーバーのティックを返します。
+	 */
+	public long serverTick() {
+		return MatchClock.tickAt(serverNowMicros());
+	}
+
+	/**
+	 * サーバーの時刻を自分の時計の時刻 (µs) に直します。
+	 */
+	public long toLocalMicros(long serverMicros) {
+		return serverMicros - offset;
+	}
+}
@@ -0,0 +1,95 @@
+package game;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * コマンド名 (行の先頭トークン) から処理を引く表。
+ * equals の連鎖の代わりに使い、検索では文字列を作らずにバイト列のまま比較します。
+ * 登録は起動時に済ませ、以降は読み取りだけにしてください (複数スレッドから検索してかまいません)。
+ *
+ * @param <H> 処理の型
+ */
+public class CommandTable<H> {
+	private byte[][] names = new byte[32][];
+	private Object[] handlers = new Object[32];
+	private int size = 0;
+
+	/**
+	 * コマンドを登録します。
+	 */
+	public CommandTable<H> register(String name, H handler) {
+		if ((size + 1) * 2 > names.length) grow();
+		byte[] key = name.getBytes(StandardCharsets.US_ASCII);
+		int i = slot(key, 0, key.length);
+		if (names[i] == null) size++;
+		names[i] = key;
+		handlers[i] = handler;
+		return this;
+	}
+
+	/**
+	 * 先頭トークンのコマンドを引きます。
+	 * @return 登録されていなければ null
+	 */
+	@SuppressWarnings("unchecked")
+	public H get(LineTokenizer t) {
+		if (t.count() == 0) return null;
+		int i = slot(t.buffer(), t.start(0), t.length(0));
+		return (H) handlers[i];
+	}
+
+	/**
+	 * 文字列の先頭トークン (最初の空白まで) のコマンドを引きます。
+	 * @return 登録されていなければ null
+	 */
+	@SuppressWarnings("unchecked")
+	public H get(CharSequence line) {
+		int len = 0;
+		while (len < line.length() && line.charAt(len) != ' ') len++;
+		int h = 0;
+		for (int i = 0; i < len; i++) h = 31 * h + (byte) line.charAt(i);
+		int mask = names.length - 1;
+		int i = (h ^ (h >>> 16)) & mask;
+		while (names[i] != null && !matches(names[i], line, len)) i = (i + 1) & mask;
+		return (H) handlers[i];
+	}
+
+	private static boolean matches(byte[] name, CharSequence line, int len) {
+		if (name.length != len) return false;
+		for (int i = 0; i < len; i++) {
+			if (name[i] != line.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	// 開番地法: 一致する名前か空きの位置を返す
+	private int slot(byte[] buf, int off, int len) {
+		int h = 0;
+		for (int i = 0; i < len; i++) h = 31 * h + buf[off + i];
+		int mask = names.length - 1;
+		int i = (h ^ (h >>> 16)) & mask;
+		while (names[i] != null && !matches(names[i], buf, off, len)) i = (i + 1) & mask;
+		return i;
+	}
+
+	private static boolean matches(byte[] name, byte[] buf, int off, int len) {
+		if (name.length != len) return false;
+		for (int i = 0; i < len; i++) {
+			if (name[i] != buf[off + i]) return false;
+		}
+		return true;
+	}
+
+	private void grow() {
+		byte[][] oldNames = names;
+		Object[] oldHandlers = handlers;
+		names = new byte[oldNames.length * 2][];
+		handlers = new Object[oldNames.length * 2];
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] == null) continue;
+			int j = slot(oldNames[i], 0, oldNames[i].length);
+			names[j] = oldNames[i];
+			handlers[j] = oldHandlers[i];
+		}
+	}
+}
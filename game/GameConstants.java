@@ -14,8 +14,17 @@ public class GameConstants {
 	public static final String SERVER_IP = "127.0.0.1";
 	/** 接続先サーバーのポート番号 */
 	public static final int SERVER_PORT = 10000;
-	/** 参加するゲームの ID */
-	public static final int TARGET_GAME_ID = 1;
+	/** 接続直後に時計合わせ (SYNC) を短い間隔で送る回数とその間隔 (ms) */
+	public static final int SYNC_BURST = 8;
+	public static final int SYNC_BURST_INTERVAL_MS = 100;
+	/** その後の時計合わせの間隔 (ms) */
+	public static final int SYNC_INTERVAL_MS = 5000;
+	/** 対戦中に切断したとき、再接続を試み続ける時間 (ms) */
+	public static final int RECONNECT_WINDOW_MS = 10000;
+	/** 再接続を試みる間隔 (ms) */
+	public static final int RECONNECT_INTERVAL_MS = 500;
+	/** クラスタ構成でロビーと対戦用のサーバーを行き来するときの接続待ちの上限 (ms) */
+	public static final int SWITCH_TIMEOUT_MS = 3000;
 
 	// ==========================================
 	// マップ・描画設定
@@ -56,6 +65,8 @@ public class GameConstants {
 	public static final int MAX_WINS = 5;
 	public static final int MAX_BULLETS = 1000; // ショットガン用に最大数を増加
 	public static final int COUNTDOWN_FRAMES = 90;
+	/** サーバーのティックに遅れたとき、1回の描画で追いつくために進める最大フレーム数 */
+	public static final int MAX_CATCH_UP = 4;
 
 	// ==========================================
 	// プレイヤー基本パラメータ
@@ -131,6 +142,14 @@ public class GameConstants {
 	public static final int P_FLAG_THE_WORLD = 8;      // 1000 ("世界"発動通知用)
 	public static final int P_FLAG_POISON    = 16;     // 10000 (毒状態通知用)
 
+	// 入力フラグ (サーバー権威モードの INPUT コマンド用)
+	public static final int INPUT_W     = 1;
+	public static final int INPUT_S     = 2;
+	public static final int INPUT_A     = 4;
+	public static final int INPUT_D     = 8;
+	public static final int INPUT_FIRE  = 16; // 左クリック
+	public static final int INPUT_GUARD = 32; // 右クリック
+
 	// カラー定義
 	public static final Color COLOR_BG = new Color(20, 25, 35);
 	public static final Color COLOR_GRID = new Color(40, 50, 70);
@@ -17,6 +17,8 @@ public class GameLogic {
 	// スレッドセーフなマップでプレイヤーを管理
 	public ConcurrentHashMap<Integer, Player> players = new ConcurrentHashMap<>();
 	public Bullet[] bulletPool = new Bullet[MAX_BULLETS];
+	// 次に空きを探し始める位置 (前回使った弾の次)
+	private int nextBullet = 0;
 	public ArrayList<Line2D.Double> obstacles = new ArrayList<>();
 
 	// 対戦参加中のプレイヤー（ゲーム画面にいる人）
@@ -39,10 +41,14 @@ public class GameLogic {
 		for (int i = 0; i < MAX_BULLETS; i++) bulletPool[i] = new Bullet();
 	}
 
-	// 現在のホスト（IDが一番小さい人）を取得する
+	// マッチングでサーバーが決めたホスト (0 ならまだ決まっていない)
+	public int matchHostId = 0;
+
+	// 現在のホストを取得する (MATCH で決まっていなければ、対戦参加者の中でIDが一番小さい人)
 	public int getHostId() {
-		if (connectedPlayerIds.isEmpty()) return 1; // 誰もいなければデフォルト1
-		return Collections.min(connectedPlayerIds);
+		if (matchHostId != 0) return matchHostId;
+		if (joinedPlayers.isEmpty()) return 1; // 誰もいなければデフォルト1
+		return Collections.min(joinedPlayers);
 	}
 
 	/**
@@ -53,6 +59,27 @@ public class GameLogic {
 		if (!players.containsKey(myId)) return;
 		Player me = players.get(myId);
 
+		// 左クリックは押した瞬間だけ射撃する（押しっぱなし判定防止のためフラグ管理）
+		boolean fire = input.isMousePressed && !wasMousePressed;
+		wasMousePressed = input.isMousePressed;
+		updatePlayer(me, input, fire, frameCount, out);
+
+		// 弾丸の更新と衝突判定
+		for (Bullet b : bulletPool) {
+			if (!b.isActive) continue;
+			b.update();
+			checkBulletCollision(b, me, myId, out);
+		}
+	}
+
+	/**
+	 * 1人分の入力を反映します (ガード・移動・射撃)。
+	 * クライアントでは自分だけ、サーバー権威モードではサーバーが全員分を呼び出します。
+	 *
+	 * @param fire  このフレームで射撃ボタンが押されたか (押した瞬間のみ true)
+	 * @param frame 経過フレーム数 (状態異常の周期判定用)
+	 */
+	public void updatePlayer(Player me, InputHandler input, boolean fire, int frame, PrintWriter out) {
 		// 右クリックでガード試行（テレポート安全化のため obstacles を渡す）
 		if (input.isRightMousePressed) {
 			boolean wasGuarding = me.isGuarding;
@@ -65,27 +92,32 @@ public class GameLogic {
 		}
 
 		// プレイヤー自身の移動・更新
-		me.update(input.keyW, input.keyS, input.keyA, input.keyD,
-				input.mouseX, input.mouseY, obstacles, out);
+		me.updateState(input.keyW, input.keyS, input.keyA, input.keyD,
+				input.mouseX, input.mouseY, obstacles, frame);
+		me.publishMove(out);
+		me.weapon.update(out, me.id, obstacles);
 
-		// 左クリックで射撃試行（押しっぱなし判定防止のためフラグ管理）
-		if (input.isMousePressed && !wasMousePressed) {
+		if (fire) {
 			boolean wasGuarding = me.isGuarding;
 			// 緊急防御スキル判定のため obstacles を渡す
-			me.weapon.tryShoot(out, myId, obstacles);
+			me.weapon.tryShoot(out, me.id, obstacles);
 
 			// 射撃時の緊急防御などでガードが発動した場合もチェック
 			if (!wasGuarding && me.isGuarding && me.hasSkillTheWorld) {
 				executeTheWorld(me);
 			}
 		}
-		wasMousePressed = input.isMousePressed;
+	}
 
-		// 弾丸の更新と衝突判定
+	/**
+	 * 弾丸を移動させ、壁・画面端との反射だけを処理します (命中判定なし)。
+	 * サーバー権威モードのクライアントが表示用に使います。
+	 */
+	public void advanceBullets() {
 		for (Bullet b : bulletPool) {
 			if (!b.isActive) continue;
 			b.update();
-			checkBulletCollision(b, me, myId, out);
+			checkWallCollision(b);
 		}
 	}
 
@@ -110,6 +142,14 @@ public class GameLogic {
 	 * 壁との反射、プレイヤーへの命中などを処理します。
 	 */
 	private void checkBulletCollision(Bullet b, Player me, int myId, PrintWriter out) {
+		checkWallCollision(b);
+		checkPlayerHit(b, me, out);
+	}
+
+	/**
+	 * 弾丸と画面端・壁との衝突を判定し、反射または消滅させます。
+	 */
+	public void checkWallCollision(Bullet b) {
 		boolean hitBoundary = false;
 
 		// 画面端の判定
@@ -164,10 +204,16 @@ public class GameLogic {
 		}
 
 		if (hitBoundary) b.deactivate();
+	}
 
+	/**
+	 * 弾丸が me に命中したか判定し、命中ならダメージを与えて BULLET_HIT / HEAL / DEAD を送ります。
+	 * @return 命中した場合は true
+	 */
+	public boolean checkPlayerHit(Bullet b, Player me, PrintWriter out) {
 		// プレイヤーへのヒット判定
 		// 自分の弾は一定時間(BULLET_SAFE_TIME)当たらず、その後当たるようになる
-		if (b.isActive && (b.ownerId != myId || b.lifeTimer > BULLET_SAFE_TIME)) {
+		if (b.isActive && (b.ownerId != me.id || b.lifeTimer > BULLET_SAFE_TIME)) {
 			if (me.getBounds().contains(b.x, b.y)) {
 
 				int finalDamage = b.damage;
@@ -203,10 +249,23 @@ public class GameLogic {
 
 				if (me.hp <= 0) {
 					me.hp = 0;
-					out.println("DEAD " + myId);
+					out.println("DEAD " + me.id);
 				}
+				return true;
 			}
 		}
+		return false;
+	}
+
+	/**
+	 * 自分の弾が命中したときのパッシブ効果（渇望・自信過剰）を発動します。
+	 */
+	public void applyHitPassives(Player shooter) {
+		if (shooter.hasPassiveThirst) shooter.thirstTimer = PLAYER_THIRST_DURATION;
+		if (shooter.hasPassiveConfidence) {
+			if (shooter.confidenceTimer == 0) shooter.hp *= 3;
+			shooter.confidenceTimer = PLAYER_CONFIDENCE_DURATION;
+		}
 	}
 
 	/**
@@ -218,14 +277,34 @@ public class GameLogic {
 
 	/**
 	 * 弾丸プールから未使用の弾を探して発射（アクティブ化）します。
+	 * @param t SHOT コマンドの1行
 	 */
+	public void spawnBullet(LineTokenizer t) {
+		int bId = t.intAt(1);
+		double x = t.doubleAt(2);
+		double y = t.doubleAt(3);
+		double angle = t.doubleAt(4);
+		double speed = t.doubleAt(5);
+		int damage = t.intAt(6);
+		int size = t.intAt(7);
+		int flags = t.intAt(8);
+		int ownerId = t.intAt(9);
+		int extraBounces = (t.count() > 10) ? t.intAt(10) : 0;
+		int maxLife = (t.count() > 11) ? t.intAt(11) : BULLET_DEFAULT_LIFE;
+
+		spawnBullet(bId, x, y, angle, speed, damage, size, flags, ownerId, extraBounces, maxLife);
+	}
+
 	public void spawnBullet(int id, double x, double y, double angle, double speed, int dmg, int size, int flags, int ownerId, int extraBounces) {
 		// デフォルト寿命
 		spawnBullet(id, x, y, angle, speed, dmg, size, flags, ownerId, extraBounces, BULLET_DEFAULT_LIFE);
 	}
 
 	public void spawnBullet(int id, double x, double y, double angle, double speed, int dmg, int size, int flags, int ownerId, int extraBounces, int maxLife) {
-		for (Bullet b : bulletPool) {
+		// 先頭から探すと、弾が多いときほど使用中の弾を毎回読み飛ばすことになるので、前回の続きから探す
+		for (int n = 0; n < MAX_BULLETS; n++) {
+			Bullet b = bulletPool[nextBullet];
+			if (++nextBullet == MAX_BULLETS) nextBullet = 0;
 			if (!b.isActive) {
 				b.activate(id, x, y, angle, speed, dmg, size, flags, ownerId, maxLife);
 
@@ -283,6 +362,7 @@ public class GameLogic {
 		// 2. プレイヤー情報のクリア
 		players.clear();
 		joinedPlayers.clear();
+		matchHostId = 0;
 
 		// 注意: connectedPlayerIds (接続リスト) はここではクリアしない
 		// (タイトル画面に戻ってもサーバーには繋がっているため)
@@ -96,15 +96,13 @@ public class GamePanel extends JPanel {
 	private void handleUIMouse(int mx, int my) {
 		if (client.currentState == ActionClient.GameState.TITLE) {
 			// タイトル画面: マップ選択
-			// 現在のホスト（最小ID）のみ選択可能にする
-			if (client.myId == logic.getHostId()) {
-				int[] types = {MapGenerator.MAP_TYPE_A, MapGenerator.MAP_TYPE_B, MapGenerator.MAP_TYPE_C};
-				for (int i = 0; i < 3; i++) {
-					if (mapButtons[i].contains(mx, my)) {
-						client.selectedMapType = types[i];
-						repaint();
-						return;
-					}
+			// ホストはマッチングで決まるので、誰でも選んでおける
+			int[] types = {MapGenerator.MAP_TYPE_A, MapGenerator.MAP_TYPE_B, MapGenerator.MAP_TYPE_C};
+			for (int i = 0; i < 3; i++) {
+				if (mapButtons[i].contains(mx, my)) {
+					client.selectedMapType = types[i];
+					repaint();
+					return;
 				}
 			}
 
@@ -187,7 +185,9 @@ public class GamePanel extends JPanel {
 			case ROUND_END_WAIT:   drawGameScreen(g2d); drawRoundEndWait(g2d); break;
 			case COUNTDOWN:        drawGameScreen(g2d); drawCountdown(g2d); break;
 			case GAME_OVER:        drawGameScreen(g2d); drawGameOver(g2d); break;
+			case SPECTATING:       drawGameScreen(g2d); drawSpectatorHeader(g2d); break;
 		}
+		if (client.reconnecting || client.pausedPlayer != 0) drawReconnectWait(g2d);
 	}
 
 	/**
@@ -222,38 +222,19 @@ public class GamePanel extends JPanel {
 		String[] labels = {"平原 (A)", "通路 (B)", "要塞 (C)"};
 		int[] types = {MapGenerator.MAP_TYPE_A, MapGenerator.MAP_TYPE_B, MapGenerator.MAP_TYPE_C};
 
-		int hostId = logic.getHostId();
-
-		// 現在のホスト（最小ID）に応じて描画を変える
-		if (client.myId == hostId) {
-			// ホストの場合: 通常描画
-			for (int i = 0; i < 3; i++) {
-				Rectangle btn = mapButtons[i];
-				if (client.selectedMapType == types[i]) g2d.setColor(Color.YELLOW); else g2d.setColor(Color.LIGHT_GRAY);
-				g2d.fill(btn);
-				g2d.setColor(Color.BLACK);
-				String lb = labels[i]; int sw = g2d.getFontMetrics().stringWidth(lb);
-				// ボタンの高さに対して、文字が垂直方向の中央に来るように調整 (+26px)
-				g2d.drawString(lb, btn.x + (btn.width - sw)/2, btn.y + 26);
-			}
-			// ガイドメッセージ
-			g2d.setColor(Color.WHITE); g2d.setFont(new Font(FONT_NAME, Font.PLAIN, 14));
-			centerString(g2d, "マップを選択してください", 380);
-		} else {
-			// ゲストの場合: グレーアウトして無効化
-			for (int i = 0; i < 3; i++) {
-				Rectangle btn = mapButtons[i];
-				g2d.setColor(Color.DARK_GRAY); // 暗い色
-				g2d.fill(btn);
-				g2d.setColor(Color.GRAY);
-				String lb = labels[i]; int sw = g2d.getFontMetrics().stringWidth(lb);
-				// ボタンの高さに対して、文字が垂直方向の中央に来るように調整 (+26px)
-				g2d.drawString(lb, btn.x + (btn.width - sw)/2, btn.y + 26);
-			}
-			// ガイドメッセージ
-			g2d.setColor(Color.LIGHT_GRAY); g2d.setFont(new Font(FONT_NAME, Font.PLAIN, 14));
-			centerString(g2d, "※マップ選択権はホスト(Player" + hostId + ")にあります", 380);
+		// ホストはマッチングで決まるので、全員が選んでおける
+		for (int i = 0; i < 3; i++) {
+			Rectangle btn = mapButtons[i];
+			if (client.selectedMapType == types[i]) g2d.setColor(Color.YELLOW); else g2d.setColor(Color.LIGHT_GRAY);
+			g2d.fill(btn);
+			g2d.setColor(Color.BLACK);
+			String lb = labels[i]; int sw = g2d.getFontMetrics().stringWidth(lb);
+			// ボタンの高さに対して、文字が垂直方向の中央に来るように調整 (+26px)
+			g2d.drawString(lb, btn.x + (btn.width - sw)/2, btn.y + 26);
 		}
+		// ガイドメッセージ
+		g2d.setColor(Color.WHITE); g2d.setFont(new Font(FONT_NAME, Font.PLAIN, 14));
+		centerString(g2d, "マップを選択してください (対戦相手が決まったとき、ホストになった側のマップを使います)", 380);
 
 		// スタートボタン
 		g2d.setColor(Color.GREEN); g2d.fill(startButtonRect);
@@ -437,7 +418,7 @@ public class GamePanel extends JPanel {
 	 */
 	private void drawWaitingScreen(Graphics2D g2d) {
 		g2d.setColor(COLOR_TEXT); g2d.setFont(new Font(FONT_NAME, Font.BOLD, 30));
-		centerString(g2d, "対戦相手を待っています...", 300);
+		centerString(g2d, "対戦相手を探しています...", 300);
 		g2d.setFont(new Font(FONT_NAME, Font.PLAIN, 20));
 		centerString(g2d, "現在の参加人数: " + logic.joinedPlayers.size(), 350);
 	}
@@ -447,18 +428,27 @@ public class GamePanel extends JPanel {
 	 * プレイヤー、障害物、弾丸、UIなどを描画します。
 	 */
 	private void drawGameScreen(Graphics2D g2d) {
+		// 観戦中は番号の小さい方のプレイヤーを「自分」の側に表示する
+		int viewId = client.viewId();
+		int enemyId = -1;
+		for(int id : logic.players.keySet()) {
+			if(id != viewId) { enemyId = id; break; }
+		}
+
 		// スコア表示 (MAP_Y = 130なので、少し下にずらして見やすく)
 		g2d.setFont(new Font(FONT_NAME, Font.BOLD, 30));
-		g2d.setColor(COLOR_PLAYER_ME); g2d.drawString("自分: " + getStars(logic.myWinCount), 50, 60);
-		g2d.setColor(COLOR_PLAYER_ENEMY);  g2d.drawString("相手: " + getStars(logic.enemyWinCount), 500, 60);
+		String myLabel = !client.isSpectating() ? "自分" : !logic.players.containsKey(viewId) ? "-" : "Player" + viewId;
+		String enemyLabel = !client.isSpectating() ? "相手" : (enemyId == -1) ? "-" : "Player" + enemyId;
+		g2d.setColor(COLOR_PLAYER_ME); g2d.drawString(myLabel + ": " + getStars(logic.myWinCount), 50, 60);
+		g2d.setColor(COLOR_PLAYER_ENEMY);  g2d.drawString(enemyLabel + ": " + getStars(logic.enemyWinCount), 500, 60);
 
 		// 能力の頭文字を表示
 		g2d.setFont(new Font(FONT_NAME, Font.BOLD, 20));
 		int iconGap = 25; // 文字の間隔
 
 		// 自分の能力（左側：スコアの下あたり）
-		if (logic.players.containsKey(client.myId)) {
-			ArrayList<String> myAbs = logic.players.get(client.myId).abilityNames;
+		if (logic.players.containsKey(viewId)) {
+			ArrayList<String> myAbs = logic.players.get(viewId).abilityNames;
 			g2d.setColor(Color.CYAN);
 			for(int i=0; i<myAbs.size(); i++) {
 				String name = myAbs.get(i);
@@ -469,11 +459,6 @@ public class GamePanel extends JPanel {
 		}
 
 		// 相手の能力（右側）
-		int enemyId = -1;
-		for(int id : logic.players.keySet()) {
-			if(id != client.myId) { enemyId = id; break; }
-		}
-
 		if (enemyId != -1 && logic.players.containsKey(enemyId)) {
 			ArrayList<String> enAbs = logic.players.get(enemyId).abilityNames;
 			g2d.setColor(Color.PINK);
@@ -496,11 +481,11 @@ public class GamePanel extends JPanel {
 
 		// プレイヤーと弾丸
 		g2d.setStroke(new BasicStroke(1));
-		for (Player p : logic.players.values()) p.draw(g2d, client.imgPlayerMe, client.imgPlayerEnemy, client.myId);
+		for (Player p : logic.players.values()) p.draw(g2d, client.imgPlayerMe, client.imgPlayerEnemy, viewId);
 		for (Bullet b : logic.bulletPool) b.draw(g2d);
 
-		// 自分の残弾数表示
-		if (logic.players.containsKey(client.myId)) {
+		// 自分の残弾数表示 (観戦中は残弾が届かないので出さない)
+		if (!client.isSpectating() && logic.players.containsKey(client.myId)) {
 			Player me = logic.players.get(client.myId);
 			g2d.setFont(new Font(FONT_NAME, Font.BOLD, 18));
 			if (me.weapon.currentAmmo == 0) g2d.setColor(Color.RED); else g2d.setColor(Color.CYAN);
@@ -509,6 +494,18 @@ public class GamePanel extends JPanel {
 		}
 	}
 
+	/**
+	 * 観戦中の表示。遅延と、直近のラウンドの結果を出します。
+	 */
+	private void drawSpectatorHeader(Graphics2D g2d) {
+		g2d.setColor(Color.WHITE); g2d.setFont(new Font(FONT_NAME, Font.PLAIN, 18));
+		g2d.drawString("観戦中 (" + client.spectateDelayMillis / 1000.0 + "秒遅れ)", MAP_X, MAP_Y + MAP_HEIGHT + UI_AMMO_Y_OFFSET);
+		if (logic.resultMessage != null && !logic.resultMessage.isEmpty()) {
+			g2d.setColor(Color.YELLOW); g2d.setFont(new Font(FONT_NAME, Font.BOLD, 24));
+			centerString(g2d, logic.resultMessage, MAP_Y - 10);
+		}
+	}
+
 	/**
 	 * ラウンド敗北時のパワーアップ選択画面の描画。
 	 * カード状のUIを表示します。
@@ -565,6 +562,20 @@ public class GamePanel extends JPanel {
 		centerString(g2d, String.valueOf(client.countdownTimer/FPS + 1), 300);
 	}
 
+	/**
+	 * 自分の再接続中、または相手の再接続を待っている間の表示。
+	 */
+	private void drawReconnectWait(Graphics2D g2d) {
+		g2d.setColor(new Color(0,0,0,150)); g2d.fillRect(0,0,getWidth(),getHeight());
+		g2d.setColor(Color.WHITE); g2d.setFont(new Font(FONT_NAME, Font.BOLD, 30));
+		if (client.reconnecting) {
+			centerString(g2d, "再接続しています...", 300);
+		} else {
+			long left = Math.max(0, (client.pauseDeadline - System.currentTimeMillis() + 999) / 1000);
+			centerString(g2d, "Player" + client.pausedPlayer + " の再接続を待っています (残り " + left + " 秒)", 300);
+		}
+	}
+
 	/**
 	 * 最終的なゲームオーバー画面の描画。
 	 */
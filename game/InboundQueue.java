@@ -0,0 +1,87 @@
+package game;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 受信スレッドから描画スレッドへメッセージを渡すリングバッファ (書き手1・読み手1)。
+ * 要素の {@link WireCodec.Message} は最初に確保したものを使い回すので、受け渡しでメモリを確保しません。
+ * <p>
+ * 書き手は {@link #claim()} で空き要素を受け取って中身を埋め、{@link #commit()} で確定し、
+ * {@link #publish()} で読み手に見えるようにします。BATCH のようにまとめて見せたいものは、
+ * 全部を commit してから1回だけ publish します。
+ * 公開するたびに onPublish を呼ぶので、読み手の起こし方 (invokeLater など) はそこで決めます。
+ */
+public class InboundQueue {
+	private final WireCodec.Message[] ring;
+	private final int mask;
+	private final Runnable onPublish;
+	// 書き手専用
+	private long claimed = 0;
+	private long committed = 0;
+	// 書き手 → 読み手
+	private volatile long published = 0;
+	// 読み手 → 書き手
+	private volatile long consumed = 0;
+	// 読み手専用
+	private long next = 0;
+
+	/**
+	 * @param capacity  要素数 (2のべき乗)
+	 * @param onPublish 新たに公開したときに書き手のスレッドで呼ぶ処理
+	 */
+	public InboundQueue(int capacity, Runnable onPublish) {
+		if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+		ring = new WireCodec.Message[capacity];
+		for (int i = 0; i < capacity; i++) ring[i] = new WireCodec.Message();
+		mask = capacity - 1;
+		this.onPublish = onPublish;
+	}
+
+	/**
+	 * 次に書き込む要素を返します (書き手専用)。
+	 * 読み手が追いつかず空きがなければ、確定済みの分を公開してから空くまで待ちます。
+	 * commit せずに再び claim すると同じ要素が返ります。
+	 */
+	public WireCodec.Message claim() {
+		claimed = committed;
+		while (claimed - consumed >= ring.length) {
+			publish();
+			LockSupport.parkNanos(1_000_000L);
+		}
+		return ring[(int) (claimed & mask)];
+	}
+
+	/**
+	 * claim した要素を確定します (まだ読み手には見えません)。
+	 */
+	public void commit() {
+		committed = claimed + 1;
+	}
+
+	/**
+	 * 確定済みの要素を読み手に見えるようにします。
+	 * @return 新たに見えるようになった要素があれば true
+	 */
+	public boolean publish() {
+		if (published == committed) return false;
+		published = committed;
+		onPublish.run();
+		return true;
+	}
+
+	/**
+	 * 次の要素を返します (読み手専用)。使い終えたら {@link #release()} してください。
+	 * @return 公開済みの要素がなければ null
+	 */
+	public WireCodec.Message peek() {
+		if (next == published) return null;
+		return ring[(int) (next & mask)];
+	}
+
+	/**
+	 * peek した要素を書き手に返します。
+	 */
+	public void release() {
+		consumed = ++next;
+	}
+}
@@ -2,6 +2,7 @@ package game;
 
 import java.awt.event.*;
 import javax.swing.SwingUtilities;
+import static game.GameConstants.*;
 
 /**
  * キーボードおよびマウスの入力を管理するハンドラクラス。
@@ -55,6 +56,34 @@ public class InputHandler implements KeyListener, MouseListener, MouseMotionList
 		scrollAmount += e.getWheelRotation();
 	}
 
+	/**
+	 * 現在のキー・ボタン状態を INPUT 用のビットマスクにまとめます。
+	 */
+	public int toMask() {
+		int mask = 0;
+		if (keyW) mask |= INPUT_W;
+		if (keyS) mask |= INPUT_S;
+		if (keyA) mask |= INPUT_A;
+		if (keyD) mask |= INPUT_D;
+		if (isMousePressed) mask |= INPUT_FIRE;
+		if (isRightMousePressed) mask |= INPUT_GUARD;
+		return mask;
+	}
+
+	/**
+	 * INPUT で受け取った状態を反映します (サーバー側のシミュレーション用)。
+	 */
+	public void applyMask(int mask, int mx, int my) {
+		keyW = (mask & INPUT_W) != 0;
+		keyS = (mask & INPUT_S) != 0;
+		keyA = (mask & INPUT_A) != 0;
+		keyD = (mask & INPUT_D) != 0;
+		isMousePressed = (mask & INPUT_FIRE) != 0;
+		isRightMousePressed = (mask & INPUT_GUARD) != 0;
+		mouseX = mx;
+		mouseY = my;
+	}
+
 	// 未使用のインターフェースメソッド
 	@Override public void keyTyped(KeyEvent e) {}
 	@Override public void mouseClicked(MouseEvent e) {}
@@ -0,0 +1,103 @@
+package game;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 送信する1行を、文字列を作らずに組み立てるバッファ。
+ * 毎フレーム送る MOVE などで使い回します。中身は ASCII のみを想定しています。
+ * スレッドセーフではありません。
+ */
+public class LineBuilder implements CharSequence {
+	private byte[] buf = new byte[64];
+	private int length = 0;
+
+	public LineBuilder clear() {
+		length = 0;
+		return this;
+	}
+
+	private void ensure(int extra) {
+		if (length + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(length + extra, buf.length * 2));
+	}
+
+	public LineBuilder append(char c) {
+		ensure(1);
+		buf[length++] = (byte) c;
+		return this;
+	}
+
+	public LineBuilder append(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) buf[length++] = (byte) s.charAt(i);
+		return this;
+	}
+
+	public LineBuilder append(long v) {
+		if (v == Long.MIN_VALUE) return append(Long.toString(v));
+		if (v < 0) {
+			append('-');
+			v = -v;
+		}
+		ensure(19);
+		int start = length;
+		do {
+			buf[length++] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v != 0);
+		// 下の桁から書いたので反転する
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+		return this;
+	}
+
+	/**
+	 * 小数点以下2桁で追加します (String.format("%.2f") と同じ書式)。
+	 * 丸めは double の値に対する四捨五入なので、ちょうど中間の値では最後の桁が Formatter と異なることがあります。
+	 */
+	public LineBuilder appendFixed2(double v) {
+		if (Double.isNaN(v) || Double.isInfinite(v)) return append(String.format("%.2f", v));
+		boolean negative = (Double.doubleToRawLongBits(v) & Long.MIN_VALUE) != 0;
+		long scaled = Math.round(Math.abs(v) * 100);
+		if (negative) append('-');
+		append(scaled / 100);
+		append('.');
+		int frac = (int) (scaled % 100);
+		append((char) ('0' + frac / 10));
+		append((char) ('0' + frac % 10));
+		return this;
+	}
+
+	public boolean startsWith(String prefix) {
+		if (prefix.length() > length) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[i] != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/** 内部の配列 (先頭から {@link #length()} バイトが中身) */
+	public byte[] bytes() {
+		return buf;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		return (char) buf[index];
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return new String(buf, start, end - start, StandardCharsets.US_ASCII);
+	}
+
+	public String toString() {
+		return new String(buf, 0, length, StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,235 @@
+package game;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 空白区切りの1行を、文字列や配列を作らずにその場で読むトークナイザ。
+ * 使い回すことを前提にしており、{@link #reset} で次の行に切り替えます。
+ * <p>
+ * 数値はバイト列から直接解析します。実数は有効数字15桁以内・指数が小さい範囲なら
+ * Double.parseDouble と同じ値になり、それを超える桁 (Double.toString の17桁など) でも誤差は数 ulp 以内です。
+ * スレッドセーフではありません。
+ */
+public class LineTokenizer {
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+	}
+
+	private byte[] buf;
+	private int length;
+	// 自前のコピー (CharSequence から作った場合)
+	private byte[] own = new byte[256];
+	// 元の文字列 (あれば stringAt で正確な文字列を返すのに使う)
+	private CharSequence source;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int count;
+
+	/**
+	 * バイト列 (UTF-8) の先頭 len バイトを1行として読みます。配列はコピーしないので、読み終えるまで書き換えないでください。
+	 */
+	public LineTokenizer reset(byte[] line, int len) {
+		this.buf = line;
+		this.length = len;
+		this.source = null;
+		split();
+		return this;
+	}
+
+	/**
+	 * 文字列を1行として読みます (内部のバッファへ写します)。
+	 */
+	public LineTokenizer reset(CharSequence line) {
+		int len = line.length();
+		if (own.length < len) own = new byte[Math.max(len, own.length * 2)];
+		for (int i = 0; i < len; i++) {
+			char ch = line.charAt(i);
+			// 数値やコマンド名は ASCII のみ。それ以外の文字は stringAt で source から取り出す
+			own[i] = ch < 0x80 ? (byte) ch : (byte) '?';
+		}
+		this.buf = own;
+		this.length = len;
+		this.source = line;
+		split();
+		return this;
+	}
+
+	private void split() {
+		count = 0;
+		int i = 0;
+		while (i < length) {
+			while (i < length && buf[i] == ' ') i++;
+			if (i == length) break;
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = i;
+			while (i < length && buf[i] != ' ') i++;
+			ends[count++] = i;
+		}
+	}
+
+	/** トークン数 */
+	public int count() {
+		return count;
+	}
+
+	public int length(int index) {
+		return ends[index] - starts[index];
+	}
+
+	/** 行を保持しているバイト列 (CommandTable の検索用) */
+	byte[] buffer() {
+		return buf;
+	}
+
+	int start(int index) {
+		return starts[index];
+	}
+
+	/**
+	 * index 番目のトークンが s と等しいか判定します。
+	 */
+	public boolean equalsAt(int index, String s) {
+		if (index >= count || length(index) != s.length()) return false;
+		int p = starts[index];
+		for (int i = 0; i < s.length(); i++) {
+			if (buf[p + i] != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * index 番目のトークンを整数として読みます。
+	 * @throws NumberFormatException 整数でない場合
+	 */
+	public int intAt(int index) {
+		long v = longAt(index);
+		if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw new NumberFormatException("out of int range");
+		return (int) v;
+	}
+
+	public long longAt(int index) {
+		if (index >= count) throw new NumberFormatException("missing token " + index);
+		int p = starts[index], end = ends[index];
+		boolean negative = false;
+		if (buf[p] == '-' || buf[p] == '+') {
+			negative = buf[p] == '-';
+			p++;
+		}
+		if (p == end || end - p > 18) throw new NumberFormatException(stringAt(index));
+		long v = 0;
+		for (; p < end; p++) {
+			int d = buf[p] - '0';
+			if (d < 0 || d > 9) throw new NumberFormatException(stringAt(index));
+			v = v * 10 + d;
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * index 番目のトークンを実数として読みます ([-]数字[.数字][E[-]数字] の形式)。
+	 * NaN や Infinity など、それ以外の表記は Double.parseDouble に任せます。
+	 * @throws NumberFormatException 実数でない場合
+	 */
+	public double doubleAt(int index) {
+		if (index >= count) throw new NumberFormatException("missing token " + index);
+		int p = starts[index], end = ends[index];
+		boolean negative = false;
+		if (buf[p] == '-' || buf[p] == '+') {
+			negative = buf[p] == '-';
+			p++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exp10 = 0;
+		boolean any = false, dot = false;
+		for (; p < end; p++) {
+			int b = buf[p];
+			if (b >= '0' && b <= '9') {
+				any = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (mantissa != 0) digits++;
+					if (dot) exp10--;
+				} else if (!dot) {
+					// 18桁を超えた整数部の桁は切り捨てて桁位置だけ進める
+					exp10++;
+				}
+			} else if (b == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (p < end && (buf[p] == 'E' || buf[p] == 'e')) {
+			p++;
+			boolean expNegative = false;
+			if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+				expNegative = buf[p] == '-';
+				p++;
+			}
+			int e = 0;
+			boolean expAny = false;
+			for (; p < end && buf[p] >= '0' && buf[p] <= '9'; p++) {
+				expAny = true;
+				if (e < 10000) e = e * 10 + (buf[p] - '0');
+			}
+			if (!expAny) p = -1;
+			exp10 += expNegative ? -e : e;
+		}
+		if (!any || p != end) return Double.parseDouble(stringAt(index));
+
+		double v;
+		if (exp10 == 0) {
+			v = mantissa;
+		} else if (exp10 > 0 && exp10 < POW10.length) {
+			v = mantissa * POW10[exp10];
+		} else if (exp10 < 0 && -exp10 < POW10.length) {
+			// 仮数が 2^53 以下なら1回の除算で正しく丸められる
+			v = mantissa / POW10[-exp10];
+		} else {
+			v = mantissa * Math.pow(10, exp10);
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * index 番目のトークンを文字列で返します (メモリを確保するので、頻度の低いコマンド用)。
+	 */
+	public String stringAt(int index) {
+		if (source != null) return source.subSequence(starts[index], ends[index]).toString();
+		return new String(buf, starts[index], length(index), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * from 番目から to - 1 番目までのトークンを空白でつないで返します。
+	 */
+	public String join(int from, int to) {
+		if (from >= to) return "";
+		int s = starts[from], e = ends[to - 1];
+		if (source != null) return source.subSequence(s, e).toString();
+		return new String(buf, s, e - s, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 全トークンを文字列の配列にします (別スレッドへ渡すときなど)。
+	 */
+	public String[] toArray() {
+		String[] result = new String[count];
+		for (int i = 0; i < count; i++) result[i] = stringAt(i);
+		return result;
+	}
+
+	/**
+	 * 行全体を文字列で返します。
+	 */
+	public String line() {
+		if (source != null) return source.toString();
+		return new String(buf, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,33 @@
+package game;
+
+/**
+ * 対戦の時刻とティック (1/FPS 秒) の換算。
+ * サーバーの時計で数えたティックを全員の共通の基準にし、クライアントは {@link ClockSync} で求めた差を足して使います。
+ */
+public class MatchClock {
+	private static final long ORIGIN = System.nanoTime();
+
+	private MatchClock() {
+	}
+
+	/**
+	 * この JVM の単調増加の時刻 (µs)。
+	 */
+	public static long nowMicros() {
+		return (System.nanoTime() - ORIGIN) / 1000;
+	}
+
+	/**
+	 * 時刻 (µs) を含むティックの番号を返します。
+	 */
+	public static long tickAt(long micros) {
+		return Math.floorDiv(micros * GameConstants.FPS, 1_000_000L);
+	}
+
+	/**
+	 * ティックが始まる時刻 (µs) を返します。
+	 */
+	public static long microsOfTick(long tick) {
+		return Math.floorDiv(tick * 1_000_000L, GameConstants.FPS);
+	}
+}
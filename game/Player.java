@@ -63,6 +63,9 @@ public class Player {
 
 	public Weapon weapon;
 
+	// 毎フレーム送る MOVE の組み立て用
+	private final LineBuilder moveLine = new LineBuilder();
+
 	/**
 	 * コンストラクタ
 	 *
@@ -244,8 +247,8 @@ public class Player {
 	}
 
 	/**
-	 * プレイヤーの毎フレームの更新処理。
-	 * 移動、状態異常の処理、サーバーへの位置情報送信などを行います。
+	 * プレイヤーの毎フレームの状態更新処理。
+	 * 移動、状態異常の処理を行います。送信は {@link #publishMove} で別に行います。
 	 *
 	 * @param keyW      Wキー入力状態
 	 * @param keyS      Sキー入力状態
@@ -254,9 +257,9 @@ public class Player {
 	 * @param mx        マウスX座標
 	 * @param my        マウスY座標
 	 * @param obstacles 壁情報
-	 * @param out       サーバー出力用Writer
+	 * @param frame     経過フレーム数 (毒・ディレイの周期判定用)
 	 */
-	public void update(boolean keyW, boolean keyS, boolean keyA, boolean keyD, int mx, int my, ArrayList<Line2D.Double> obstacles, PrintWriter out) {
+	public void updateState(boolean keyW, boolean keyS, boolean keyA, boolean keyD, int mx, int my, ArrayList<Line2D.Double> obstacles, int frame) {
 		// ガード状態の更新
 		if (isGuarding) {
 			guardTimer--;
@@ -278,7 +281,7 @@ public class Player {
 
 		// ディレイパッシブ（DoTダメージ）の処理
 		if (hasPassiveDelay && delayDamageBuffer > 0) {
-			if (hp > 0 && GameLogic.frameCount % 20 == 0) {
+			if (hp > 0 && frame % 20 == 0) {
 				int bleed = (int) (delayDamageBuffer * 0.1) + 1;
 				hp -= bleed;
 				delayDamageBuffer -= bleed;
@@ -289,7 +292,7 @@ public class Player {
 		// 状態異常処理
 		if (poisonTimer > 0) {
 			// 30フレーム(0.5秒)ごとにダメージ
-			if (GameLogic.frameCount % 30 == 0) {
+			if (frame % 30 == 0) {
 				// スタック数*3がそのままダメージになる（最低1ダメージ）
 				int dmg = Math.max(1, poisonStack*POWERUP_POISON_COUNT_MULT);
 				hp -= dmg;
@@ -328,6 +331,12 @@ public class Player {
 
 		// 向きの計算
 		angle = Math.atan2(my - y, mx - x);
+	}
+
+	/**
+	 * 現在の位置・状態を MOVE として送信します。
+	 */
+	public void publishMove(PrintWriter out) {
 		// 1. フラグ圧縮 (ビット演算でまとめる)
 		int flags = 0;
 		if (weapon.isReloading) flags |= P_FLAG_RELOAD;    // 1ビット目
@@ -341,16 +350,17 @@ public class Player {
 			triggerTheWorldFrame = false; // 送信したのでオフ
 		}
 
-		// 2. 角度の桁数制限 (String.formatで小数点2桁に)
-		String shortAngle = String.format("%.2f", angle);
-		// 3. 短縮版メッセージを送信
+		// 2. 短縮版メッセージを送信 (角度は小数点2桁に)
 		// 構成: MOVE x y angle hp reloadTimer guardTimer flags id
-		out.println("MOVE " + (int) x + " " + (int) y + " " + shortAngle + " " + hp
-				+ " " + weapon.reloadTimer
-				+ " " + guardCooldownTimer
-				+ " " + flags
-				+ " " + id);
-		weapon.update(out, id, obstacles);
+		// 毎フレーム送るので、文字列を作らずに使い回しのバッファへ書く
+		moveLine.clear().append("MOVE ").append((int) x).append(' ').append((int) y)
+				.append(' ').appendFixed2(angle)
+				.append(' ').append(hp)
+				.append(' ').append(weapon.reloadTimer)
+				.append(' ').append(guardCooldownTimer)
+				.append(' ').append(flags)
+				.append(' ').append(id);
+		out.println(moveLine);
 	}
 
 	/**
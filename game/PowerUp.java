@@ -20,6 +20,20 @@ public abstract class PowerUp {
 	}
 
 	public abstract void apply(Player p);
+
+	/**
+	 * 名前で指定したパワーアップをプレイヤーに適用します (ABILITY コマンドの受信側用)。
+	 * @return 該当するパワーアップがあれば true
+	 */
+	public static boolean applyByName(String name, Player p) {
+		for (PowerUp u : PowerUpFactory.getAllPowerUps()) {
+			if (u.name.equals(name)) {
+				u.apply(p);
+				return true;
+			}
+		}
+		return false;
+	}
 }
 
 /**
@@ -0,0 +1,107 @@
+package game;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * サーバーへの送信用 Writer。
+ * サーバーが送信者本人へのエコーを省略する (noecho) 場合、
+ * 自分自身も処理する必要のあるイベントをローカルで折り返します。
+ */
+public class ServerWriter extends PrintWriter {
+	private final Consumer<String> loopback;
+	// 文字列を経由しない行 (LineBuilder) の書き込み先。Writer と同じバッファを通して順序を保つ
+	private final BufferedOutputStream raw;
+	private volatile boolean localEcho = false;
+	// MOVE の送り先 (UDP 副チャネルが使えるときのみ)
+	private volatile UdpChannel udp;
+
+	/**
+	 * @param out      ソケットの出力ストリーム
+	 * @param loopback 折り返したコマンドの受け取り先
+	 */
+	public ServerWriter(OutputStream out, Consumer<String> loopback) {
+		this(new BufferedOutputStream(out), loopback);
+	}
+
+	private ServerWriter(BufferedOutputStream raw, Consumer<String> loopback) {
+		super(new OutputStreamWriter(raw, StandardCharsets.UTF_8), true);
+		this.raw = raw;
+		this.loopback = loopback;
+	}
+
+	/**
+	 * サーバーがエコーを省略することに同意したら、ローカル折り返しを有効にします。
+	 */
+	public void setLocalEcho(boolean enabled) {
+		localEcho = enabled;
+	}
+
+	/**
+	 * UDP 副チャネルの到達確認が取れたら、以降の MOVE をそちらで送ります。
+	 */
+	public void setDatagramChannel(UdpChannel channel) {
+		udp = channel;
+	}
+
+	@Override
+	public void println(String line) {
+		UdpChannel u = udp;
+		if (u != null && line.startsWith("MOVE ")) u.send(line);
+		else super.println(line);
+		if (localEcho && needsLoopback(line)) loopback.accept(line);
+	}
+
+	/**
+	 * LineBuilder はバイト列のまま書き込みます (毎フレームの MOVE で文字列を作らないため)。
+	 */
+	@Override
+	public void println(Object x) {
+		if (!(x instanceof LineBuilder)) {
+			println(String.valueOf(x));
+			return;
+		}
+		LineBuilder line = (LineBuilder) x;
+		UdpChannel u = udp;
+		if (u != null && line.startsWith("MOVE ")) {
+			u.send(line);
+		} else {
+			synchronized (lock) {
+				try {
+					// Writer 側に溜まっている分を先に出す
+					out.flush();
+					raw.write(line.bytes(), 0, line.length());
+					raw.write('\n');
+					raw.flush();
+				} catch (IOException e) {
+					setError();
+				}
+			}
+		}
+		if (localEcho && needsLoopback(line)) loopback.accept(line.toString());
+	}
+
+	/**
+	 * 自分にも返ってくる前提で書かれているコマンドか判定します。
+	 * MOVE / STATUS は自分の分を受け取っても無視・同値更新になるだけなので折り返しません。
+	 */
+	private static boolean needsLoopback(CharSequence line) {
+		return !(startsWith(line, "MOVE ") || startsWith(line, "STATUS ")
+				|| startsWith(line, "HELLO") || "LOBBY".contentEquals(line) || startsWith(line, "QUEUE") || "PONG".contentEquals(line)
+				|| startsWith(line, "INPUT ") || startsWith(line, "UDP ") || "RESYNC".contentEquals(line)
+				|| startsWith(line, "SYNC ") || startsWith(line, "RESUME "));
+	}
+
+	private static boolean startsWith(CharSequence line, String prefix) {
+		if (line.length() < prefix.length()) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (line.charAt(i) != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,132 @@
+package game;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * サーバーからクライアントへの通信のストリーム圧縮 (HELLO deflate で有効)。
+ * サーバーが返す WELCOME 行の直後から、以降の受信バイト列全体が1本の zlib ストリームになります。
+ * 書き込みのたび (--batch-ms 指定時はティックごと) に SYNC_FLUSH で区切るので、
+ * 受信側は届いた分をその場で展開できます。
+ * <p>
+ * コマンド名や典型的な行を集めた辞書を最初に与えておき、短い行でも最初から縮むようにしています。
+ * サーバーとクライアントの両方がこのクラスを使います。
+ */
+public class StreamCompression {
+	public static final String FEATURE = "deflate";
+
+	/**
+	 * プリセット辞書。zlib は辞書の後ろの方ほど近い (短い距離で参照できる) ので、頻度の高いものを後ろに置きます。
+	 */
+	private static final byte[] DICTIONARY = (
+			"WELCOME ENTER USERS LEAVE JOIN START MODE AUTH UDP PING\n"
+			+ "MAP_DATA ABILITY NEXT_ROUND_READY AMMO DEAD HEAL STATUS 100 100 "
+			+ "BATCH 2\nBATCH 3\nBULLET_HIT 1 \nSHOT 1 100.0 200.0 0.0 10.0 10 8 0 1 0 120 \n"
+			+ "MOVE 100 200 0.00 100 0 0 0 1 1\nMOVE 100 200 0.00 100 0 0 0 2 2\n")
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * 1接続分の圧縮器 (サーバー側、その接続の書き込み担当スレッド専用)。
+	 * 使い終えたら {@link #end()} でネイティブのメモリを解放します。
+	 */
+	public static class Compressor {
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		private byte[] input = new byte[4096];
+		private byte[] output = new byte[1024];
+
+		public Compressor() {
+			deflater.setDictionary(DICTIONARY);
+		}
+
+		/**
+		 * bufs[from] から bufs[to - 1] までを続けて圧縮し、SYNC_FLUSH で区切ります。
+		 * 各バッファの位置は進めません。
+		 */
+		public ByteBuffer compress(ByteBuffer[] bufs, int from, int to) {
+			int len = 0;
+			for (int i = from; i < to; i++) {
+				ByteBuffer b = bufs[i];
+				int n = b.remaining();
+				if (input.length < len + n) input = Arrays.copyOf(input, Math.max(len + n, input.length * 2));
+				b.duplicate().get(input, len, n);
+				len += n;
+			}
+			return compress(input, 0, len);
+		}
+
+		/**
+		 * バイト列を圧縮し、SYNC_FLUSH で区切ります。
+		 * @return 圧縮結果 (呼び出し側が保持してよい新しいバッファ)
+		 */
+		public ByteBuffer compress(byte[] b, int off, int len) {
+			deflater.setInput(b, off, len);
+			int n = 0;
+			while (true) {
+				if (n == output.length) output = Arrays.copyOf(output, output.length * 2);
+				n += deflater.deflate(output, n, output.length - n, Deflater.SYNC_FLUSH);
+				// 出力先に空きが残っていれば出し切っている
+				if (n < output.length) break;
+			}
+			return ByteBuffer.wrap(Arrays.copyOf(output, n));
+		}
+
+		public void end() {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * 圧縮されたストリームを展開して読む InputStream (クライアント側)。
+	 */
+	public static class InflatingStream extends InputStream {
+		private final Inflater inflater = new Inflater();
+		private final InputStream source;
+		private final byte[] raw = new byte[8192];
+		private final byte[] one = new byte[1];
+
+		/**
+		 * @param leftover 切り替え前に先読みしてしまった、圧縮済みのバイト列
+		 */
+		public InflatingStream(byte[] leftover, InputStream source) {
+			this.source = new SequenceInputStream(new ByteArrayInputStream(leftover), source);
+		}
+
+		public int read() throws IOException {
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			try {
+				while (true) {
+					int n = inflater.inflate(b, off, len);
+					if (n > 0) return n;
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY);
+					} else if (inflater.finished()) {
+						return -1;
+					} else if (inflater.needsInput()) {
+						int r = source.read(raw, 0, raw.length);
+						if (r < 0) return -1;
+						inflater.setInput(raw, 0, r);
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("broken compressed stream", e);
+			}
+		}
+
+		public void close() throws IOException {
+			inflater.end();
+			source.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package game;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * MOVE を送受信する UDP 副チャネル (クライアント側)。
+ * サーバーから "UDP ポート トークン" を受け取ったら開始し、到達確認 (WELCOME) が取れた場合だけ使います。
+ * 確認が取れなければ何もせず、通信は TCP のみで続きます。
+ * TCP の接続を張り替えるときは {@link #close()} で閉じてください (受信スレッドも終わります)。
+ */
+public class UdpChannel {
+	/** 到達確認を待つ間の再送間隔と回数 */
+	private static final int HELLO_INTERVAL_MS = 250;
+	private static final int HELLO_TRIES = 8;
+
+	private final DatagramSocket socket;
+	private final InetAddress server;
+	private final int port;
+	private final long token;
+	private long sendSeq = 0;
+	// 送信用 (使い回す)
+	private final LineBuilder datagram = new LineBuilder();
+	private final DatagramPacket outPacket;
+	// 送信者ごとの受信済み最新通番 (受信スレッド専用)
+	private final HashMap<Integer, Long> lastSeq = new HashMap<>();
+
+	private UdpChannel(InetAddress server, int port, long token) throws IOException {
+		this.socket = new DatagramSocket();
+		this.server = server;
+		this.port = port;
+		this.token = token;
+		this.outPacket = new DatagramPacket(new byte[0], 0, server, port);
+	}
+
+	/**
+	 * 別スレッドで到達確認を行い、成功したら onReady を呼んで受信を開始します。
+	 *
+	 * @param host     サーバーのホスト名
+	 * @param port     UDP ポート
+	 * @param token    サーバーから渡されたトークン
+	 * @param onReady  到達確認が取れたときの処理
+	 * @param receiver 受信した行の受け取り先
+	 */
+	public static void open(String host, int port, long token, Consumer<UdpChannel> onReady, Consumer<String> receiver) {
+		Thread t = new Thread(() -> {
+			UdpChannel ch = null;
+			try {
+				ch = new UdpChannel(InetAddress.getByName(host), port, token);
+				if (!ch.handshake()) {
+					System.out.println("UDP unavailable, using TCP only");
+					ch.close();
+					return;
+				}
+				onReady.accept(ch);
+				ch.receiveLoop(receiver);
+			} catch (IOException e) {
+				if (ch != null) ch.close();
+			}
+		}, "udp-channel");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private boolean handshake() throws IOException {
+		byte[] hello = ("HELLO " + token).getBytes(StandardCharsets.UTF_8);
+		byte[] buf = new byte[64];
+		socket.setSoTimeout(HELLO_INTERVAL_MS);
+		for (int i = 0; i < HELLO_TRIES; i++) {
+			socket.send(new DatagramPacket(hello, hello.length, server, port));
+			try {
+				DatagramPacket p = new DatagramPacket(buf, buf.length);
+				socket.receive(p);
+				if (new String(p.getData(), 0, p.getLength(), StandardCharsets.UTF_8).equals("WELCOME")) return true;
+			} catch (SocketTimeoutException e) {
+				// 再送
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * ソケットを閉じます。到達確認中や受信待ちのスレッドは例外で抜けて終わります。何度呼んでもかまいません。
+	 */
+	public void close() {
+		socket.close();
+	}
+
+	/**
+	 * ASCII の1行をデータグラムで送ります。送信用のバッファとパケットを使い回します。
+	 */
+	public synchronized void send(CharSequence line) {
+		LineBuilder d = datagram.clear().append(token).append(' ').append(++sendSeq).append(' ');
+		for (int i = 0; i < line.length(); i++) d.append(line.charAt(i));
+		outPacket.setData(d.bytes(), 0, d.length());
+		try {
+			socket.send(outPacket);
+		} catch (IOException e) {
+			// 届かなくても次の MOVE で上書きされる
+		}
+	}
+
+	private void receiveLoop(Consumer<String> receiver) throws IOException {
+		socket.setSoTimeout(0);
+		byte[] buf = new byte[2048];
+		DatagramPacket p = new DatagramPacket(buf, buf.length);
+		while (true) {
+			p.setLength(buf.length);
+			socket.receive(p);
+			String msg = new String(p.getData(), 0, p.getLength(), StandardCharsets.UTF_8);
+			// 通番 送信者 行
+			int s1 = msg.indexOf(' ');
+			int s2 = msg.indexOf(' ', s1 + 1);
+			if (s1 < 0 || s2 < 0) continue;
+			try {
+				long seq = Long.parseLong(msg.substring(0, s1));
+				int sender = Integer.parseInt(msg.substring(s1 + 1, s2));
+				// 追い越された古い状態は捨てる
+				Long last = lastSeq.get(sender);
+				if (last != null && seq <= last) continue;
+				lastSeq.put(sender, seq);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			receiver.accept(msg.substring(s2 + 1));
+		}
+	}
+}
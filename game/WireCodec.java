@@ -0,0 +1,556 @@
+package game;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * サーバーからクライアントへの通信で使うバイナリ形式 (HELLO wire1 で有効)。
+ * 頻度の高い MOVE / SHOT / BULLET_HIT だけを短いフレームにし、それ以外は従来どおりのテキスト行で送ります。
+ * <p>
+ * フレーム: [オペコード 1バイト][ペイロード長 varint][ペイロード]
+ * <ul>
+ * <li>オペコードは 0x20 未満 (改行コードを除く) なので、テキスト行 (英字で始まる) と1バイト目で区別でき、
+ * 混在させても切り替えの手順は要りません</li>
+ * <li>中継時に行末へ付く送信者番号がある場合はオペコードに {@link #OP_HAS_SENDER} を立て、ペイロードの最後に置きます</li>
+ * <li>整数は varint (負になりうるものは zigzag)、座標・角度・速度は固定小数点に量子化します</li>
+ * </ul>
+ * サーバーとクライアントの両方がこのクラスを使います。
+ */
+public class WireCodec {
+	/** プロトコルのバージョン (HELLO / WELCOME で "wire" + VERSION を交換します) */
+	public static final int VERSION = 1;
+	public static final String FEATURE = "wire" + VERSION;
+
+	/** テキスト行 (バイナリにしないメッセージ) */
+	public static final int OP_TEXT = 0;
+	public static final int OP_MOVE = 0x01;
+	public static final int OP_SHOT = 0x02;
+	public static final int OP_BULLET_HIT = 0x03;
+	/** 前回の MOVE から変わった項目だけを送る MOVE ({@link DeltaEncoder}) */
+	public static final int OP_MOVE_DELTA = 0x04;
+	/** 行末に送信者番号が付いている */
+	public static final int OP_HAS_SENDER = 0x10;
+
+	// 量子化の単位
+	private static final double MOVE_ANGLE_SCALE = 100;   // MOVE の角度は元々小数点以下2桁
+	private static final double SHOT_POS_SCALE = 8;       // 1/8 px
+	private static final double SHOT_ANGLE_SCALE = 10000; // 1/10000 rad
+	private static final double SHOT_SPEED_SCALE = 256;
+
+	// MOVE の項目 (差分のビットマスクの並び順)
+	private static final int F_X = 0, F_Y = 1, F_ANGLE = 2, F_HP = 3, F_RELOAD = 4, F_GUARD = 5, F_FLAGS = 6;
+	private static final int MOVE_FIELDS = 7;
+	/** 変化がなくても、この回数に1回は全項目を送り直す (受信側の表示のずれを戻す) */
+	private static final int KEYFRAME_INTERVAL = 60;
+
+	/**
+	 * 受信した1メッセージ。op に応じて使うフィールドが変わります。
+	 * {@link Reader#read(Message)} で中身を上書きして使い回せます。
+	 */
+	public static class Message {
+		public int op;
+		/** OP_TEXT のときの行 (UTF-8、先頭から lineLength バイト) */
+		public byte[] line = new byte[128];
+		public int lineLength;
+		/** 行末の送信者番号 (なければ -1) */
+		public int sender = -1;
+
+		// MOVE: x y angle hp reloadTimer guardTimer flags id
+		// SHOT: bulletId x y angle speed damage size flags ownerId extraBounces maxLife
+		// BULLET_HIT: bulletId
+		// MOVE_DELTA: 基準となる MOVE を受け取っていない (再同期が必要) ときだけこの op のまま返ります
+		public int id, hp, reloadTimer, guardTimer, flags;
+		public int bulletId, damage, size, ownerId, extraBounces, maxLife;
+		public double x, y, angle, speed;
+
+		/**
+		 * OP_TEXT の行を文字列で返します (メモリを確保するので、頻度の低い処理用)。
+		 */
+		public String text() {
+			return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * OP_TEXT の行が s と等しいか判定します。
+		 */
+		public boolean textEquals(String s) {
+			return op == OP_TEXT && lineLength == s.length() && textStartsWith(s);
+		}
+
+		/**
+		 * OP_TEXT の行が prefix で始まるか判定します。
+		 */
+		public boolean textStartsWith(String prefix) {
+			if (op != OP_TEXT || lineLength < prefix.length()) return false;
+			for (int i = 0; i < prefix.length(); i++) {
+				if (line[i] != prefix.charAt(i)) return false;
+			}
+			return true;
+		}
+
+		void clear() {
+			op = OP_TEXT;
+			lineLength = 0;
+			sender = -1;
+			id = hp = reloadTimer = guardTimer = flags = 0;
+			bulletId = damage = size = ownerId = extraBounces = maxLife = 0;
+			x = y = angle = speed = 0;
+		}
+
+		void copyMoveFrom(Message m) {
+			op = OP_MOVE;
+			id = m.id;
+			sender = m.sender;
+			x = m.x;
+			y = m.y;
+			angle = m.angle;
+			hp = m.hp;
+			reloadTimer = m.reloadTimer;
+			guardTimer = m.guardTimer;
+			flags = m.flags;
+		}
+
+		/**
+		 * 従来のテキスト形式に戻します (量子化した値はそのまま)。
+		 */
+		public String toText() {
+			StringBuilder sb = new StringBuilder();
+			switch (op) {
+				case OP_TEXT:
+					return text();
+				case OP_MOVE:
+					sb.append("MOVE ").append((int) x).append(' ').append((int) y)
+							.append(' ').append(String.format("%.2f", angle)).append(' ').append(hp)
+							.append(' ').append(reloadTimer).append(' ').append(guardTimer)
+							.append(' ').append(flags).append(' ').append(id);
+					break;
+				case OP_SHOT:
+					sb.append("SHOT ").append(bulletId).append(' ').append(x).append(' ').append(y)
+							.append(' ').append(angle).append(' ').append(speed).append(' ').append(damage)
+							.append(' ').append(size).append(' ').append(flags).append(' ').append(ownerId)
+							.append(' ').append(extraBounces).append(' ').append(maxLife);
+					break;
+				case OP_BULLET_HIT:
+					sb.append("BULLET_HIT ").append(bulletId);
+					break;
+				default:
+					return "";
+			}
+			if (sender >= 0) sb.append(' ').append(sender);
+			return sb.toString();
+		}
+	}
+
+	// ==========================================
+	// 符号化 (サーバー側)
+	// ==========================================
+
+	/**
+	 * テキスト行をフレームに変換します。
+	 * @return 対象外のコマンド、または想定外の形式なら null (テキストのまま送る)
+	 */
+	public static byte[] encode(String line) {
+		String[] t = line.split(" ");
+		Out o = new Out();
+		int op;
+		try {
+			switch (t[0]) {
+				case "MOVE":
+					if (t.length != 9 && t.length != 10) return null;
+					op = OP_MOVE;
+					o.zigzag(Integer.parseInt(t[1]));
+					o.zigzag(Integer.parseInt(t[2]));
+					o.zigzag(Math.round(Double.parseDouble(t[3]) * MOVE_ANGLE_SCALE));
+					o.zigzag(Integer.parseInt(t[4]));
+					o.varint(Integer.parseInt(t[5]));
+					o.varint(Integer.parseInt(t[6]));
+					o.varint(Integer.parseInt(t[7]));
+					o.varint(Integer.parseInt(t[8]));
+					if (t.length == 10) op |= sender(o, t[9]);
+					break;
+				case "SHOT":
+					if (t.length != 12 && t.length != 13) return null;
+					op = OP_SHOT;
+					o.varint(Integer.parseInt(t[1]));
+					o.zigzag(Math.round(Double.parseDouble(t[2]) * SHOT_POS_SCALE));
+					o.zigzag(Math.round(Double.parseDouble(t[3]) * SHOT_POS_SCALE));
+					o.zigzag(Math.round(Double.parseDouble(t[4]) * SHOT_ANGLE_SCALE));
+					o.zigzag(Math.round(Double.parseDouble(t[5]) * SHOT_SPEED_SCALE));
+					for (int i = 6; i <= 11; i++) o.zigzag(Integer.parseInt(t[i]));
+					if (t.length == 13) op |= sender(o, t[12]);
+					break;
+				case "BULLET_HIT":
+					if (t.length != 2 && t.length != 3) return null;
+					op = OP_BULLET_HIT;
+					o.varint(Integer.parseInt(t[1]));
+					if (t.length == 3) op |= sender(o, t[2]);
+					break;
+				default:
+					return null;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return o.frame(op);
+	}
+
+	private static int sender(Out o, String token) {
+		o.varint(Integer.parseInt(token));
+		return OP_HAS_SENDER;
+	}
+
+	/**
+	 * 1接続分の MOVE 差分符号化器 (サーバー側、その接続の書き込み担当スレッド専用)。
+	 * <p>
+	 * プレイヤーごとに最後に書き出した MOVE を基準として覚えておき、次の MOVE は変わった項目だけを
+	 * ビットマスク付きで送ります。何も変わっていなければ送りません。
+	 * TCP は届いた順に必ず届くので、書き出した時点で相手もその基準を持っていると見なせます (暗黙の確認応答)。
+	 * 受信側が基準を失ったときは RESYNC で {@link #reset()} され、次から全項目を送り直します。
+	 * <p>
+	 * MOVE ごとにメモリを確保しないよう、読み直し・差分の組み立て・書き出しにはこの符号化器の作業用領域を使い回します。
+	 */
+	public static class DeltaEncoder {
+		/** 差分フレームの最大長 (オペコード + 長さ + 番号 + マスク + 全項目) に収まる大きさ */
+		private static final int SCRATCH_SIZE = 96;
+
+		private final HashMap<Integer, Baseline> baselines = new HashMap<>();
+		// 作業用領域 (書き込み担当スレッド専用なので使い回せる)
+		private final Cursor cursor = new Cursor();
+		private final long[] now = new long[MOVE_FIELDS];
+		private final Out head = new Out();
+		private final Out body = new Out();
+		private final ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+
+		private static class Baseline {
+			final long[] fields = new long[MOVE_FIELDS];
+			int sinceFull = 0;
+		}
+
+		/**
+		 * 送信するフレームを差分に置き換えます。MOVE 以外はそのまま返します。
+		 * 差分に置き換えたときに返すのはこの符号化器の作業用バッファで、次に呼ぶまでに写し取ってください。
+		 * @return 前回から何も変わっていない MOVE なら null (送らない)
+		 */
+		public ByteBuffer apply(ByteBuffer frame) {
+			int op = frame.get(frame.position()) & 0xFF;
+			if ((op & ~OP_HAS_SENDER) != OP_MOVE) return frame;
+
+			Cursor c = cursor.reset(frame, frame.position() + 1);
+			// ペイロード長 (受信側と同じく varint で読み、その後ろから項目を読む)
+			c.varint();
+			long[] now = this.now;
+			now[F_X] = c.zigzag();
+			now[F_Y] = c.zigzag();
+			now[F_ANGLE] = c.zigzag();
+			now[F_HP] = c.zigzag();
+			now[F_RELOAD] = c.varint();
+			now[F_GUARD] = c.varint();
+			now[F_FLAGS] = c.varint();
+			int id = (int) c.varint();
+
+			Baseline base = baselines.get(id);
+			if (base == null || ++base.sinceFull >= KEYFRAME_INTERVAL) {
+				if (base == null) baselines.put(id, base = new Baseline());
+				System.arraycopy(now, 0, base.fields, 0, MOVE_FIELDS);
+				base.sinceFull = 0;
+				return frame;
+			}
+
+			int mask = 0;
+			for (int i = 0; i < MOVE_FIELDS; i++) {
+				if (now[i] != base.fields[i]) mask |= 1 << i;
+			}
+			if (mask == 0) return null;
+
+			Out o = body.reset();
+			o.varint(id);
+			o.put(mask);
+			for (int i = 0; i < MOVE_FIELDS; i++) {
+				if ((mask & (1 << i)) == 0) continue;
+				// 座標・角度・HP は差分、タイマーとフラグは新しい値
+				if (i <= F_HP) o.zigzag(now[i] - base.fields[i]);
+				else o.varint(now[i]);
+			}
+			System.arraycopy(now, 0, base.fields, 0, MOVE_FIELDS);
+			// 送信者番号は基準の MOVE と同じなので送らない
+			return o.frameTo(OP_MOVE_DELTA | (op & OP_HAS_SENDER), head.reset(), scratch);
+		}
+
+		/**
+		 * 基準をすべて捨て、以降の MOVE を全項目で送ります。
+		 */
+		public void reset() {
+			baselines.clear();
+		}
+	}
+
+	/**
+	 * ByteBuffer 上のフレームを読むカーソル (符号化器が自分で作ったフレームを読み直す用)。
+	 * varint の読み方は {@link Reader} と同じです。
+	 */
+	private static class Cursor {
+		private ByteBuffer buf;
+		private int pos;
+
+		Cursor reset(ByteBuffer buf, int pos) {
+			this.buf = buf;
+			this.pos = pos;
+			return this;
+		}
+
+		long varint() {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = buf.get(pos++) & 0xFF;
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+			throw new IllegalArgumentException("varint too long");
+		}
+
+		long zigzag() {
+			long v = varint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+
+	/**
+	 * 符号化用の伸長するバイト列。
+	 */
+	private static class Out {
+		byte[] buf = new byte[32];
+		int len = 0;
+
+		void put(int b) {
+			if (len == buf.length) buf = Arrays.copyOf(buf, len * 2);
+			buf[len++] = (byte) b;
+		}
+
+		void varint(long v) {
+			if (v < 0) throw new NumberFormatException("negative: " + v);
+			while ((v & ~0x7FL) != 0) {
+				put((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			put((int) v);
+		}
+
+		void zigzag(long v) {
+			varint((v << 1) ^ (v >> 63));
+		}
+
+		Out reset() {
+			len = 0;
+			return this;
+		}
+
+		byte[] frame(int op) {
+			Out f = new Out();
+			f.put(op);
+			f.varint(len);
+			byte[] result = Arrays.copyOf(f.buf, f.len + len);
+			System.arraycopy(buf, 0, result, f.len, len);
+			return result;
+		}
+
+		/**
+		 * {@link #frame(int)} と同じフレームを dst に書き、読み出せる状態にして返します (メモリを確保しません)。
+		 * @param head ヘッダーの組み立てに使う空の Out
+		 */
+		ByteBuffer frameTo(int op, Out head, ByteBuffer dst) {
+			head.put(op);
+			head.varint(len);
+			dst.clear();
+			dst.put(head.buf, 0, head.len).put(buf, 0, len);
+			dst.flip();
+			return dst;
+		}
+	}
+
+	// ==========================================
+	// 復号 (クライアント側)
+	// ==========================================
+
+	/**
+	 * バイナリフレームとテキスト行が混在するストリームを読むリーダー。
+	 * BufferedReader と違い、先読みした分を文字に変換しないのでフレームを壊しません。
+	 */
+	public static class Reader {
+		private InputStream in;
+		private final byte[] buf = new byte[8192];
+		private int pos = 0, limit = 0;
+		// buf より前に読み終えた総バイト数 (フレーム長の確認用)
+		private long base = 0;
+		// プレイヤーごとの最後の MOVE (差分の基準)
+		private final HashMap<Integer, Message> moves = new HashMap<>();
+		private final long[] delta = new long[MOVE_FIELDS];
+
+		public Reader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * 次の1メッセージを m に読み込みます (m の中身は上書きされます)。
+		 * @return 接続が閉じられたら false
+		 */
+		public boolean read(Message m) throws IOException {
+			int first = peek();
+			if (first < 0) return false;
+			m.clear();
+			if (first < 0x20 && first != '\n' && first != '\r') {
+				pos++;
+				decode(first, m);
+			} else {
+				readLine(m);
+			}
+			return true;
+		}
+
+		/**
+		 * 以降の受信を圧縮ストリーム ({@link StreamCompression}) として展開します。
+		 * メッセージの区切りで呼んでください。先読み済みの分も展開の対象になります。
+		 */
+		public void inflate() {
+			byte[] leftover = Arrays.copyOfRange(buf, pos, limit);
+			in = new StreamCompression.InflatingStream(leftover, in);
+			base += pos;
+			pos = limit = 0;
+		}
+
+		private int peek() throws IOException {
+			if (pos == limit && !fill()) return -1;
+			return buf[pos] & 0xFF;
+		}
+
+		private int next() throws IOException {
+			if (pos == limit && !fill()) throw new EOFException();
+			return buf[pos++] & 0xFF;
+		}
+
+		private boolean fill() throws IOException {
+			int n = in.read(buf, 0, buf.length);
+			if (n <= 0) return false;
+			base += limit;
+			pos = 0;
+			limit = n;
+			return true;
+		}
+
+		private void readLine(Message m) throws IOException {
+			byte[] line = m.line;
+			int n = 0;
+			int b;
+			while ((b = peek()) >= 0) {
+				pos++;
+				if (b == '\n') break;
+				if (n == line.length) line = m.line = Arrays.copyOf(line, n * 2);
+				line[n++] = (byte) b;
+			}
+			if (n > 0 && line[n - 1] == '\r') n--;
+			m.op = OP_TEXT;
+			m.lineLength = n;
+		}
+
+		private long varint() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = next();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+			throw new IOException("varint too long");
+		}
+
+		private long zigzag() throws IOException {
+			long v = varint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		private void decode(int op, Message m) throws IOException {
+			int length = (int) varint();
+			long end = consumed() + length;
+			m.op = op & ~OP_HAS_SENDER;
+			switch (m.op) {
+				case OP_MOVE:
+					m.x = zigzag();
+					m.y = zigzag();
+					m.angle = zigzag() / MOVE_ANGLE_SCALE;
+					m.hp = (int) zigzag();
+					m.reloadTimer = (int) varint();
+					m.guardTimer = (int) varint();
+					m.flags = (int) varint();
+					m.id = (int) varint();
+					if ((op & OP_HAS_SENDER) != 0) m.sender = (int) varint();
+					rememberMove(m);
+					break;
+				case OP_MOVE_DELTA:
+					decodeDelta(m);
+					break;
+				case OP_SHOT:
+					m.bulletId = (int) varint();
+					m.x = zigzag() / SHOT_POS_SCALE;
+					m.y = zigzag() / SHOT_POS_SCALE;
+					m.angle = zigzag() / SHOT_ANGLE_SCALE;
+					m.speed = zigzag() / SHOT_SPEED_SCALE;
+					m.damage = (int) zigzag();
+					m.size = (int) zigzag();
+					m.flags = (int) zigzag();
+					m.ownerId = (int) zigzag();
+					m.extraBounces = (int) zigzag();
+					m.maxLife = (int) zigzag();
+					break;
+				case OP_BULLET_HIT:
+					m.bulletId = (int) varint();
+					break;
+				default:
+					break;
+			}
+			if ((op & OP_HAS_SENDER) != 0 && m.op != OP_MOVE && m.op != OP_MOVE_DELTA) m.sender = (int) varint();
+			// 知らないオペコードや後の版で増えた末尾のフィールドは読み飛ばす
+			while (consumed() < end) next();
+		}
+
+		/**
+		 * 基準の MOVE に差分を当てて、全項目のそろった MOVE に戻します。
+		 */
+		private void decodeDelta(Message m) throws IOException {
+			m.id = (int) varint();
+			int mask = next();
+			Message base = moves.get(m.id);
+			long[] v = delta;
+			for (int i = 0; i < MOVE_FIELDS; i++) {
+				v[i] = (mask & (1 << i)) == 0 ? 0 : (i <= F_HP) ? zigzag() : varint();
+			}
+			// 基準がなければ復元できないので、呼び出し側に再同期を任せる
+			if (base == null) return;
+
+			long x = Math.round(base.x), y = Math.round(base.y);
+			long angle = Math.round(base.angle * MOVE_ANGLE_SCALE);
+			m.op = OP_MOVE;
+			m.x = x + v[F_X];
+			m.y = y + v[F_Y];
+			m.angle = (angle + v[F_ANGLE]) / MOVE_ANGLE_SCALE;
+			m.hp = base.hp + (int) v[F_HP];
+			m.reloadTimer = (mask & (1 << F_RELOAD)) != 0 ? (int) v[F_RELOAD] : base.reloadTimer;
+			m.guardTimer = (mask & (1 << F_GUARD)) != 0 ? (int) v[F_GUARD] : base.guardTimer;
+			m.flags = (mask & (1 << F_FLAGS)) != 0 ? (int) v[F_FLAGS] : base.flags;
+			m.sender = base.sender;
+			base.copyMoveFrom(m);
+		}
+
+		private void rememberMove(Message m) {
+			Message base = moves.get(m.id);
+			if (base == null) moves.put(m.id, base = new Message());
+			base.copyMoveFrom(m);
+		}
+
+		private long consumed() {
+			return base + pos;
+		}
+	}
+}